@@ -7,6 +7,7 @@ import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.schedulers.Schedulers
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
 import org.sil.storyproducer.view.BaseActivityView
 import timber.log.Timber
 
@@ -47,6 +48,7 @@ open class BaseController(
                 Single.fromCallable {
                     Workspace.buildStory(context, file)?.also {
                         Workspace.Stories.add(it)
+                        ImageDerivativeCache.prefetch(context, it)
                     }
                 }
                         .subscribeOn(Schedulers.io())
@@ -19,6 +19,7 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.model.*
 import org.sil.storyproducer.model.PROJECT_DIR
 import org.sil.storyproducer.model.SLIDE_NUM
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
 import org.sil.storyproducer.tools.file.copyToWorkspacePath
 import org.sil.storyproducer.tools.toolbar.MultiRecordRecordingToolbar
 import org.sil.storyproducer.tools.toolbar.PlayBackRecordingToolbar
@@ -159,6 +160,7 @@ abstract class MultiRecordFrag : SlidePhaseFrag(), PlayBackRecordingToolbar.Tool
                 Workspace.activeStory.slides[slideNum].imageFile = "$PROJECT_DIR/${slideNum}${Workspace.activeStory.slides[slideNum].localSlideExtension}"
                 copyToWorkspacePath(context!!, uri!!,
                         "${Workspace.activeStory.title}/${Workspace.activeStory.slides[slideNum].imageFile}")
+                ImageDerivativeCache.invalidate(context!!, Workspace.activeStory.slides[slideNum].imageFile, Workspace.activeStory)
                 tempPicFile?.delete()
                 setPic(rootView!!.findViewById(R.id.fragment_image_view) as ImageView)
             }
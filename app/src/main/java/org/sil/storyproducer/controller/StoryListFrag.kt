@@ -14,6 +14,7 @@ import org.sil.storyproducer.activities.BaseActivity
 import org.sil.storyproducer.model.Story
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.service.SlideService
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
 
 class StoryListFrag : androidx.fragment.app.Fragment() {
 
@@ -74,9 +75,8 @@ class ListAdapter(context: Context, private val resourceId: Int, private val sto
         if(position <= stories.size){
             val story = stories[position]
             holder.txtTitle.text = story.title
-            //TODO put th number 25 in some configuration.  What if the images are different sizes?
             //Use the "second" image, because the first is just for the title screen.
-            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, 25, story))
+            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, ImageDerivativeCache.Rendition.THUMBNAIL, story))
             holder.txtSubTitle.text = story.slides[0].subtitle
         }
 
@@ -28,8 +28,10 @@ class FinalizeActivity : PhaseBaseActivity() {
     private lateinit var mCheckboxSoundtrack: CheckBox
     private lateinit var mCheckboxPictures: CheckBox
     private lateinit var mCheckboxText: CheckBox
+    private lateinit var mCheckboxSubtitles: CheckBox
     private lateinit var mCheckboxKBFX: CheckBox
     private lateinit var mCheckboxSong: CheckBox
+    private lateinit var mCheckboxIncremental: CheckBox
     private lateinit var mButtonStart: Button
     private lateinit var mButtonCancel: Button
     private lateinit var mProgressBar: ProgressBar
@@ -190,7 +192,9 @@ class FinalizeActivity : PhaseBaseActivity() {
         mCheckboxPictures = findViewById(R.id.checkbox_export_pictures)
         mCheckboxKBFX = findViewById(R.id.checkbox_export_KBFX)
         mCheckboxText = findViewById(R.id.checkbox_export_text)
+        mCheckboxSubtitles = findViewById(R.id.checkbox_export_subtitles)
         mCheckboxSong = findViewById(R.id.checkbox_export_song)
+        mCheckboxIncremental = findViewById(R.id.checkbox_export_incremental)
 
         mButtonStart = findViewById(R.id.button_export_start)
         mButtonCancel = findViewById(R.id.button_export_cancel)
@@ -305,7 +309,10 @@ class FinalizeActivity : PhaseBaseActivity() {
         if (mCheckboxPictures.isChecked) {
             mCheckboxKBFX.visibility = View.VISIBLE
             mCheckboxText.visibility = View.VISIBLE
+            mCheckboxIncremental.visibility = View.VISIBLE
         }else{
+            //Only the video is made from reusable segments.
+            mCheckboxIncremental.visibility = View.GONE
             mCheckboxKBFX.visibility = View.GONE
             mCheckboxKBFX.isChecked = false
             mCheckboxText.visibility = View.GONE
@@ -342,8 +349,10 @@ class FinalizeActivity : PhaseBaseActivity() {
         editor.putBoolean(PREF_KEY_INCLUDE_BACKGROUND_MUSIC, mCheckboxSoundtrack.isChecked)
         editor.putBoolean(PREF_KEY_INCLUDE_PICTURES, mCheckboxPictures.isChecked)
         editor.putBoolean(PREF_KEY_INCLUDE_TEXT, mCheckboxText.isChecked)
+        editor.putBoolean(PREF_KEY_INCLUDE_SUBTITLES, mCheckboxSubtitles.isChecked)
         editor.putBoolean(PREF_KEY_INCLUDE_KBFX, mCheckboxKBFX.isChecked)
         editor.putBoolean(PREF_KEY_INCLUDE_SONG, mCheckboxSong.isChecked)
+        editor.putBoolean(PREF_KEY_INCREMENTAL_EXPORT, mCheckboxIncremental.isChecked)
 
         editor.putString("$PREF_KEY_SHORT_NAME ${Workspace.activeStory.shortTitle}", mEditTextTitle.text.toString())
 
@@ -359,8 +368,10 @@ class FinalizeActivity : PhaseBaseActivity() {
         mCheckboxSoundtrack.isChecked = prefs.getBoolean(PREF_KEY_INCLUDE_BACKGROUND_MUSIC, true)
         mCheckboxPictures.isChecked = prefs.getBoolean(PREF_KEY_INCLUDE_PICTURES, true)
         mCheckboxText.isChecked = prefs.getBoolean(PREF_KEY_INCLUDE_TEXT, false)
+        mCheckboxSubtitles.isChecked = prefs.getBoolean(PREF_KEY_INCLUDE_SUBTITLES, false)
         mCheckboxKBFX.isChecked = prefs.getBoolean(PREF_KEY_INCLUDE_KBFX, true)
         mCheckboxSong.isChecked = prefs.getBoolean(PREF_KEY_INCLUDE_SONG, true)
+        mCheckboxIncremental.isChecked = prefs.getBoolean(PREF_KEY_INCREMENTAL_EXPORT, false)
         mEditTextTitle.setText(prefs.getString("$PREF_KEY_SHORT_NAME ${Workspace.activeStory.shortTitle}", ""))
 
         // Update the check mark if the file name has previously been changed
@@ -387,11 +398,16 @@ class FinalizeActivity : PhaseBaseActivity() {
 
         // Else, check if the file already exists...
         if (workspaceRelPathExists(this, "$VIDEO_DIR/$mOutputPath")) {
-            val dialog = android.app.AlertDialog.Builder(this)
+            val builder = android.app.AlertDialog.Builder(this)
                     .setTitle(getString(R.string.export_location_exists_title))
                     .setMessage(getString(R.string.export_location_exists_message))
                     .setNegativeButton(getString(R.string.no), null)
-                    .setPositiveButton(getString(R.string.yes)) { _, _ -> startExport() }.create()
+                    .setPositiveButton(getString(R.string.yes)) { _, _ -> startExport() }
+            //The subtitles of an existing video can be brought up to date without making it again.
+            if (mCheckboxSubtitles.isChecked) {
+                builder.setNeutralButton(getString(R.string.export_update_subtitles)) { _, _ -> writeSubtitles() }
+            }
+            val dialog = builder.create()
 
             dialog.show()
         } else {
@@ -402,21 +418,46 @@ class FinalizeActivity : PhaseBaseActivity() {
     private fun startExport() {
         savePreferences()
         synchronized(storyMakerLock) {
-            storyMaker = AutoStoryMaker(this)
-
-            storyMaker!!.mIncludeBackgroundMusic = mCheckboxSoundtrack.isChecked
-            storyMaker!!.mIncludePictures = mCheckboxPictures.isChecked
-            storyMaker!!.mIncludeText = mCheckboxText.isChecked
-            storyMaker!!.mIncludeKBFX = mCheckboxKBFX.isChecked
-            storyMaker!!.mIncludeSong = mCheckboxSong.isChecked
-
-            storyMaker!!.videoRelPath = mOutputPath
+            storyMaker = createStoryMaker()
         }
 
         storyMaker!!.start()
         watchProgress()
     }
 
+    /**
+     * Write the subtitle files of the existing video at the output path, without making the video.
+     */
+    private fun writeSubtitles() {
+        savePreferences()
+        val subtitleMaker = createStoryMaker()
+        Thread(Runnable {
+            val isSuccess = subtitleMaker.writeSubtitles()
+            runOnUiThread {
+                Toast.makeText(baseContext, if (isSuccess) R.string.export_subtitles_updated
+                        else R.string.export_subtitles_failed, Toast.LENGTH_LONG).show()
+            }
+        }).start()
+    }
+
+    /**
+     * Create a story maker with the chosen options, for the output path.
+     */
+    private fun createStoryMaker(): AutoStoryMaker {
+        val maker = AutoStoryMaker(this)
+
+        maker.mIncludeBackgroundMusic = mCheckboxSoundtrack.isChecked
+        maker.mIncludePictures = mCheckboxPictures.isChecked
+        maker.mIncludeText = mCheckboxText.isChecked
+        maker.mIncludeSubtitles = mCheckboxSubtitles.isChecked
+        maker.mIncludeKBFX = mCheckboxKBFX.isChecked
+        maker.mIncludeSong = mCheckboxSong.isChecked
+        maker.mIncrementalExport = mCheckboxIncremental.isChecked
+
+        maker.videoRelPath = mOutputPath
+        return maker
+    }
+
     private fun stopExport() {
         synchronized(storyMakerLock) {
             if (storyMaker != null) {
@@ -461,8 +502,10 @@ class FinalizeActivity : PhaseBaseActivity() {
         private val PREF_KEY_INCLUDE_BACKGROUND_MUSIC = "include_background_music"
         private val PREF_KEY_INCLUDE_PICTURES = "include_pictures"
         private val PREF_KEY_INCLUDE_TEXT = "include_text"
+        private val PREF_KEY_INCLUDE_SUBTITLES = "include_subtitles"
         private val PREF_KEY_INCLUDE_KBFX = "include_kbfx"
         private val PREF_KEY_INCLUDE_SONG = "include_song"
+        private val PREF_KEY_INCREMENTAL_EXPORT = "incremental_export"
         private val PREF_KEY_SHORT_NAME = "short_name"
 
         @Volatile
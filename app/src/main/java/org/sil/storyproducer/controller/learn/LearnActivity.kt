@@ -14,10 +14,9 @@ import org.sil.storyproducer.model.SlideType
 import org.sil.storyproducer.model.Story
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.model.logging.saveLearnLog
-import org.sil.storyproducer.tools.file.getStoryUri
 import org.sil.storyproducer.tools.file.storyRelPathExists
 import org.sil.storyproducer.tools.media.AudioPlayer
-import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.MediaDurationIndex
 import org.sil.storyproducer.tools.toolbar.PlayBackRecordingToolbar
 import java.util.*
 import kotlin.math.min
@@ -104,13 +103,14 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
             //don't play the copyright slides.
             if (s.slideType in arrayOf(SlideType.FRONTCOVER, SlideType.NUMBEREDPAGE)) {
                 numOfSlides++
-                slideDurations.add((MediaHelper.getAudioDuration(this,
-                        getStoryUri(Story.getFilename(s.narrationFile))!!) / 1000).toInt())
+                slideDurations.add((MediaDurationIndex.getDuration(this,
+                        Story.getFilename(s.narrationFile)) / 1000).toInt())
                 slideStartTimes.add(slideStartTimes.last() + slideDurations.last())
             } else {
                 break
             }
         }
+        MediaDurationIndex.save(this)
         videoSeekBar?.max = slideStartTimes.last()
 
         invalidateOptionsMenu()
@@ -29,6 +29,7 @@ import org.sil.storyproducer.service.SlideService
 import org.sil.storyproducer.tools.BitmapScaler
 import org.sil.storyproducer.tools.DrawerItemClickListener
 import org.sil.storyproducer.tools.PhaseGestureListener
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
 import org.sil.storyproducer.viewmodel.SlideViewModelBuilder
 import kotlin.math.max
 
@@ -273,8 +274,7 @@ abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedLis
      * @param slideNum The slide number to grab the picture from the files.
      */
     fun setPic(slideImage: ImageView, slideNum: Int) {
-        val downSample = 2
-        var slidePicture: Bitmap = slideService.getImage(slideNum, downSample, story)
+        var slidePicture: Bitmap = slideService.getImage(slideNum, ImageDerivativeCache.Rendition.SCREEN, story)
         //scale down image to not crash phone from memory error from displaying too large an image
         //Get the height of the phone.
         val phoneProperties = this.resources.displayMetrics
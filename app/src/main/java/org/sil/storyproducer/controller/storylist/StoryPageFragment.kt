@@ -16,6 +16,7 @@ import org.sil.storyproducer.activities.BaseActivity
 import org.sil.storyproducer.controller.MainActivity
 import org.sil.storyproducer.model.Story
 import org.sil.storyproducer.service.SlideService
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
 
 /**
  * StoryPageFragment is a flexible fragment in that it displays different things based on the
@@ -188,9 +189,8 @@ class ListAdapter(context: Context,
                 else -> holder.txtTitle.text = story.title + "   "  // add 3 spaces for uniqueness
             }
 
-            //TODO put th number 25 in some configuration.  What if the images are different sizes?
             //Use the "second" image, because the first is just for the title screen.
-            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, 25, story))
+            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, ImageDerivativeCache.Rendition.THUMBNAIL, story))
             holder.txtSubTitle.text = story.slides[0].subtitle
 
             // Handle graying out text when story is completed
@@ -9,6 +9,7 @@ import net.lingala.zip4j.ZipFile
 import org.sil.storyproducer.BuildConfig
 import org.sil.storyproducer.R
 import org.sil.storyproducer.tools.file.*
+import org.sil.storyproducer.tools.media.MediaDurationIndex
 import timber.log.Timber
 import java.io.ByteArrayOutputStream
 import java.io.File
@@ -181,6 +182,7 @@ fun parseStoryIfPresent(context: Context, storyPath: androidx.documentfile.provi
     //write the story (if it is not null) to json.
     if(story != null) {
         story.toJson(context)
+        MediaDurationIndex.update(context, story, storyPath.name!!)
         return story
     }
     return null
@@ -3,9 +3,12 @@ package org.sil.storyproducer.service
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.PhaseType
 import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
 import org.sil.storyproducer.tools.file.getStoryChildInputStream
 
 class SlideService(val context: Context) {
@@ -18,6 +21,18 @@ class SlideService(val context: Context) {
         }
     }
 
+    /**
+     * Get the image of a slide scaled for a use, from [ImageDerivativeCache] when possible.
+     */
+    fun getImage(slideNum: Int, rendition: ImageDerivativeCache.Rendition, story: Story): Bitmap {
+        if (shouldShowDefaultImage(slideNum, story)) {
+            return genDefaultImage()
+        }
+        val relPath = story.slides[slideNum].imageFile
+        return ImageDerivativeCache.getImage(context, relPath, rendition, story)
+                ?: getImage(relPath, rendition.fallbackSampleSize, false, story)
+    }
+
     fun shouldShowDefaultImage(slideNum: Int, story: Story): Boolean {
         return story.title.isNullOrEmpty()
                 || story.slides.getOrNull(slideNum)?.imageFile.isNullOrEmpty()
@@ -65,6 +80,37 @@ class SlideService(val context: Context) {
         return genDefaultImage()
     }
 
+    /**
+     * Decode only a region of an image, so that a slide that only ever shows part of its image
+     * does not hold (or scale) the rest of it.
+     * @param region region of the image, in image pixels. It is clipped to the image.
+     * @param sampleSize sample size to decode the region at; this should be a power of 2.
+     * @return the decoded region and its position in the image, or null if the image cannot be
+     * decoded by region (e.g. if it is missing or is a GIF).
+     */
+    fun getImageRegion(relPath: String, region: Rect, sampleSize: Int, story: Story): Pair<Bitmap, Rect>? {
+        if (relPath == "") return null
+        try {
+            val iStream = getStoryChildInputStream(context, relPath, story.title) ?: return null
+            val decoder = iStream.use { BitmapRegionDecoder.newInstance(it, false) } ?: return null
+            try {
+                val clipped = Rect(region)
+                if (!clipped.intersect(0, 0, decoder.width, decoder.height)) return null
+
+                val options = BitmapFactory.Options()
+                options.inSampleSize = sampleSize
+                val bmp = decoder.decodeRegion(clipped, options) ?: return null
+                bmp.density = Bitmap.DENSITY_NONE
+                return Pair(bmp, clipped)
+            } finally {
+                decoder.recycle()
+            }
+        } catch (e: Exception) {
+            // not a format BitmapRegionDecoder supports, or the file cannot be read
+            return null
+        }
+    }
+
     fun genDefaultImage(): Bitmap {
         return BitmapFactory.decodeResource(context.resources, R.drawable.greybackground)
     }
@@ -32,16 +32,29 @@ object BitmapScaler {
         }
     }
 
-    fun centerCropRectF(bh: Int, bw: Int, h:Int, w:Int) : RectF {
-        return if (bw*1f/bh > w*1f/h){
+    fun centerCropRectF(bh: Int, bw: Int, h:Int, w:Int, out: RectF = RectF()) : RectF {
+        if (bw*1f/bh > w*1f/h){
             //more width - scale to height and cut the width
             val wCrop = (bw*h/bh*1f - w)/2f
-            RectF(-wCrop, 0f, w+wCrop, h*1f)
+            out.set(-wCrop, 0f, w+wCrop, h*1f)
         }else{
             //more height - scale to width and cut the height
             val hCrop = (bh*w/bw*1f - h)/2f
-            RectF(0f, -hCrop, w*1f, h+hCrop)
+            out.set(0f, -hCrop, w*1f, h+hCrop)
         }
+        return out
+    }
+
+    /**
+     * Get the largest power of 2 sample size at which an image (or a crop of one) of the given
+     * size still has at least as many pixels as the destination in both dimensions.
+     */
+    fun getCoverSampleSize(width: Int, height: Int, dstWidth: Int, dstHeight: Int): Int {
+        var sampleSize = 1
+        while (width / (sampleSize * 2) >= dstWidth && height / (sampleSize * 2) >= dstHeight) {
+            sampleSize *= 2
+        }
+        return sampleSize
     }
 
 }
@@ -0,0 +1,174 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.util.Log
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.File
+import java.security.MessageDigest
+import java.security.NoSuchAlgorithmException
+
+/**
+ *
+ * A directory of cache entries in the app cache directory, such as the one [ImageDerivativeCache]
+ * keeps.
+ *
+ * Each entry is one file, named by its key (see [hash]) and the entry suffix. Entries are written
+ * to a partial file from [createPartial] first and made visible by [commit], so an entry is never
+ * read half written. After each commit, the least recently used entries are evicted until the
+ * directory fits in [maxBytes], and partial files left behind by a crash are removed.
+ */
+internal class DiskCacheDir
+/**
+ * @param mName name of the directory within the app cache directory.
+ * @param mEntrySuffix file name suffix of complete entries.
+ * @param mTag log tag of the cache.
+ * @param maxBytes size (in bytes) the directory is trimmed to after each commit.
+ */
+(private val mName: String, private val mEntrySuffix: String, private val mTag: String, @Volatile var maxBytes: Long) {
+
+    /**
+     * Get the directory, creating it if needed.
+     * @return the directory, or null if it cannot be created.
+     */
+    fun getDir(context: Context): File? {
+        val dir = File(context.cacheDir, mName)
+        if (!dir.isDirectory && !dir.mkdirs()) {
+            Log.w(mTag, "Could not create " + dir.absolutePath)
+            return null
+        }
+        return dir
+    }
+
+    /**
+     * Get the complete entry of a key, marking it as recently used.
+     * @param isValid check of the entry; an entry failing it is deleted.
+     * @return the entry file, or null on a cache miss.
+     */
+    fun getEntry(context: Context, key: String, isValid: (File) -> Boolean = { true }): File? {
+        val dir = getDir(context) ?: return null
+        val entry = File(dir, key + mEntrySuffix)
+        if (!entry.isFile) return null
+        if (entry.length() == 0L || !isValid(entry)) {
+            entry.delete()
+            return null
+        }
+        entry.setLastModified(System.currentTimeMillis())
+        return entry
+    }
+
+    /**
+     * Get a new file to write the entry of a key into. Pass it to [commit] once it is complete.
+     * @return the partial file, or null if the directory is unavailable.
+     */
+    fun createPartial(context: Context, key: String): File? {
+        val dir = getDir(context) ?: return null
+        return File(dir, key + "." + System.nanoTime() + PARTIAL_SUFFIX)
+    }
+
+    /**
+     * Make a completely written partial file the entry of a key, then trim the directory.
+     * Only this takes the lock of the directory; writing the partial file does not.
+     * @param replacedPrefix if given, entries whose names start with it (such as older versions
+     * of the entry) are replaced. Otherwise, an existing entry of the key is kept.
+     * @return the entry file.
+     */
+    fun commit(partial: File, key: String, replacedPrefix: String? = null): File {
+        val dir = partial.parentFile
+        val entry = File(dir, key + mEntrySuffix)
+        synchronized(this) {
+            if (replacedPrefix != null) {
+                dir?.listFiles()?.forEach {
+                    if (it.name.startsWith(replacedPrefix) && it.name.endsWith(mEntrySuffix)) it.delete()
+                }
+            }
+            if (entry.exists() || !partial.renameTo(entry)) {
+                //Another thread made the same entry first.
+                partial.delete()
+            }
+            trim(dir, entry)
+        }
+        return entry
+    }
+
+    /**
+     * Delete the entries whose names start with a prefix.
+     */
+    fun delete(context: Context, prefix: String) {
+        val dir = getDir(context) ?: return
+        synchronized(this) {
+            dir.listFiles()?.forEach {
+                if (it.name.startsWith(prefix) && it.name.endsWith(mEntrySuffix)) it.delete()
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the directory fits in [maxBytes].
+     * @param keep the entry just made, which its maker still needs.
+     */
+    private fun trim(dir: File?, keep: File) {
+        val files = dir?.listFiles() ?: return
+        val now = System.currentTimeMillis()
+        val entries = ArrayList<File>()
+        var total: Long = 0
+        for (file in files) {
+            if (file.name.endsWith(mEntrySuffix)) {
+                entries.add(file)
+                total += file.length()
+            } else if (file.name.endsWith(PARTIAL_SUFFIX) && now - file.lastModified() > PARTIAL_EXPIRY_MS) {
+                file.delete()
+            }
+        }
+
+        if (total <= maxBytes) return
+
+        entries.sortBy { it.lastModified() }
+        for (file in entries) {
+            if (total <= maxBytes) break
+            if (file == keep) continue
+            val length = file.length()
+            if (file.delete()) {
+                total -= length
+                if (MediaHelper.VERBOSE) Log.v(mTag, "evicted " + file.name)
+            }
+        }
+    }
+
+    companion object {
+        private const val PARTIAL_SUFFIX = ".part"
+        //A partial file this old was left behind by a writer that never finished.
+        private const val PARTIAL_EXPIRY_MS = 60L * 60 * 1000
+
+        /**
+         * Get a cache key from the text of everything an entry depends on.
+         * @return the SHA-1 of the text in hex, or null if SHA-1 is not available.
+         */
+        fun hash(text: String): String? {
+            val digest = try {
+                MessageDigest.getInstance("SHA-1")
+            } catch (e: NoSuchAlgorithmException) {
+                return null
+            }
+            val bytes = digest.digest(text.toByteArray())
+            val key = StringBuilder(bytes.size * 2)
+            for (b in bytes) {
+                key.append(String.format("%02x", b))
+            }
+            return key.toString()
+        }
+
+        /**
+         * Identify the current version of a story file, for a cache key: its URI, size and
+         * modification time.
+         * @return the version, or null if the file cannot be identified reliably enough to cache.
+         */
+        fun getFileVersion(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot): String? {
+            val stat = getStoryFileStat(context, relPath, dirRoot) ?: return null
+            //Without both a size and a modification time, a changed file could look unchanged.
+            if (stat.first <= 0 || stat.second <= 0) return null
+            val uri = getStoryUri(relPath, dirRoot) ?: return null
+            return "$uri|${stat.first}|${stat.second}"
+        }
+    }
+}
@@ -131,6 +131,26 @@ fun storyRelPathExists(context: Context, relPath: String, dirRoot: String = Work
     return true
 }
 
+/**
+ * Get the size (in bytes) and last modified time (in milliseconds since the epoch) of a story file.
+ * @return the pair (size, last modified), or null if the file could not be queried.
+ * Either value may be 0 if the document provider does not report it.
+ */
+fun getStoryFileStat(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot) : Pair<Long, Long>? {
+    if(relPath == "") return null
+    val uri = getStoryUri(relPath, dirRoot) ?: return null
+    try {
+        context.contentResolver.query(uri,
+                arrayOf(DocumentsContract.Document.COLUMN_SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED),
+                null, null, null)?.use { cursor ->
+            if (cursor.moveToFirst()) {
+                return Pair(cursor.getLong(0), cursor.getLong(1))
+            }
+        }
+    } catch (e: Exception) {}
+    return null
+}
+
 fun workspaceRelPathExists(context: Context, relPath: String) : Boolean{
     if(relPath == "") return false
     //if we can get the type, it exists.
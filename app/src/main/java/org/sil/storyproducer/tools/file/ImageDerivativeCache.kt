@@ -0,0 +1,273 @@
+package org.sil.storyproducer.tools.file
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Log
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.tools.BitmapScaler
+import org.sil.storyproducer.tools.media.pipe.PipelineExecutor
+import java.io.File
+import java.io.FileOutputStream
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Persistent cache of scaled-down copies (renditions) of story images, kept in the app cache
+ * directory.
+ *
+ * Decoding a template image from the original means a bounds pass and a full decode through the
+ * document provider, just to throw most of the pixels away again. Each [Rendition] is instead
+ * written once, as a small JPEG (or PNG, if the image has transparency), and later decoded
+ * straight from the cache.
+ *
+ * Entries are addressed by a hash of the image URI, its size and modification time and the
+ * rendition size, so a replaced image simply misses the cache; [invalidate] drops the entries of
+ * a replaced image right away. The least recently used entries are evicted once the cache grows
+ * past [maxCacheBytes].
+ *
+ * [getImage] is called from the UI thread, so a miss never builds the entry there: the entry is
+ * built on [PipelineExecutor]'s background pool, and the caller decodes the original at the
+ * rendition's [Rendition.fallbackSampleSize] in the meantime. Neither does it wait on a build
+ * writing an entry, nor query the image more than once: entry names are remembered.
+ */
+object ImageDerivativeCache {
+    private val TAG = "ImageDerivativeCache"
+
+    private const val CACHE_DIR = "images"
+    private const val ENTRY_SUFFIX = ".img"
+    private const val JPEG_QUALITY = 90
+
+    /** default size cap of the cache */
+    const val CACHE_SIZE_DEFAULT: Long = 64L * 1024 * 1024
+
+    private val mDir = DiskCacheDir(CACHE_DIR, ENTRY_SUFFIX, TAG, CACHE_SIZE_DEFAULT)
+
+    /** size (in bytes) the cache is trimmed to after each new entry */
+    @JvmStatic
+    var maxCacheBytes: Long
+        get() = mDir.maxBytes
+        set(value) {
+            mDir.maxBytes = value
+        }
+
+    //Entry names of the renditions looked up so far, by story, image and rendition size, so that
+    //getImage() only queries and hashes an image once. prefetch() renews them and invalidate()
+    //drops them.
+    private val mEntryNames = ConcurrentHashMap<String, String>()
+
+    //Names of the entries queued to be built, so that repeated misses queue them once.
+    private val mPendingNames = HashSet<String>()
+
+    /**
+     * A size images are scaled to. A rendition covers its size (keeping the aspect ratio), unless
+     * the original image is smaller.
+     * @param fallbackSampleSize sample size to decode the original at if the cache cannot be used.
+     * The decoder rounds sample sizes down to a power of two, so it is one.
+     */
+    enum class Rendition(private val mWidth: Int, private val mHeight: Int, val fallbackSampleSize: Int) {
+        /** for the video export: twice the default video size of 768x576 */
+        EXPORT(1536, 1152, 1),
+        /** for the slide picture of the phases: the screen width and half its height */
+        SCREEN(0, 0, 2),
+        /** for the story list icons */
+        THUMBNAIL(128, 128, 16);
+
+        fun getWidth(context: Context): Int {
+            return if (this == SCREEN) context.resources.displayMetrics.widthPixels else mWidth
+        }
+
+        fun getHeight(context: Context): Int {
+            return if (this == SCREEN) context.resources.displayMetrics.heightPixels / 2 else mHeight
+        }
+    }
+
+    /**
+     * Get a rendition of a story image from the cache. On a miss, the rendition is written to the
+     * cache in the background; decode the image at [Rendition.fallbackSampleSize] meanwhile.
+     * @param relPath story-relative path of the image.
+     * @return the rendition, or null if it is not cached (yet).
+     */
+    @JvmStatic
+    fun getImage(context: Context, relPath: String, rendition: Rendition, story: Story): Bitmap? {
+        val name = getEntryName(context, relPath, rendition, story) ?: return null
+        val entry = getEntry(context, name)
+        if (entry != null) {
+            val bmp = BitmapFactory.decodeFile(entry.path)
+            if (bmp != null) return bmp
+            entry.delete()
+        }
+        enqueueBuild(context.applicationContext, relPath, story, rendition, name)
+        return null
+    }
+
+    /**
+     * Write a rendition to the cache in the background, unless it is already queued.
+     */
+    private fun enqueueBuild(context: Context, relPath: String, story: Story, rendition: Rendition, name: String) {
+        synchronized(mPendingNames) {
+            if (!mPendingNames.add(name)) return
+        }
+        PipelineExecutor.submitBackground(Runnable {
+            try {
+                build(context, relPath, story, listOf(rendition), listOf(name)).forEach { it?.recycle() }
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to cache $relPath", e)
+            } finally {
+                synchronized(mPendingNames) {
+                    mPendingNames.remove(name)
+                }
+            }
+        })
+    }
+
+    /**
+     * Write every rendition of the images of a story to the cache in the background, so that
+     * the phases, the story list and the export find them there.
+     */
+    @JvmStatic
+    fun prefetch(context: Context, story: Story) {
+        val appContext = context.applicationContext
+        val paths = story.slides.map { it.imageFile }.filter { it != "" }.distinct()
+        PipelineExecutor.submitBackground(Runnable {
+            for (path in paths) {
+                try {
+                    val renditions = ArrayList<Rendition>()
+                    val names = ArrayList<String>()
+                    for (rendition in Rendition.values()) {
+                        val name = getEntryName(appContext, path, rendition, story, true) ?: continue
+                        if (getEntry(appContext, name) == null) {
+                            renditions.add(rendition)
+                            names.add(name)
+                        }
+                    }
+                    if (renditions.isNotEmpty()) {
+                        build(appContext, path, story, renditions, names).forEach { it?.recycle() }
+                    }
+                } catch (e: Exception) {
+                    Log.w(TAG, "Failed to cache renditions of $path", e)
+                }
+            }
+        })
+    }
+
+    /**
+     * Drop the entries of a story image, such as after it has been replaced.
+     */
+    @JvmStatic
+    fun invalidate(context: Context, relPath: String, story: Story) {
+        val memoPrefix = "${story.title}|$relPath|"
+        mEntryNames.keys.removeAll { it.startsWith(memoPrefix) }
+        val prefix = getPathKey(relPath, story) ?: return
+        mDir.delete(context, "$prefix-")
+    }
+
+    /**
+     * Decode an image once and write the given renditions of it.
+     * @return the renditions, with null for those that could not be made.
+     */
+    private fun build(context: Context, relPath: String, story: Story,
+                      renditions: List<Rendition>, names: List<String>): List<Bitmap?> {
+        val failed = renditions.map { null as Bitmap? }
+
+        val options = BitmapFactory.Options()
+        options.inJustDecodeBounds = true
+        val boundsStream = getStoryChildInputStream(context, relPath, story.title) ?: return failed
+        boundsStream.use { BitmapFactory.decodeStream(it, null, options) }
+        if (options.outWidth <= 0 || options.outHeight <= 0) return failed
+
+        //Decode at the sample size of the largest rendition.
+        var sampleSize = Int.MAX_VALUE
+        for (rendition in renditions) {
+            sampleSize = Math.min(sampleSize, BitmapScaler.getCoverSampleSize(options.outWidth, options.outHeight,
+                    rendition.getWidth(context), rendition.getHeight(context)))
+        }
+        options.inJustDecodeBounds = false
+        options.inSampleSize = sampleSize
+        val decoded = getStoryChildInputStream(context, relPath, story.title)?.use {
+            BitmapFactory.decodeStream(it, null, options)
+        } ?: return failed
+
+        val bitmaps = ArrayList<Bitmap?>()
+        for (i in renditions.indices) {
+            val bmp = scale(decoded, renditions[i].getWidth(context), renditions[i].getHeight(context))
+            commit(context, bmp, names[i])
+            bitmaps.add(bmp)
+        }
+        if (bitmaps.none { it === decoded }) decoded.recycle()
+        return bitmaps
+    }
+
+    /**
+     * Scale a bitmap down to the smallest size that still covers the given size.
+     */
+    private fun scale(bitmap: Bitmap, width: Int, height: Int): Bitmap {
+        val factor = Math.max(width / bitmap.width.toFloat(), height / bitmap.height.toFloat())
+        if (factor >= 1) return bitmap
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.width * factor)),
+                Math.max(1, Math.round(bitmap.height * factor)), true)
+    }
+
+    /**
+     * Write a rendition to the cache, replacing older versions of it, then trim the cache.
+     */
+    private fun commit(context: Context, bitmap: Bitmap, name: String) {
+        val partial = mDir.createPartial(context, name) ?: return
+        try {
+            FileOutputStream(partial).use {
+                if (bitmap.hasAlpha()) {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, it)
+                } else {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, it)
+                }
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Could not write $name", e)
+            partial.delete()
+            return
+        }
+
+        //Older versions of the image share the name up to the version hash.
+        mDir.commit(partial, name, name.substringBeforeLast('-') + "-")
+    }
+
+    /**
+     * Get the complete cache entry of a name, marking it as recently used.
+     * @return the entry file, or null on a cache miss.
+     */
+    private fun getEntry(context: Context, name: String): File? {
+        return mDir.getEntry(context, name)
+    }
+
+    /**
+     * Get the name of the entry of an image rendition: the hash of the image path, the rendition
+     * and the hash of the image version and rendition size.
+     * @param isRenewed whether to look at the image again even if its name is known.
+     * @return the name, or null if the image cannot be identified reliably enough to cache.
+     */
+    private fun getEntryName(context: Context, relPath: String, rendition: Rendition, story: Story,
+                             isRenewed: Boolean = false): String? {
+        if (relPath == "") return null
+        val width = rendition.getWidth(context)
+        val height = rendition.getHeight(context)
+        val memoKey = "${story.title}|$relPath|${rendition.name}|${width}x$height"
+        if (!isRenewed) {
+            mEntryNames[memoKey]?.let { return it }
+        }
+        val name = createEntryName(context, relPath, rendition, story, width, height) ?: return null
+        mEntryNames[memoKey] = name
+        return name
+    }
+
+    private fun createEntryName(context: Context, relPath: String, rendition: Rendition, story: Story,
+                                width: Int, height: Int): String? {
+        val version = DiskCacheDir.getFileVersion(context, relPath, story.title) ?: return null
+        val pathKey = getPathKey(relPath, story) ?: return null
+        val versionKey = DiskCacheDir.hash("$version|$width|$height") ?: return null
+        return pathKey + "-" + rendition.name.toLowerCase() + "-" + versionKey
+    }
+
+    private fun getPathKey(relPath: String, story: Story): String? {
+        val uri = getStoryUri(relPath, story.title) ?: return null
+        return DiskCacheDir.hash(uri.toString())
+    }
+}
@@ -0,0 +1,359 @@
+package org.sil.storyproducer.tools.media
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * Duration and format of an audio file, as read from its headers.
+ * @param durationUs duration in microseconds.
+ * @param sampleRate sample rate in Hz.
+ * @param channelCount number of channels.
+ * @param mime MIME type of the audio, or "" if the codec is not one Android names.
+ */
+class AudioHeader(val durationUs: Long, val sampleRate: Int, val channelCount: Int, val mime: String)
+
+/**
+ *
+ * Reads the duration and format of MP4/M4A, MP3 and WAV audio files straight from their headers,
+ * with a handful of small reads, instead of setting up a decoder or metadata retriever.
+ *
+ *
+ * MP4 files are read from the audio track's mdhd and stsd boxes (or mvhd if the track has no
+ * duration). MP3 files are read from the Xing/Info or VBRI header of the first frame, or else are
+ * taken to have a constant bit rate. WAV files are read from the fmt and data chunks.
+ * Anything else, or any file which does not parse cleanly, gives null, so callers should fall
+ * back to a full probe.
+ */
+object AudioHeaderProbe {
+    //How far past an ID3 tag to look for the first MP3 frame.
+    private const val MP3_SYNC_WINDOW = 64 * 1024
+
+    private val MP3_BITRATES_KBPS = arrayOf(
+            //MPEG-1 layer I, II, III
+            intArrayOf(0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448),
+            intArrayOf(0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384),
+            intArrayOf(0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320),
+            //MPEG-2/2.5 layer I, and II and III
+            intArrayOf(0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256),
+            intArrayOf(0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160))
+    private val MP3_SAMPLE_RATES = intArrayOf(44100, 48000, 32000)
+    private const val MP3_MIME = "audio/mpeg"
+
+    /**
+     * Read the headers of an audio file.
+     * @param channel the file, which must support positioned reads.
+     * @return the duration and format, or null if the file is not recognized.
+     */
+    fun probe(channel: FileChannel): AudioHeader? {
+        return try {
+            val reader = Reader(channel)
+            val magic = reader.read(0, 12) ?: return null
+            when {
+                matches(magic, 4, "ftyp") -> probeMp4(reader)
+                matches(magic, 0, "RIFF") && matches(magic, 8, "WAVE") -> probeWav(reader)
+                matches(magic, 0, "ID3") || isMp3Sync(magic, 0) -> probeMp3(reader)
+                else -> null
+            }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun probeMp4(r: Reader): AudioHeader? {
+        val moov = findBox(r, 0, r.size, "moov") ?: return null
+        val mvhd = findBox(r, moov.start, moov.end, "mvhd")
+        val movieDurationUs = if (mvhd != null) readMp4DurationUs(r, mvhd) else -1
+
+        var trak = findBox(r, moov.start, moov.end, "trak")
+        while (trak != null) {
+            val header = probeMp4Track(r, trak, movieDurationUs)
+            if (header != null) return header
+            trak = findBox(r, trak.end, moov.end, "trak")
+        }
+        return null
+    }
+
+    private fun probeMp4Track(r: Reader, trak: Box, movieDurationUs: Long): AudioHeader? {
+        val mdia = findBox(r, trak.start, trak.end, "mdia") ?: return null
+        //Full box header (4), pre_defined (4), handler_type (4)
+        val hdlr = findBox(r, mdia.start, mdia.end, "hdlr") ?: return null
+        val handler = r.read(hdlr.start + 8, 4) ?: return null
+        if (!matches(handler, 0, "soun")) return null
+
+        val mdhd = findBox(r, mdia.start, mdia.end, "mdhd") ?: return null
+        var durationUs = readMp4DurationUs(r, mdhd)
+        if (durationUs <= 0) durationUs = movieDurationUs
+        if (durationUs <= 0) return null
+
+        val minf = findBox(r, mdia.start, mdia.end, "minf") ?: return null
+        val stbl = findBox(r, minf.start, minf.end, "stbl") ?: return null
+        val stsd = findBox(r, stbl.start, stbl.end, "stsd") ?: return null
+        //Full box header (4), entry_count (4), then the first sample entry: box header (8),
+        //reserved (6), data_reference_index (2), reserved (8), channelcount (2), samplesize (2),
+        //pre_defined (2), reserved (2), samplerate (4, 16.16 fixed point)
+        val entry = r.read(stsd.start + 8, 36) ?: return null
+        val mime = getMp4AudioMime(entry)
+        val channelCount = entry.getShort(24).toInt() and 0xFFFF
+        var sampleRate = entry.getInt(32) ushr 16
+        if (sampleRate == 0) {
+            //Rates over 65535 Hz don't fit; the media timescale is usually the sample rate.
+            sampleRate = readMp4Timescale(r, mdhd)
+        }
+        if (channelCount == 0 || sampleRate <= 0) return null
+        return AudioHeader(durationUs, sampleRate, channelCount, mime)
+    }
+
+    /**
+     * Get the MIME type of the codec named by the type of an MP4 audio sample entry.
+     */
+    private fun getMp4AudioMime(entry: ByteBuffer): String {
+        return when {
+            matches(entry, 4, "mp4a") -> "audio/mp4a-latm"
+            matches(entry, 4, "samr") -> "audio/3gpp"
+            matches(entry, 4, "sawb") -> "audio/amr-wb"
+            matches(entry, 4, "fLaC") -> "audio/flac"
+            matches(entry, 4, "Opus") -> "audio/opus"
+            else -> ""
+        }
+    }
+
+    /**
+     * Read the timescale of an mvhd or mdhd box, which share their first fields.
+     */
+    private fun readMp4Timescale(r: Reader, box: Box): Int {
+        val header = readMp4TimeHeader(r, box) ?: return 0
+        return if (header.get(0).toInt() == 1) header.getInt(20) else header.getInt(12)
+    }
+
+    /**
+     * Read the duration of an mvhd or mdhd box.
+     * @return the duration in microseconds, or -1 if it is not given.
+     */
+    private fun readMp4DurationUs(r: Reader, box: Box): Long {
+        val header = readMp4TimeHeader(r, box) ?: return -1
+        val timescale: Long
+        val duration: Long
+        if (header.get(0).toInt() == 1) {
+            timescale = header.getInt(20).toLong() and 0xFFFFFFFFL
+            duration = header.getLong(24)
+            if (duration == -1L) return -1
+        } else {
+            timescale = header.getInt(12).toLong() and 0xFFFFFFFFL
+            duration = header.getInt(16).toLong() and 0xFFFFFFFFL
+            if (duration == 0xFFFFFFFFL) return -1
+        }
+        if (timescale == 0L || duration <= 0) return -1
+        return scale(duration, 1000000, timescale)
+    }
+
+    /**
+     * Read the full box header, times, timescale and duration of an mvhd or mdhd box.
+     */
+    private fun readMp4TimeHeader(r: Reader, box: Box): ByteBuffer? {
+        val version = r.read(box.start, 1) ?: return null
+        val length = if (version.get(0).toInt() == 1) 32 else 20
+        if (box.start + length > box.end) return null
+        return r.read(box.start, length)
+    }
+
+    private fun findBox(r: Reader, from: Long, to: Long, type: String): Box? {
+        var position = from
+        while (position + 8 <= to) {
+            val header = r.read(position, 16) ?: r.read(position, 8) ?: return null
+            var size = header.getInt(0).toLong() and 0xFFFFFFFFL
+            var headerSize = 8L
+            if (size == 1L) {
+                if (header.limit() < 16) return null
+                size = header.getLong(8)
+                headerSize = 16
+            } else if (size == 0L) {
+                size = to - position
+            }
+            if (size < headerSize || position + size > to) return null
+            if (matches(header, 4, type)) {
+                return Box(position + headerSize, position + size)
+            }
+            position += size
+        }
+        return null
+    }
+
+    private fun probeWav(r: Reader): AudioHeader? {
+        var channelCount = 0
+        var sampleRate = 0
+        var byteRate = 0L
+        var position = 12L
+        while (position + 8 <= r.size) {
+            val header = r.read(position, 8) ?: return null
+            header.order(ByteOrder.LITTLE_ENDIAN)
+            val size = header.getInt(4).toLong() and 0xFFFFFFFFL
+            val start = position + 8
+            if (matches(header, 0, "fmt ")) {
+                //audio format (2), channels (2), sample rate (4), byte rate (4)
+                val fmt = r.read(start, 12) ?: return null
+                fmt.order(ByteOrder.LITTLE_ENDIAN)
+                channelCount = fmt.getShort(2).toInt() and 0xFFFF
+                sampleRate = fmt.getInt(4)
+                byteRate = fmt.getInt(8).toLong() and 0xFFFFFFFFL
+            } else if (matches(header, 0, "data")) {
+                if (channelCount == 0 || sampleRate <= 0 || byteRate == 0L) return null
+                //Streamed files may not have had the size filled in.
+                var dataSize = r.size - start
+                if (size in 1 until dataSize) dataSize = size
+                return AudioHeader(scale(dataSize, 1000000, byteRate), sampleRate, channelCount, "audio/raw")
+            }
+            //Chunks are padded to an even size.
+            position = start + size + (size and 1)
+        }
+        return null
+    }
+
+    private fun probeMp3(r: Reader): AudioHeader? {
+        var audioStart = 0L
+        val id3 = r.read(0, 10) ?: return null
+        if (matches(id3, 0, "ID3")) {
+            //The tag size is a 28-bit "syncsafe" integer.
+            var tagSize = 0L
+            for (i in 6..9) {
+                tagSize = (tagSize shl 7) or (id3.get(i).toLong() and 0x7F)
+            }
+            val hasFooter = id3.get(5).toInt() and 0x10 != 0
+            audioStart = 10 + tagSize + if (hasFooter) 10 else 0
+        }
+
+        val window = r.read(audioStart, MP3_SYNC_WINDOW.toLong().coerceAtMost(r.size - audioStart).toInt())
+                ?: return null
+        var offset = 0
+        var frame: Mp3Frame? = null
+        while (offset + 4 <= window.limit()) {
+            frame = parseMp3Frame(window, offset)
+            if (frame != null) {
+                //A real frame is followed by another frame (or the end of the data).
+                val next = offset + frame.length
+                if (next + 4 > window.limit() || parseMp3Frame(window, next) != null) break
+                frame = null
+            }
+            offset++
+        }
+        if (frame == null) return null
+        val frameStart = audioStart + offset
+
+        //The Xing/Info header sits right after the side information.
+        val sideInfoSize = if (frame.isMpeg1) {
+            if (frame.channelCount == 1) 17 else 32
+        } else {
+            if (frame.channelCount == 1) 9 else 17
+        }
+        val xing = r.read(frameStart + 4 + sideInfoSize, 12)
+        if (xing != null && (matches(xing, 0, "Xing") || matches(xing, 0, "Info"))) {
+            val flags = xing.getInt(4)
+            if (flags and 0x1 != 0) {
+                val frameCount = xing.getInt(8).toLong() and 0xFFFFFFFFL
+                return frame.headerFor(frameCount)
+            }
+        }
+        //The VBRI header sits 32 bytes after the frame header.
+        val vbri = r.read(frameStart + 4 + 32, 18)
+        if (vbri != null && matches(vbri, 0, "VBRI")) {
+            val frameCount = vbri.getInt(14).toLong() and 0xFFFFFFFFL
+            return frame.headerFor(frameCount)
+        }
+
+        //Constant bit rate: the duration follows from the size of the audio data.
+        var audioEnd = r.size
+        val id3v1 = r.read(r.size - 128, 3)
+        if (id3v1 != null && matches(id3v1, 0, "TAG")) {
+            audioEnd -= 128
+        }
+        if (audioEnd <= frameStart) return null
+        return AudioHeader(scale(audioEnd - frameStart, 8000000, frame.bitRate.toLong()),
+                frame.sampleRate, frame.channelCount, MP3_MIME)
+    }
+
+    private fun isMp3Sync(buffer: ByteBuffer, offset: Int): Boolean {
+        return buffer.get(offset).toInt() and 0xFF == 0xFF && buffer.get(offset + 1).toInt() and 0xE0 == 0xE0
+    }
+
+    private fun parseMp3Frame(buffer: ByteBuffer, offset: Int): Mp3Frame? {
+        if (offset + 4 > buffer.limit() || !isMp3Sync(buffer, offset)) return null
+        val b1 = buffer.get(offset + 1).toInt()
+        val b2 = buffer.get(offset + 2).toInt()
+        val b3 = buffer.get(offset + 3).toInt()
+
+        //version: 0 = MPEG-2.5, 1 = reserved, 2 = MPEG-2, 3 = MPEG-1
+        val version = (b1 shr 3) and 0x3
+        //layer: 1 = III, 2 = II, 3 = I
+        val layer = (b1 shr 1) and 0x3
+        val bitRateIndex = (b2 shr 4) and 0xF
+        val sampleRateIndex = (b2 shr 2) and 0x3
+        if (version == 1 || layer == 0 || bitRateIndex == 0 || bitRateIndex == 15 || sampleRateIndex == 3) {
+            return null
+        }
+
+        val isMpeg1 = version == 3
+        val table = if (isMpeg1) 3 - layer else if (layer == 3) 3 else 4
+        val bitRate = MP3_BITRATES_KBPS[table][bitRateIndex] * 1000
+        val sampleRate = MP3_SAMPLE_RATES[sampleRateIndex] shr (if (isMpeg1) 0 else if (version == 2) 1 else 2)
+        val padding = (b2 shr 1) and 0x1
+        val channelCount = if ((b3 shr 6) and 0x3 == 3) 1 else 2
+
+        val samplesPerFrame: Int
+        val length: Int
+        if (layer == 3) {
+            samplesPerFrame = 384
+            length = (12 * bitRate / sampleRate + padding) * 4
+        } else {
+            samplesPerFrame = if (layer == 1 && !isMpeg1) 576 else 1152
+            length = samplesPerFrame / 8 * bitRate / sampleRate + padding
+        }
+        return Mp3Frame(isMpeg1, bitRate, sampleRate, channelCount, samplesPerFrame, length)
+    }
+
+    private class Mp3Frame(val isMpeg1: Boolean, val bitRate: Int, val sampleRate: Int,
+                           val channelCount: Int, val samplesPerFrame: Int, val length: Int) {
+        fun headerFor(frameCount: Long): AudioHeader? {
+            if (frameCount <= 0) return null
+            return AudioHeader(scale(frameCount * samplesPerFrame, 1000000, sampleRate.toLong()),
+                    sampleRate, channelCount, MP3_MIME)
+        }
+    }
+
+    private class Box(val start: Long, val end: Long)
+
+    private fun matches(buffer: ByteBuffer, offset: Int, text: String): Boolean {
+        if (offset + text.length > buffer.limit()) return false
+        for (i in text.indices) {
+            if (buffer.get(offset + i).toInt() != text[i].toInt()) return false
+        }
+        return true
+    }
+
+    /**
+     * Compute value * multiplier / divisor without overflowing for large values.
+     */
+    private fun scale(value: Long, multiplier: Long, divisor: Long): Long {
+        return value / divisor * multiplier + value % divisor * multiplier / divisor
+    }
+
+    /**
+     * Positioned reads of small, big-endian blocks of a file.
+     */
+    private class Reader(private val mChannel: FileChannel) {
+        val size: Long = mChannel.size()
+
+        /**
+         * @return the bytes read, or null if the file ends before them.
+         */
+        fun read(position: Long, length: Int): ByteBuffer? {
+            if (position < 0 || length <= 0 || position + length > size) return null
+            val buffer = ByteBuffer.allocate(length)
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, position + buffer.position()) < 0) return null
+            }
+            buffer.flip()
+            return buffer
+        }
+    }
+}
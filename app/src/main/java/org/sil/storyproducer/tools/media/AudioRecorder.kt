@@ -16,7 +16,10 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.file.copyToWorkspacePath
 import org.sil.storyproducer.tools.file.getStoryFileDescriptor
-import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.media.pipe.PipedMediaMuxer
+import org.sil.storyproducer.tools.media.pipe.PipedMediaSegmentConcatenator
+import org.sil.storyproducer.tools.media.pipe.PipelineExecutor
+import org.sil.storyproducer.tools.media.pipe.SourceUnacceptableException
 import org.sil.storyproducer.tools.media.story.AutoStoryMaker
 import org.sil.storyproducer.tools.media.story.StoryMaker
 import org.sil.storyproducer.tools.media.story.StoryPage
@@ -68,14 +71,22 @@ abstract class AudioRecorder(val activity: Activity) {
 
             val tempDestPath  = "${context.filesDir}/temp.mp4"
 
+            //Recordings made with the same settings can be joined without re-encoding them.
+            if (appendEncodedAudio(context, orgAudioRelPath, appendAudioRelPath, File(tempDestPath))) {
+                copyToWorkspacePath(context, Uri.fromFile(File(tempDestPath)),
+                        "${Workspace.activeDirRoot}/$orgAudioRelPath")
+                File(tempDestPath).delete()
+                MediaDurationIndex.update(context, listOf(orgAudioRelPath))
+                return
+            }
 
             val outputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
             val audioFormat = AutoStoryMaker.generateAudioFormat()
             val pages: MutableList<StoryPage> = mutableListOf()
 
-            var duration = MediaHelper.getAudioDuration(context, getStoryUri(orgAudioRelPath)!!)
+            var duration = MediaDurationIndex.getDuration(context, orgAudioRelPath)
             pages.add(StoryPage("",orgAudioRelPath,duration,null,null))
-            duration = MediaHelper.getAudioDuration(context, getStoryUri(appendAudioRelPath)!!)
+            duration = MediaDurationIndex.getDuration(context, appendAudioRelPath)
             pages.add(StoryPage("",appendAudioRelPath,duration,null,null))
 
             //If pages weren't generated, exit.
@@ -88,6 +99,43 @@ abstract class AudioRecorder(val activity: Activity) {
             copyToWorkspacePath(context, Uri.fromFile(File(tempDestPath)),
                     "${Workspace.activeDirRoot}/$orgAudioRelPath")
             File(tempDestPath).delete()
+            MediaDurationIndex.update(context, listOf(orgAudioRelPath))
+        }
+
+        /**
+         * Join two recordings by copying their encoded audio into a new file, one after the other.
+         * This only works if both recordings have the same codec configuration.
+         * @return whether the joined file was written.
+         */
+        private fun appendEncodedAudio(context: Context, orgAudioRelPath: String, appendAudioRelPath: String, dest: File): Boolean {
+            val concatenator = PipedMediaSegmentConcatenator(MediaHelper.MediaType.AUDIO)
+            concatenator.addSegment(context, orgAudioRelPath, 0)
+            concatenator.addSegment(context, appendAudioRelPath, PipedMediaSegmentConcatenator.FOLLOW_PREVIOUS)
+            try {
+                concatenator.setup()
+            } catch (e: SourceUnacceptableException) {
+                Log.i(AUDIO_RECORDER, "Recordings differ in format; re-encoding to append", e)
+                concatenator.close()
+                return false
+            } catch (e: IOException) {
+                Log.w(AUDIO_RECORDER, "Could not read recordings to append", e)
+                concatenator.close()
+                return false
+            }
+
+            dest.delete()
+            val muxer = PipedMediaMuxer(dest.absolutePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            try {
+                muxer.addSource(concatenator)
+                if (muxer.crunch()) return true
+            } catch (e: Exception) {
+                Log.w(AUDIO_RECORDER, "Could not append recordings without re-encoding", e)
+            } finally {
+                muxer.close()
+                concatenator.close()
+            }
+            dest.delete()
+            return false
         }
     }
 }
@@ -96,6 +144,7 @@ abstract class AudioRecorder(val activity: Activity) {
 class AudioRecorderMP4(activity: Activity) : AudioRecorder(activity) {
 
     private var mRecorder = MediaRecorder()
+    private var mRelPath = ""
 
     private fun initRecorder(){
         mRecorder.release()
@@ -110,6 +159,7 @@ class AudioRecorderMP4(activity: Activity) : AudioRecorder(activity) {
 
     override fun startNewRecording(relPath: String){
         initRecorder()
+        mRelPath = relPath
         mRecorder.setOutputFile(getStoryFileDescriptor(activity, relPath,"","w"))
         isRecording = true
         try{
@@ -133,6 +183,12 @@ class AudioRecorderMP4(activity: Activity) : AudioRecorder(activity) {
             mRecorder.reset()
             mRecorder.release()
             isRecording = false
+
+            //Index the new recording now, rather than when it is first played or exported.
+            val context = activity.applicationContext
+            val relPath = mRelPath
+            val dirRoot = Workspace.activeDirRoot
+            PipelineExecutor.submitBackground(Runnable { MediaDurationIndex.update(context, listOf(relPath), dirRoot) })
         } catch (stopException: RuntimeException) {
             Toast.makeText(activity, R.string.recording_toolbar_error_recording, Toast.LENGTH_SHORT).show()
             FirebaseCrashlytics.getInstance().recordException(stopException)
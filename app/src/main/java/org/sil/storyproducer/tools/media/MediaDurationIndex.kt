@@ -0,0 +1,176 @@
+package org.sil.storyproducer.tools.media
+
+import android.content.Context
+import android.util.Log
+import com.squareup.moshi.JsonClass
+import com.squareup.moshi.Moshi
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.getStoryChildOutputStream
+import org.sil.storyproducer.tools.file.getStoryFileStat
+import org.sil.storyproducer.tools.file.getStoryText
+import org.sil.storyproducer.tools.file.getStoryUri
+
+internal const val MEDIA_INDEX_FILE = "media_index.json"
+
+/**
+ * Indexed duration and format of an audio file. The format is left empty (a sample rate of 0) if
+ * the file's headers could not be read.
+ */
+@JsonClass(generateAdapter = true)
+class MediaIndexEntry(var size: Long, var modified: Long, var durationUs: Long,
+                      var mime: String = "", var sampleRate: Int = 0, var channelCount: Int = 0)
+
+@JsonClass(generateAdapter = true)
+class MediaIndex(var entries: MutableMap<String, MediaIndexEntry> = HashMap()) {
+    companion object
+}
+
+/**
+ *
+ * Index of the durations and formats of a story's audio files, saved next to its story.json.
+ *
+ * Probing a file with a [android.media.MediaMetadataRetriever] takes a long time, so the
+ * duration of each file, and its MIME type, sample rate and channel count as read by
+ * [AudioHeaderProbe], are kept along with the file's size and modification time. A lookup only
+ * queries the size and modification time, and probes the file again if either has changed.
+ * Lookups made with [getDuration] and [getFormat] are kept in memory until [save] is called.
+ */
+object MediaDurationIndex {
+    private val TAG = "MediaDurationIndex"
+
+    private var mDirRoot = ""
+    private var mIndex = MediaIndex()
+    private var mIsDirty = false
+
+    /**
+     * Get the duration of a story audio file in microseconds.
+     * @param relPath story-relative path of the audio file.
+     * @return microsecond duration of the audio file, or 0 if it could not be read.
+     */
+    @Synchronized
+    fun getDuration(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot): Long {
+        return getEntry(context, relPath, dirRoot, false)?.durationUs ?: 0
+    }
+
+    /**
+     * Get the duration and format of a story audio file.
+     * @param relPath story-relative path of the audio file.
+     * @return the duration and format, or null if the file's headers could not be read.
+     */
+    @Synchronized
+    fun getFormat(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot): AudioHeader? {
+        val entry = getEntry(context, relPath, dirRoot, true) ?: return null
+        if (entry.sampleRate <= 0 || entry.channelCount <= 0) return null
+        return AudioHeader(entry.durationUs, entry.sampleRate, entry.channelCount, entry.mime)
+    }
+
+    /**
+     * Look up a file, probing it if it is not indexed or has changed.
+     * @param isFormatNeeded whether to read the headers of an indexed file without a format.
+     * @return the entry (only kept in the index if the file could be identified and read), or
+     * null if the file cannot be found.
+     */
+    private fun getEntry(context: Context, relPath: String, dirRoot: String, isFormatNeeded: Boolean): MediaIndexEntry? {
+        if (relPath == "" || dirRoot == "") return null
+        val index = getIndex(context, dirRoot)
+
+        val stat = getStoryFileStat(context, relPath, dirRoot)
+        //Without both a size and a modification time, a changed file could look unchanged.
+        val isStatUsable = stat != null && stat.first > 0 && stat.second > 0
+        val entry = index.entries[relPath]
+        if (entry != null && isStatUsable && entry.size == stat!!.first && entry.modified == stat.second) {
+            //Entries written before formats were indexed have none.
+            if (isFormatNeeded && entry.sampleRate <= 0) {
+                val uri = getStoryUri(relPath, dirRoot) ?: return entry
+                val header = MediaHelper.probeAudioHeader(context, uri) ?: return entry
+                entry.mime = header.mime
+                entry.sampleRate = header.sampleRate
+                entry.channelCount = header.channelCount
+                mIsDirty = true
+            }
+            return entry
+        }
+
+        val uri = getStoryUri(relPath, dirRoot) ?: return null
+        val header = MediaHelper.probeAudioHeader(context, uri)
+        val durationUs = header?.durationUs ?: MediaHelper.getAudioDuration(context, uri)
+        val probed = MediaIndexEntry(stat?.first ?: 0, stat?.second ?: 0, durationUs,
+                header?.mime ?: "", header?.sampleRate ?: 0, header?.channelCount ?: 0)
+        if (isStatUsable && durationUs > 0) {
+            index.entries[relPath] = probed
+            mIsDirty = true
+        } else if (index.entries.remove(relPath) != null) {
+            mIsDirty = true
+        }
+        if (MediaHelper.VERBOSE) Log.v(TAG, "probed $relPath: $durationUs us, ${probed.sampleRate} Hz, ${probed.channelCount} channels")
+        return probed
+    }
+
+    /**
+     * Probe audio files which may have changed, e.g. a new recording, and save the index.
+     * @param relPaths story-relative paths of the audio files.
+     */
+    @Synchronized
+    fun update(context: Context, relPaths: Collection<String>, dirRoot: String = Workspace.activeDirRoot) {
+        for (relPath in relPaths) {
+            getDuration(context, relPath, dirRoot)
+        }
+        save(context)
+    }
+
+    /**
+     * Index the audio files of a newly imported story.
+     */
+    fun update(context: Context, story: Story, dirRoot: String) {
+        val relPaths = LinkedHashSet<String>()
+        for (slide in story.slides) {
+            relPaths.add(Story.getFilename(slide.narrationFile))
+        }
+        relPaths.remove("")
+        update(context, relPaths, dirRoot)
+    }
+
+    /**
+     * Write the index of the story last looked up, if it has changed.
+     */
+    @Synchronized
+    fun save(context: Context) {
+        if (!mIsDirty || mDirRoot == "") return
+        val moshi = Moshi.Builder().build()
+        val adapter = MediaIndex.jsonAdapter(moshi)
+        val oStream = getStoryChildOutputStream(context,
+                "$PROJECT_DIR/$MEDIA_INDEX_FILE", "", mDirRoot) ?: return
+        try {
+            oStream.write(adapter.toJson(mIndex).toByteArray(Charsets.UTF_8))
+            mIsDirty = false
+        } catch (e: Exception) {
+            Log.w(TAG, "Could not write the media index of $mDirRoot", e)
+        } finally {
+            oStream.close()
+        }
+    }
+
+    private fun getIndex(context: Context, dirRoot: String): MediaIndex {
+        if (dirRoot != mDirRoot) {
+            save(context)
+            mIndex = load(context, dirRoot) ?: MediaIndex()
+            mDirRoot = dirRoot
+            mIsDirty = false
+        }
+        return mIndex
+    }
+
+    private fun load(context: Context, dirRoot: String): MediaIndex? {
+        try {
+            val fileContents = getStoryText(context, "$PROJECT_DIR/$MEDIA_INDEX_FILE", dirRoot)
+                    ?: return null
+            return MediaIndex.jsonAdapter(Moshi.Builder().build()).fromJson(fileContents)
+        } catch (e: Exception) {
+            //The index is only a cache; start over.
+            Log.w(TAG, "Could not read the media index of $dirRoot", e)
+        }
+        return null
+    }
+}
@@ -5,6 +5,7 @@ import android.media.MediaCodec
 import android.media.MediaFormat
 import android.media.MediaMetadataRetriever
 import android.net.Uri
+import android.os.ParcelFileDescriptor
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.ShortBuffer
@@ -35,6 +36,11 @@ object MediaHelper {
      * @return microsecond duration of the audio file
      */
     fun getAudioDuration(context: Context, uri: Uri): Long {
+        val header = probeAudioHeader(context, uri)
+        if (header != null && header.durationUs > 0) {
+            return header.durationUs
+        }
+
         val mmr = MediaMetadataRetriever()
         try {
             mmr.setDataSource(context, uri)
@@ -47,6 +53,24 @@ object MediaHelper {
         return 0
     }
 
+    /**
+     * Read the duration and format of an audio file from its headers with [AudioHeaderProbe].
+     * @param context
+     * @param uri
+     * @return the duration and format, or null if the headers could not be read.
+     */
+    fun probeAudioHeader(context: Context, uri: Uri): AudioHeader? {
+        try {
+            val pfd = context.contentResolver.openFileDescriptor(uri, "r") ?: return null
+            ParcelFileDescriptor.AutoCloseInputStream(pfd).channel.use { channel ->
+                return AudioHeaderProbe.probe(channel)
+            }
+        } catch (e: Exception) {
+            //Not seekable, or not there at all; let the caller probe it the slow way.
+        }
+        return null
+    }
+
     /**
      * Get a 2-decimal number for printing.
      * @param number
@@ -95,6 +119,17 @@ object MediaHelper {
         throw RuntimeException("Unclassified mime type: $mime")
     }
 
+    /**
+     * Saturate a (wider) sample value into the 16-bit sample range.
+     * @param value sample value
+     * @return value clipped to [Short.MIN_VALUE, Short.MAX_VALUE]
+     */
+    fun clampToShort(value: Int): Short {
+        return (if (value > Short.MAX_VALUE) Short.MAX_VALUE.toInt()
+                else if (value < Short.MIN_VALUE) Short.MIN_VALUE.toInt()
+                else value).toShort()
+    }
+
     /**
      * Get a ShortBuffer view of a ByteBuffer.
      * @param buffer
@@ -43,13 +43,53 @@ class KenBurnsEffect
         dBottom = mEnd.bottom - mStart.bottom
     }
 
+    /**
+     * Whether the starting and ending crops are the same, i.e. the effect does not move.
+     */
+    val isStatic: Boolean
+        get() = dLeft == 0 && dTop == 0 && dRight == 0 && dBottom == 0
+
+    /**
+     * The part of the image the effect ever shows: every intermediary crop lies within the union
+     * of the starting and ending crops.
+     */
+    val bounds: Rect
+        get() {
+            val bounds = Rect(mStart)
+            bounds.union(mEnd)
+            return bounds
+        }
+
+    /**
+     * Width of the narrowest crop of the effect, in image pixels.
+     */
+    val minCropWidth: Int
+        get() = Math.min(mStart.width(), mEnd.width())
+
+    /**
+     * Height of the shortest crop of the effect, in image pixels.
+     */
+    val minCropHeight: Int
+        get() = Math.min(mStart.height(), mEnd.height())
+
+    /**
+     * A string which is the same for any two effects with the same crops.
+     */
+    val cacheKey: String
+        get() = mStart.flattenToString() + ">" + mEnd.flattenToString()
+
     /**
      * Obtain an intermediary crop from the Ken Burns effect.
      * @param position time-step between 0 and 1 (inclusive)
      * where 0 corresponds to the starting crop.
+     * @param imLeft left edge, in image pixels, of the region of the image that was decoded
+     * (see [bounds]); 0 if the whole image was decoded.
+     * @param imTop top edge, in image pixels, of the region of the image that was decoded.
+     * @param out rectangle to write the result into, so that drawing frames need not allocate.
      * @return stretch of original image over screen size to make crop
      */
-    fun revInterpolate(position: Float, scrWidth: Int, scrHeight: Int, imWidth: Int, imHeight: Int, downSample: Float): RectF {
+    fun revInterpolate(position: Float, scrWidth: Int, scrHeight: Int, imWidth: Int, imHeight: Int, downSample: Float,
+                       imLeft: Int = 0, imTop: Int = 0, out: RectF = RectF()): RectF {
         var pos = position
         //Clamp position to [0, 1]
         if (pos < 0) {
@@ -60,10 +100,10 @@ class KenBurnsEffect
 
         //Start by calculating the "internal rectangle" that is stored in the Bloom file
         //This is where the screen is looking at the picture
-        val irL = (mStart.left + pos * dLeft)/downSample
-        val irT = (mStart.top + pos * dTop)/downSample
-        val irR = (mStart.right + pos * dRight)/downSample
-        val irB = (mStart.bottom + pos * dBottom)/downSample
+        val irL = (mStart.left - imLeft + pos * dLeft)/downSample
+        val irT = (mStart.top - imTop + pos * dTop)/downSample
+        val irR = (mStart.right - imLeft + pos * dRight)/downSample
+        val irB = (mStart.bottom - imTop + pos * dBottom)/downSample
         val irH = irB - irT
         val irW = irR - irL
 
@@ -73,7 +113,8 @@ class KenBurnsEffect
         val left = -irL/irW*scrWidth
         val right = ((imWidth-irR)/irW + 1)*scrWidth
 
-        return RectF(left, top, right, bottom)
+        out.set(left, top, right, bottom)
+        return out
     }
 
 
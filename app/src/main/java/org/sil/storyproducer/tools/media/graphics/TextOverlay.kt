@@ -1,8 +1,10 @@
 package org.sil.storyproducer.tools.media.graphics
 
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import android.graphics.RectF
 import android.text.Layout
 import android.text.StaticLayout
 import android.text.TextPaint
@@ -16,7 +18,6 @@ class TextOverlay(private val mText: String) {
     private var mBgAlpha: Int = 192  // Background for Text transparency, 0-255, 255 is opaque
     private val mOutlineColor = Color.BLACK
     private var mPadding = 2
-    private var mPaddingActual: Int = 0
     private var mHorizontalAlign: Layout.Alignment = Layout.Alignment.ALIGN_CENTER
     private var mVerticalAlign: Layout.Alignment = Layout.Alignment.ALIGN_CENTER
 
@@ -29,8 +30,6 @@ class TextOverlay(private val mText: String) {
     private var mTextOutlinePaint: TextPaint? = null
     private var mTextLayout: StaticLayout? = null
     private var mTextOutlineLayout: StaticLayout? = null
-    private var mTextWidth: Int = 0
-    private var mTextHeight: Int = 0
 
     private var mTranslateX: Float = 0.toFloat()
     private var mTranslateY: Float = 0.toFloat()
@@ -38,6 +37,15 @@ class TextOverlay(private val mText: String) {
     // 2/22/2022 - DKH, Issue 456: Add grey rectangle to backdrop text "sub titles"
     private var mDrawTextBG: Boolean = false    // set default to false
 
+    val text: String
+        get() = mText
+
+    /**
+     * A string which is the same for any two overlays which draw the same way.
+     */
+    val cacheKey: String
+        get() = "$mText|$mFontSize|$mPadding|$mHorizontalAlign|$mVerticalAlign|$mTextColor|$mTextBgColor|$mBgAlpha"
+
     fun draw(canvas: Canvas) {
         if (mCanvasWidth != canvas.width || mCanvasHeight != canvas.height) {
             mCanvasWidth = canvas.width
@@ -54,17 +62,9 @@ class TextOverlay(private val mText: String) {
         // Determine if we need to draw a background text box.  mDrawTextBG is set to true during
         // video creation.
         if (mText.length > 0 && mDrawTextBG) {
-            // Update a few values in the text box definition for drawing the rectangle
-            val mAlpha = mTextLayout!!.paint.getAlpha() // grab the current alpha
-            mTextLayout!!.paint.color = mTextBgColor    // set the background color
-            mTextLayout!!.paint.setAlpha(mBgAlpha)      // set the amount of transparency
-
             // draw a rectangle behind the text
-            canvas.drawRect(0.0F, 0.0F, mCanvasWidth.toFloat(), mCanvasHeight.toFloat(), mTextLayout!!.paint);
-            // reset the updated values
-            mTextLayout!!.paint.color = mTextColor      // reset back to the text color
-            mTextLayout!!.paint.setAlpha(mAlpha)        // reset to original alpha
-            
+            canvas.drawRect(0.0F, 0.0F, mCanvasWidth.toFloat(), mCanvasHeight.toFloat(), createBgPaint())
+
             mDrawTextBG = false  // reset to default of no background color
         }
         mTextOutlineLayout!!.draw(canvas)
@@ -72,6 +72,64 @@ class TextOverlay(private val mText: String) {
         canvas.restore()
     }
 
+    /**
+     * Text drawn once into a bitmap, to be drawn on every frame of a video at any alpha.
+     * The bitmap covers the part of the canvas from (left, top) that the text can touch.
+     * The background box, if any, is drawn separately, so that it keeps its own opacity.
+     */
+    class Layer(val bitmap: Bitmap, val left: Float, val top: Float,
+                private val mBackground: RectF?, private val mBackgroundPaint: Paint?) {
+
+        /**
+         * Draw the background box, then the text at the given alpha, as [TextOverlay.draw] does.
+         * @param paint paint for the text, whose alpha is set here.
+         */
+        fun draw(canvas: Canvas, alpha: Float, paint: Paint) {
+            if (mBackground != null && mBackgroundPaint != null) {
+                canvas.drawRect(mBackground, mBackgroundPaint)
+            }
+            paint.alpha = (alpha * 255).toInt()
+            canvas.drawBitmap(bitmap, left, top, paint)
+        }
+
+        fun recycle() {
+            bitmap.recycle()
+        }
+    }
+
+    /**
+     * Draw the text, fully opaque, into a new [Layer] for a canvas of the given size.
+     * Unlike [draw], this does not change the overlay, so it may be called from several threads.
+     * @param drawBackground whether to draw the background box behind the text.
+     * @return the layer, or null if there is nothing to draw.
+     */
+    fun renderLayer(canvasWidth: Int, canvasHeight: Int, drawBackground: Boolean): Layer? {
+        if (mText.isEmpty()) return null
+        val layouts = createLayouts(canvasWidth, canvasHeight, 1f)
+
+        //The outline's stroke reaches half its width outside of the layout.
+        val inset = Math.ceil(layouts.outlineLayout.paint.strokeWidth / 2.0).toInt() + 1
+        val left = Math.max(0, layouts.translateX.toInt() - inset)
+        val top = Math.max(0, layouts.translateY.toInt() - inset)
+        val right = Math.min(canvasWidth, layouts.translateX.toInt() + layouts.textLayout.width + inset)
+        val bottom = Math.min(canvasHeight, layouts.translateY.toInt() + layouts.textLayout.height + inset)
+        if (right <= left || bottom <= top) return null
+
+        val bitmap = Bitmap.createBitmap(right - left, bottom - top, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        canvas.translate(layouts.translateX - left, layouts.translateY - top)
+        layouts.outlineLayout.draw(canvas)
+        layouts.textLayout.draw(canvas)
+
+        //The same box draw() puts behind the text: from the text's origin to the canvas edges.
+        val background = if (drawBackground) {
+            RectF(layouts.translateX, layouts.translateY, canvasWidth.toFloat(), canvasHeight.toFloat())
+        } else {
+            null
+        }
+        return Layer(bitmap, left.toFloat(), top.toFloat(), background, background?.let { createBgPaint() })
+    }
+
     /**
      * Set the **relative** font size for the text.
      * @param fontSize
@@ -88,9 +146,11 @@ class TextOverlay(private val mText: String) {
         mDrawTextBG = newVal
     }
 
+    /**
+     * Set the opacity of the text for [draw]. This does not lay out the text again.
+     */
     fun setAlpha(alpha: Float) {
         mAlpha = alpha
-        mIsDirty = true
         if (mTextPaint != null && mTextOutlinePaint != null) {
             mTextPaint!!.alpha = (mAlpha * 255).toInt()
             mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
@@ -107,52 +167,76 @@ class TextOverlay(private val mText: String) {
         mIsDirty = true
     }
 
+    /**
+     * The text laid out for one canvas size.
+     */
+    private class Layouts(val textLayout: StaticLayout, val outlineLayout: StaticLayout,
+                          val translateX: Float, val translateY: Float)
+
     private fun setup() {
-        val fontSizeScale = mCanvasHeight / FONT_SIZE_SCALE_FACTOR.toFloat()
+        val layouts = createLayouts(mCanvasWidth, mCanvasHeight, mAlpha)
+        mTextLayout = layouts.textLayout
+        mTextOutlineLayout = layouts.outlineLayout
+        mTextPaint = layouts.textLayout.paint
+        mTextOutlinePaint = layouts.outlineLayout.paint
+        mTranslateX = layouts.translateX
+        mTranslateY = layouts.translateY
 
-        mTextPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
-        mTextPaint!!.color = mTextColor
-        mTextPaint!!.alpha = (mAlpha * 255).toInt()
-        mTextPaint!!.textSize = mFontSize * fontSizeScale
+        mIsDirty = false
+    }
+
+    private fun createLayouts(canvasWidth: Int, canvasHeight: Int, alpha: Float): Layouts {
+        val fontSizeScale = canvasHeight / FONT_SIZE_SCALE_FACTOR.toFloat()
+
+        val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+        textPaint.color = mTextColor
+        textPaint.alpha = (alpha * 255).toInt()
+        textPaint.textSize = mFontSize * fontSizeScale
 
-        mTextOutlinePaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
-        mTextOutlinePaint!!.color = mOutlineColor
-        mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
-        mTextOutlinePaint!!.textSize = mTextPaint!!.textSize
-        mTextOutlinePaint!!.style = Paint.Style.STROKE
-        mTextOutlinePaint!!.strokeWidth = mFontSize.toFloat() * 0.1f * fontSizeScale
-        mPaddingActual = (mPadding * fontSizeScale).toInt()
+        val textOutlinePaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+        textOutlinePaint.color = mOutlineColor
+        textOutlinePaint.alpha = (alpha * 255).toInt()
+        textOutlinePaint.textSize = textPaint.textSize
+        textOutlinePaint.style = Paint.Style.STROKE
+        textOutlinePaint.strokeWidth = mFontSize.toFloat() * 0.1f * fontSizeScale
+        val paddingActual = (mPadding * fontSizeScale).toInt()
 
         //Set text width to canvas width minus padding.
-        mTextWidth = mCanvasWidth - 2 * mPaddingActual
+        val textWidth = canvasWidth - 2 * paddingActual
 
         //text
         //TODO switch to StaticLayout.Builder.obtain when switching to API23.
-        mTextLayout = StaticLayout(mText, mTextPaint, mTextWidth,
+        val textLayout = StaticLayout(mText, textPaint, textWidth,
                 mHorizontalAlign, 0.8f, 0.0f, false)
         //text outline
-        mTextOutlineLayout = StaticLayout(mText, mTextOutlinePaint, mTextWidth,
+        val textOutlineLayout = StaticLayout(mText, textOutlinePaint, textWidth,
                 mHorizontalAlign, 0.8f, 0.0f, false)
 
         //Get height of multiline text.
-        mTextHeight = mTextLayout!!.height
+        val textHeight = textLayout.height
 
-
-        when (mHorizontalAlign) {
-            Layout.Alignment.ALIGN_OPPOSITE -> mTranslateX = (mCanvasWidth - mTextWidth - mPaddingActual).toFloat()
-            Layout.Alignment.ALIGN_CENTER -> mTranslateX = ((mCanvasWidth - mTextWidth) / 2).toFloat()
-            Layout.Alignment.ALIGN_NORMAL -> mTranslateX = mPaddingActual.toFloat()
-            else -> mTranslateX = mPaddingActual.toFloat()
+        val translateX = when (mHorizontalAlign) {
+            Layout.Alignment.ALIGN_OPPOSITE -> (canvasWidth - textWidth - paddingActual).toFloat()
+            Layout.Alignment.ALIGN_CENTER -> ((canvasWidth - textWidth) / 2).toFloat()
+            Layout.Alignment.ALIGN_NORMAL -> paddingActual.toFloat()
+            else -> paddingActual.toFloat()
         }
 
-        when (mVerticalAlign) {
-            Layout.Alignment.ALIGN_OPPOSITE -> mTranslateY = (mCanvasHeight - mTextHeight - mPaddingActual).toFloat()
-            Layout.Alignment.ALIGN_CENTER -> mTranslateY = ((mCanvasHeight - mTextHeight) / 2).toFloat()
-            Layout.Alignment.ALIGN_NORMAL -> mTranslateY = mPaddingActual.toFloat()
-            else -> mTranslateY = mPaddingActual.toFloat()
+        val translateY = when (mVerticalAlign) {
+            Layout.Alignment.ALIGN_OPPOSITE -> (canvasHeight - textHeight - paddingActual).toFloat()
+            Layout.Alignment.ALIGN_CENTER -> ((canvasHeight - textHeight) / 2).toFloat()
+            Layout.Alignment.ALIGN_NORMAL -> paddingActual.toFloat()
+            else -> paddingActual.toFloat()
         }
 
-        mIsDirty = false
+        return Layouts(textLayout, textOutlineLayout, translateX, translateY)
+    }
+
+    private fun createBgPaint(): Paint {
+        val paint = Paint(Paint.ANTI_ALIAS_FLAG)
+        paint.color = mTextBgColor    // set the background color
+        paint.alpha = mBgAlpha        // set the amount of transparency
+        return paint
     }
 
     companion object {
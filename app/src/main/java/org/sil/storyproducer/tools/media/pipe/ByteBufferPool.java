@@ -1,86 +1,254 @@
 package org.sil.storyproducer.tools.media.pipe;
 
+import android.util.Log;
+
 import org.sil.storyproducer.tools.media.MediaHelper;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Provides a pool of ByteBuffers to preserve memory. This class is <b>not</b> thread-safe,
- * but it does provide thread-safe operations through the static "shared" functions.
+ * <p>Provides a thread-safe pool of direct ByteBuffers to preserve memory. Buffers are handed out
+ * in power-of-two size classes, each with its own free list, so acquire and release are O(1).</p>
+ * <p>Every buffer handed out is tagged as owned, which allows a release of a foreign buffer or a
+ * second release of the same buffer to be caught. The pool also enforces a memory budget: once
+ * the budget is spent, a caller of {@link #get(int)} is blocked until another buffer is released.</p>
+ * <p>Most media pipeline components should use the pool shared through the static "shared"
+ * functions, so that the whole pipeline is held to one budget.</p>
  */
 
 public class ByteBufferPool {
-    private final int mCapacity;
+    private static final String TAG = "ByteBufferPool";
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 12; //4 KiB
+    private static final int MAX_SIZE_CLASS_SHIFT = 20; //1 MiB
+    private static final int SIZE_CLASS_COUNT = MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1;
+
+    /** default budget of the shared pool */
+    public static final long SHARED_BUDGET_DEFAULT = 24 * 1024 * 1024;
+    //If the budget stays exhausted this long, something is holding buffers it will never return.
+    //Rather than deadlocking the pipeline, allocate past the budget and complain about it.
+    private static final long BUDGET_WAIT_MS = 2000;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mBufferReleased = mLock.newCondition();
 
-    private final ArrayList<ByteBuffer> buffers = new ArrayList<>(4);
-    private final ArrayList<Boolean> bufferAvailable = new ArrayList<>(4);
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] mFreeLists = new ArrayDeque[SIZE_CLASS_COUNT];
+    private final IdentityHashMap<ByteBuffer, Slab> mSlabs = new IdentityHashMap<>();
 
-    private static final ByteBufferPool SINGLETON = new ByteBufferPool();
+    private long mBudgetBytes;
+    private long mAllocatedBytes = 0;
+    private long mInUseBytes = 0;
+    private long mBudgetStalls = 0;
+    private long mOverBudgetAllocations = 0;
+
+    private static final ByteBufferPool SINGLETON = new ByteBufferPool(SHARED_BUDGET_DEFAULT);
+
+    /**
+     * Ownership record for a single buffer in the pool.
+     */
+    private static final class Slab {
+        final int sizeClass;
+        boolean inUse;
 
-    public ByteBufferPool() {
-        this(MediaHelper.INSTANCE.getMAX_INPUT_BUFFER_SIZE());
+        Slab(int sizeClass) {
+            this.sizeClass = sizeClass;
+        }
     }
-    public ByteBufferPool(int capacity) {
-        mCapacity = capacity;
+
+    public ByteBufferPool(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        for(int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            mFreeLists[i] = new ArrayDeque<>();
+        }
     }
 
     /**
-     * Get a {@link ByteBuffer} from the shared pool.
+     * Get a {@link ByteBuffer} of the default capacity from the shared pool.
      * @return
      */
-    public static synchronized ByteBuffer getShared() {
+    public static ByteBuffer getShared() {
         return SINGLETON.get();
     }
 
     /**
-     * Get a {@link ByteBuffer} from the pool.
+     * Get a {@link ByteBuffer} of at least the given capacity from the shared pool.
+     * @return
+     */
+    public static ByteBuffer getShared(int capacity) {
+        return SINGLETON.get(capacity);
+    }
+
+    /**
+     * Return a {@link ByteBuffer} to the shared pool.
+     * @return
+     */
+    public static void releaseShared(ByteBuffer buffer) throws InvalidBufferException {
+        SINGLETON.release(buffer);
+    }
+
+    /**
+     * Change the memory budget of the shared pool.
+     * @param budgetBytes total bytes the shared pool may allocate
+     */
+    public static void setSharedBudget(long budgetBytes) {
+        SINGLETON.setBudget(budgetBytes);
+    }
+
+    public static String getSharedStatistics() {
+        return SINGLETON.getStatistics();
+    }
+
+    /**
+     * Get a {@link ByteBuffer} of capacity MediaHelper.MAX_INPUT_BUFFER_SIZE from the pool.
      * @return
      */
     public ByteBuffer get() {
-        ByteBuffer buffer;
+        return get(MediaHelper.INSTANCE.getMAX_INPUT_BUFFER_SIZE());
+    }
 
-        for(int i = 0; i < bufferAvailable.size(); i++) {
-            buffer = buffers.get(i);
+    /**
+     * Get a {@link ByteBuffer} with a capacity of at least the requested capacity from the pool,
+     * blocking if the memory budget is currently spent.
+     * @param capacity requested capacity in bytes
+     * @return cleared buffer in native byte order
+     */
+    public ByteBuffer get(int capacity) {
+        int sizeClass = getSizeClass(capacity);
+        int slabSize = 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT);
+
+        mLock.lock();
+        try {
+            ByteBuffer buffer = mFreeLists[sizeClass].pollFirst();
             if(buffer == null) {
-                buffer = ByteBuffer.allocate(mCapacity);
-                buffers.set(i, buffer);
-                bufferAvailable.set(i, false);
-                return buffer;
+                if(mAllocatedBytes + slabSize > mBudgetBytes) {
+                    awaitBudget(sizeClass, slabSize);
+                    buffer = mFreeLists[sizeClass].pollFirst();
+                }
+                if(buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(slabSize).order(ByteOrder.nativeOrder());
+                    mSlabs.put(buffer, new Slab(sizeClass));
+                    mAllocatedBytes += slabSize;
+                }
             }
 
-            if(bufferAvailable.get(i)) {
-                bufferAvailable.set(i, false);
-                return buffer;
+            mSlabs.get(buffer).inUse = true;
+            mInUseBytes += slabSize;
+            buffer.clear();
+            return buffer;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Return a {@link ByteBuffer} to the pool.
+     * @throws InvalidBufferException if the buffer did not come from this pool or was already released
+     */
+    public void release(ByteBuffer buffer) throws InvalidBufferException {
+        mLock.lock();
+        try {
+            Slab slab = mSlabs.get(buffer);
+            if(slab == null) {
+                throw new InvalidBufferException("I don't own that buffer!");
             }
+            if(!slab.inUse) {
+                throw new InvalidBufferException("That buffer was already released!");
+            }
+
+            slab.inUse = false;
+            mInUseBytes -= buffer.capacity();
+            buffer.clear();
+            mFreeLists[slab.sizeClass].addFirst(buffer);
+
+            mBufferReleased.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void setBudget(long budgetBytes) {
+        mLock.lock();
+        try {
+            mBudgetBytes = budgetBytes;
+            mBufferReleased.signalAll();
+        } finally {
+            mLock.unlock();
         }
+    }
 
-        buffer = ByteBuffer.allocate(mCapacity);
-        buffers.add(buffer);
-        bufferAvailable.add(false);
-        return buffer;
+    public String getStatistics() {
+        mLock.lock();
+        try {
+            return "allocated " + mAllocatedBytes / 1024 + " KiB"
+                    + ", in use " + mInUseBytes / 1024 + " KiB"
+                    + " of " + mBudgetBytes / 1024 + " KiB budget"
+                    + ", budget stalls " + mBudgetStalls
+                    + ", over-budget allocations " + mOverBudgetAllocations;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
-     * Return a {@link ByteBuffer} to the shared pool.
-     * @return
+     * Wait (with mLock held) until a buffer of the requested size class is free or there is
+     * enough budget to allocate one. Free buffers of other size classes are dropped from the pool
+     * to make room before waiting.
      */
-    public static synchronized void releaseShared(ByteBuffer buffer) throws InvalidBufferException {
-        SINGLETON.release(buffer);
+    private void awaitBudget(int sizeClass, int slabSize) {
+        long remainingNs = TimeUnit.MILLISECONDS.toNanos(BUDGET_WAIT_MS);
+        boolean stalled = false;
+        try {
+            while(mFreeLists[sizeClass].isEmpty()) {
+                trimFreeLists(slabSize);
+                if(mAllocatedBytes + slabSize <= mBudgetBytes) {
+                    return;
+                }
+                if(remainingNs <= 0) {
+                    mOverBudgetAllocations++;
+                    Log.w(TAG, "Memory budget exhausted; allocating past budget. " + getStatistics());
+                    return;
+                }
+                if(!stalled) {
+                    stalled = true;
+                    mBudgetStalls++;
+                    if(MediaHelper.INSTANCE.getVERBOSE()) Log.v(TAG, "waiting for budget: " + getStatistics());
+                }
+                remainingNs = mBufferReleased.awaitNanos(remainingNs);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while waiting for memory budget", e);
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Return a {@link ByteBuffer} to the pool.
-     * @return
+     * Drop free buffers (of any size class) until the requested size fits in the budget.
      */
-    public void release(ByteBuffer buffer) throws InvalidBufferException {
-        for(int i = 0; i < buffers.size(); i++) {
-            if(buffers.get(i) == buffer) {
-                buffer.clear();
-                bufferAvailable.set(i, true);
-                return;
+    private void trimFreeLists(int neededBytes) {
+        for(int i = SIZE_CLASS_COUNT - 1; i >= 0 && mAllocatedBytes + neededBytes > mBudgetBytes; i--) {
+            while(!mFreeLists[i].isEmpty() && mAllocatedBytes + neededBytes > mBudgetBytes) {
+                ByteBuffer dropped = mFreeLists[i].pollLast();
+                mSlabs.remove(dropped);
+                mAllocatedBytes -= dropped.capacity();
             }
         }
-        throw new InvalidBufferException("I don't own that buffer!");
+    }
+
+    private static int getSizeClass(int capacity) {
+        int shift = MIN_SIZE_CLASS_SHIFT;
+        while((1 << shift) < capacity) {
+            shift++;
+        }
+        if(shift > MAX_SIZE_CLASS_SHIFT) {
+            throw new IllegalArgumentException("Buffer capacity " + capacity + " is too large for the pool");
+        }
+        return shift - MIN_SIZE_CLASS_SHIFT;
     }
 }
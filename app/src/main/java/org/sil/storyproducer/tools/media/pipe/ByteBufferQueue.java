@@ -6,36 +6,67 @@ import android.util.Log;
 import org.sil.storyproducer.tools.media.MediaHelper;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * ByteBufferQueue is a producer-consumer data structure specialized for ByteBuffers.
- * The idea is to allow one thread to fill empty buffers and another to use filled buffers.
+ * <p>ByteBufferQueue is a bounded single-producer/single-consumer data structure specialized for
+ * ByteBuffers. The idea is to allow one thread to fill empty buffers and another to use filled buffers.</p>
+ * <p>The queue is a ring of buffers. Each slot of the ring is owned by exactly one
+ * party at a time (free, producer, filled or consumer). A producer waiting for an empty buffer is
+ * parked until the consumer hands a buffer back through {@link #releaseUsedBuffer(ByteBuffer)},
+ * and a consumer waiting for a filled buffer is parked until the producer sends one.</p>
+ * <p>The buffer of each slot is drawn from the shared {@link ByteBufferPool} the first time the
+ * slot is used and kept until {@link #recycleBuffers()}, so every queue counts against the
+ * pipeline memory budget.</p>
  */
 public class ByteBufferQueue {
     private static final String TAG = "ByteBufferQueue";
 
-    private final Object mLock = new Object();
-
-    private final int mBufferCount;
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_PRODUCER = 1;
+    private static final int SLOT_FILLED = 2;
+    private static final int SLOT_CONSUMER = 3;
 
     //This value is somewhat arbitrary, intended to be smaller than MediaHelper.MAX_INPUT_BUFFER_SIZE.
     private static final int BUFFER_CAPACITY_DEFAULT = 16 * 1024;
-    private final ByteBufferPool mBufferPool;
 
-    private int mBuffersOut = 0;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mSlotFreed = mLock.newCondition();
+    private final Condition mSlotFilled = mLock.newCondition();
+
+    private final int mBufferCount;
+    private final int mBufferCapacity;
+    private final MediaBuffer[] mSlots;
+    private final int[] mSlotOwner;
+
+    private int mProduceIndex = 0;
+    private int mConsumeIndex = 0;
+    private int mReleaseIndex = 0;
+    private int mFilledCount = 0;
 
-    private final BlockingQueue<MediaBuffer> mFilledBuffers;
+    private boolean mIsClosed = false;
+    private boolean mIsRecycled = false;
+
+    private long mProducerStalls = 0;
+    private long mProducerStallNs = 0;
+    private long mConsumerStalls = 0;
+    private long mConsumerStallNs = 0;
+    private int mMaxQueueDepth = 0;
 
     public ByteBufferQueue(int bufferCount) {
         this(bufferCount, BUFFER_CAPACITY_DEFAULT);
     }
     public ByteBufferQueue(int bufferCount, int bufferCapacity) {
         mBufferCount = bufferCount;
-        mBufferPool = new ByteBufferPool(bufferCapacity);
-        mFilledBuffers = new ArrayBlockingQueue<>(bufferCount);
+        mBufferCapacity = bufferCapacity;
+        mSlots = new MediaBuffer[bufferCount];
+        mSlotOwner = new int[bufferCount];
+        for(int i = 0; i < bufferCount; i++) {
+            mSlots[i] = new MediaBuffer(null, new MediaCodec.BufferInfo());
+            mSlotOwner[i] = SLOT_FREE;
+        }
     }
 
     /**
@@ -43,83 +74,259 @@ public class ByteBufferQueue {
      * @return whether the queue contains any filled buffers
      */
     public boolean isEmpty() {
-        return mFilledBuffers.isEmpty();
+        mLock.lock();
+        try {
+            return mFilledCount == 0;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
      * (Producer operation) Pull an empty buffer from the queue, blocking until one becomes available
      * or a timeout occurs.
      * @param timeoutUs microseconds before timeout occurs
-     * @return empty buffer
+     * @return empty buffer, or null if the timeout elapsed or the queue was closed
      */
     public ByteBuffer getEmptyBuffer(long timeoutUs) {
-        long loops = timeoutUs / 1000;
-
-        for(long i = 0; i < loops; i++) {
-            synchronized (mLock) {
-                boolean bufferIsAvailable = mBuffersOut < mBufferCount;
-                if (bufferIsAvailable) {
-                    mBuffersOut++;
-                    return mBufferPool.get();
+        MediaBuffer slot;
+        mLock.lock();
+        try {
+            if(mSlotOwner[mProduceIndex] != SLOT_FREE && !mIsClosed) {
+                long remainingNs = TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+                long stallStartNs = System.nanoTime();
+                mProducerStalls++;
+                while(mSlotOwner[mProduceIndex] != SLOT_FREE && !mIsClosed && remainingNs > 0) {
+                    remainingNs = mSlotFreed.awaitNanos(remainingNs);
                 }
+                mProducerStallNs += System.nanoTime() - stallStartNs;
             }
 
-            //If unable to get a buffer, wait a little bit and try again.
-            try {
-                Thread.sleep(1, 0);
-            } catch (InterruptedException e) {
-                Log.d(TAG, "interrupted while getting empty buffer", e);
+            if(mIsClosed || mSlotOwner[mProduceIndex] != SLOT_FREE) {
                 return null;
             }
+
+            mSlotOwner[mProduceIndex] = SLOT_PRODUCER;
+            slot = mSlots[mProduceIndex];
+        } catch (InterruptedException e) {
+            Log.d(TAG, "interrupted while getting empty buffer", e);
+            return null;
+        } finally {
+            mLock.unlock();
         }
 
-        return null;
+        //Only the producer touches a slot it owns, so the (possibly blocking) pool request
+        //can be made without holding the lock.
+        if(slot.buffer == null) {
+            slot.buffer = ByteBufferPool.getShared(mBufferCapacity);
+            slot.buffer.limit(mBufferCapacity);
+        } else {
+            slot.buffer.clear();
+            slot.buffer.limit(mBufferCapacity);
+        }
+        return slot.buffer;
     }
 
     /**
      * (Producer operation) Pass a filled buffer from the producer to the consumer.
      * @param buffer filled buffer
      * @param info filled buffer metadata
+     * @throws InvalidBufferException if buffer was not pulled from {@link #getEmptyBuffer(long)}
      */
-    public void sendFilledBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    public void sendFilledBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) throws InvalidBufferException {
+        mLock.lock();
         try {
-            mFilledBuffers.put(new MediaBuffer(buffer, info));
-        } catch (InterruptedException e) {
-            Log.e(TAG, "interrupted while sending filled buffer", e);
+            if(mSlotOwner[mProduceIndex] != SLOT_PRODUCER || mSlots[mProduceIndex].buffer != buffer) {
+                throw new InvalidBufferException("That buffer is not owned by the producer!");
+            }
+
+            MediaHelper.INSTANCE.copyBufferInfo(info, mSlots[mProduceIndex].info);
+            mSlotOwner[mProduceIndex] = SLOT_FILLED;
+            mProduceIndex = (mProduceIndex + 1) % mBufferCount;
+
+            mFilledCount++;
+            if(mFilledCount > mMaxQueueDepth) {
+                mMaxQueueDepth = mFilledCount;
+            }
+            mSlotFilled.signal();
+        } finally {
+            mLock.unlock();
         }
     }
 
     /**
      * (Consumer operation) Pull a filled buffer from the queue, blocking until one becomes available.
      * @param info filled buffer metadata (filled by function)
-     * @return filled buffer
+     * @return filled buffer, or null if the queue was closed or the thread interrupted
      */
     public ByteBuffer getFilledBuffer(MediaCodec.BufferInfo info) {
-        MediaBuffer mb = null;
+        mLock.lock();
         try {
-            while(mb == null) {
-                mb = mFilledBuffers.poll(1, TimeUnit.SECONDS);
-                if(MediaHelper.INSTANCE.getVERBOSE() && mb == null) {
-                    Log.d(TAG, "filled buffer unavailable");
+            if(mSlotOwner[mConsumeIndex] != SLOT_FILLED && !mIsClosed) {
+                long stallStartNs = System.nanoTime();
+                mConsumerStalls++;
+                while(mSlotOwner[mConsumeIndex] != SLOT_FILLED && !mIsClosed) {
+                    if(!mSlotFilled.await(1, TimeUnit.SECONDS) && MediaHelper.INSTANCE.getVERBOSE()) {
+                        Log.d(TAG, "filled buffer unavailable");
+                    }
                 }
+                mConsumerStallNs += System.nanoTime() - stallStartNs;
             }
+
+            if(mSlotOwner[mConsumeIndex] != SLOT_FILLED) {
+                return null;
+            }
+
+            MediaBuffer slot = mSlots[mConsumeIndex];
+            mSlotOwner[mConsumeIndex] = SLOT_CONSUMER;
+            mConsumeIndex = (mConsumeIndex + 1) % mBufferCount;
+            mFilledCount--;
+
+            MediaHelper.INSTANCE.copyBufferInfo(slot.info, info);
+            return slot.buffer;
         } catch (InterruptedException e) {
             Log.e(TAG, "interrupted while getting filled buffer", e);
             return null;
+        } finally {
+            mLock.unlock();
         }
-        MediaHelper.INSTANCE.copyBufferInfo(mb.info, info);
-        return mb.buffer;
     }
 
     /**
      * (Consumer operation) Pass a used buffer back to the queue for reuse.
      * @param buffer used buffer
-     * @throws InvalidBufferException if buffer does not belong to queue
+     * @throws InvalidBufferException if buffer does not belong to queue or is not held by the consumer
      */
     public void releaseUsedBuffer(ByteBuffer buffer) throws InvalidBufferException {
-        synchronized (mLock) {
-            mBufferPool.release(buffer);
-            mBuffersOut--;
+        mLock.lock();
+        try {
+            //Buffers are almost always released in the order they were consumed,
+            //so the oldest consumer slot is checked first.
+            for(int i = 0; i < mBufferCount; i++) {
+                int index = (mReleaseIndex + i) % mBufferCount;
+                if(mSlotOwner[index] == SLOT_CONSUMER && mSlots[index].buffer == buffer) {
+                    mSlotOwner[index] = SLOT_FREE;
+                    if(mIsRecycled) {
+                        //The rest of the ring was already given back to the pool.
+                        mSlots[index].buffer = null;
+                        ByteBufferPool.releaseShared(buffer);
+                    }
+                    if(i == 0) {
+                        mReleaseIndex = (mReleaseIndex + 1) % mBufferCount;
+                    }
+                    mSlotFreed.signal();
+                    return;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        throw new InvalidBufferException("I don't own that buffer!");
+    }
+
+    /**
+     * Wake up and turn away any parked producer or consumer. The queue should not be used after
+     * a call to this method.
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            mIsClosed = true;
+            mSlotFreed.signalAll();
+            mSlotFilled.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Give the buffers of this queue back to the shared {@link ByteBufferPool}. This must only be
+     * called after {@link #close()} once the producer has stopped. A buffer still held by the
+     * consumer is given back when it is released.
+     */
+    public void recycleBuffers() {
+        mLock.lock();
+        try {
+            mIsClosed = true;
+            mIsRecycled = true;
+            for(int i = 0; i < mBufferCount; i++) {
+                if(mSlotOwner[i] != SLOT_CONSUMER && mSlots[i].buffer != null) {
+                    ByteBufferPool.releaseShared(mSlots[i].buffer);
+                    mSlots[i].buffer = null;
+                }
+                if(mSlotOwner[i] != SLOT_CONSUMER) {
+                    mSlotOwner[i] = SLOT_FREE;
+                }
+            }
+            mFilledCount = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of filled buffers waiting for the consumer.
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mFilledCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the highest number of filled buffers that were waiting for the consumer at once.
+     */
+    public int getMaxQueueDepth() {
+        mLock.lock();
+        try {
+            return mMaxQueueDepth;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return how many times the producer had to wait for an empty buffer.
+     */
+    public long getProducerStalls() {
+        mLock.lock();
+        try {
+            return mProducerStalls;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return how many times the consumer had to wait for a filled buffer.
+     */
+    public long getConsumerStalls() {
+        mLock.lock();
+        try {
+            return mConsumerStalls;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get a one-line summary of the queue counters for logging.
+     * @return summary of queue depth and stall counters
+     */
+    public String getStatistics() {
+        mLock.lock();
+        try {
+            return "depth " + mFilledCount + "/" + mBufferCount
+                    + " (max " + mMaxQueueDepth + ")"
+                    + ", producer stalls " + mProducerStalls
+                    + " (" + MediaHelper.INSTANCE.getDecimal(mProducerStallNs / 1E9) + " s)"
+                    + ", consumer stalls " + mConsumerStalls
+                    + " (" + MediaHelper.INSTANCE.getDecimal(mConsumerStallNs / 1E9) + " s)";
+        } finally {
+            mLock.unlock();
         }
     }
 }
@@ -0,0 +1,160 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ *
+ * Pool of idle decoders, so that a story's audio files are not each decoded by a newly created,
+ * configured and started [MediaCodec].
+ *
+ * A decoder given back with [release] is flushed and kept, keyed by its mime type and
+ * configuration. The next file with the same key gets the flushed decoder as it is, already
+ * running; a file of the same mime type but another configuration gets an idle decoder
+ * reconfigured. Only a few decoders are kept; call [clear] once a batch of work (such as a story
+ * export) is finished to release them.
+ */
+object MediaCodecPool {
+    private val TAG = "MediaCodecPool"
+
+    private const val MAX_IDLE = 2
+
+    //Least recently used first.
+    private val mIdle = ArrayList<Decoder>()
+
+    /**
+     * A running decoder.
+     * @param key configuration of the decoder, for giving it back with [release].
+     * @param outputFormat the decoder's output format if it is reused as it was, since it will
+     * not report the format again; otherwise null.
+     */
+    class Decoder(val codec: MediaCodec, val key: String, val outputFormat: MediaFormat?)
+
+    /**
+     * Get a running decoder for a format, reusing an idle one if possible.
+     */
+    @Throws(IOException::class)
+    fun acquireDecoder(format: MediaFormat): Decoder {
+        val mime = format.getString(MediaFormat.KEY_MIME) ?: throw IOException("No mime type in format")
+        val key = getKey(format)
+
+        var reconfigurable: Decoder? = null
+        synchronized(this) {
+            val match = mIdle.lastOrNull { it.key == key }
+            if (match != null) {
+                mIdle.remove(match)
+                if (MediaHelper.VERBOSE) Log.v(TAG, "reusing decoder for $key")
+                return match
+            }
+            reconfigurable = mIdle.lastOrNull { it.key.startsWith("$mime|") }
+            reconfigurable?.let { mIdle.remove(it) }
+        }
+
+        val idle = reconfigurable
+        if (idle != null) {
+            try {
+                idle.codec.stop()
+                idle.codec.configure(format, null, null, 0)
+                idle.codec.start()
+                if (MediaHelper.VERBOSE) Log.v(TAG, "reconfigured decoder for $key")
+                return Decoder(idle.codec, key, null)
+            } catch (e: Exception) {
+                Log.w(TAG, "Could not reconfigure decoder for $key", e)
+                idle.codec.release()
+            }
+        }
+
+        val codec = MediaCodec.createDecoderByType(mime)
+        try {
+            codec.configure(format, null, null, 0)
+            codec.start()
+        } catch (e: Exception) {
+            codec.release()
+            throw IOException("Could not start decoder for $key", e)
+        }
+        return Decoder(codec, key, null)
+    }
+
+    /**
+     * Give back a decoder from [acquireDecoder] to be used again.
+     * @param outputFormat the output format the decoder reported, or null if it has not reported
+     * one, in which case it is released instead.
+     */
+    fun release(codec: MediaCodec, key: String, outputFormat: MediaFormat?) {
+        if (outputFormat == null) {
+            releaseCodec(codec)
+            return
+        }
+        try {
+            codec.flush()
+        } catch (e: Exception) {
+            Log.w(TAG, "Could not flush decoder for $key", e)
+            releaseCodec(codec)
+            return
+        }
+
+        var evicted: Decoder? = null
+        synchronized(this) {
+            mIdle.add(Decoder(codec, key, outputFormat))
+            if (mIdle.size > MAX_IDLE) {
+                evicted = mIdle.removeAt(0)
+            }
+        }
+        evicted?.let { releaseCodec(it.codec) }
+    }
+
+    /**
+     * Release every idle decoder.
+     */
+    fun clear() {
+        val idle: List<Decoder>
+        synchronized(this) {
+            idle = ArrayList(mIdle)
+            mIdle.clear()
+        }
+        for (decoder in idle) {
+            releaseCodec(decoder.codec)
+        }
+    }
+
+    private fun releaseCodec(codec: MediaCodec) {
+        try {
+            codec.stop()
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "Failed to stop MediaCodec!", e)
+        } finally {
+            codec.release()
+        }
+    }
+
+    /**
+     * Get the key of a decoder's configuration: its mime type, sample rate, channel count and
+     * codec specific data.
+     */
+    private fun getKey(format: MediaFormat): String {
+        val key = StringBuilder()
+        key.append(format.getString(MediaFormat.KEY_MIME)).append('|')
+        for (name in arrayOf(MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT)) {
+            key.append(if (format.containsKey(name)) format.getInteger(name) else "").append('|')
+        }
+        for (name in arrayOf("csd-0", "csd-1")) {
+            if (format.containsKey(name)) {
+                appendHex(key, format.getByteBuffer(name)!!)
+            }
+            key.append('|')
+        }
+        return key.toString()
+    }
+
+    private fun appendHex(key: StringBuilder, buffer: ByteBuffer) {
+        for (i in buffer.position() until buffer.limit()) {
+            key.append(String.format("%02x", buffer.get(i)))
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.content.Context
+import android.util.Log
+
+import org.sil.storyproducer.tools.file.DiskCacheDir
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.File
+
+/**
+ *
+ * Persistent cache of decoded audio, kept in the app cache directory.
+ *
+ * Each entry is the raw 16-bit PCM (native byte order) of one story audio file, already
+ * converted to the sample rate and channel count of the pipeline. Entries are addressed by a hash
+ * of the source URI, its size and modification time and the target format, so editing or replacing
+ * a recording simply misses the cache. The least recently used entries are evicted once the
+ * cache grows past [maxCacheBytes].
+ *
+ * Use [openSource] in place of [PipedAudioDecoderMaverick]: a hit is read straight from a mapped
+ * file, and a miss is decoded as usual while a copy is written to the cache if the consumer reads
+ * the file to the end.
+ */
+object PcmCache {
+    private val TAG = "PcmCache"
+
+    private const val CACHE_DIR = "pcm"
+    private const val ENTRY_SUFFIX = ".pcm"
+
+    /** default size cap of the cache */
+    const val CACHE_SIZE_DEFAULT: Long = 128L * 1024 * 1024
+
+    private val mDir = DiskCacheDir(CACHE_DIR, ENTRY_SUFFIX, TAG, CACHE_SIZE_DEFAULT)
+
+    /** size (in bytes) the cache is trimmed to after each new entry */
+    @JvmStatic
+    var maxCacheBytes: Long
+        get() = mDir.maxBytes
+        set(value) {
+            mDir.maxBytes = value
+        }
+
+    /**
+     * Get a source of raw audio for a story audio file, using the cache if possible.
+     * @param path story-relative path of the audio file.
+     * @param sampleRate desired sample rate.
+     * @param channelCount desired channel count.
+     * @param isReadToEnd whether the consumer will read the file to the end. Only then is a miss
+     * written to the cache; a partial entry would only be thrown away.
+     * @return a source providing the file as raw audio of the given sample rate and channel count.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun openSource(context: Context, path: String, sampleRate: Int, channelCount: Int,
+                   isReadToEnd: Boolean = true): PipedMediaByteBufferSource {
+        val decoder = PipedAudioDecoderMaverick(context, path, sampleRate, channelCount)
+        val key = getCacheKey(context, path, sampleRate, channelCount) ?: return decoder
+
+        val entry = getEntry(context, key, channelCount)
+        if (entry != null) {
+            if (MediaHelper.VERBOSE) Log.v(TAG, "hit for $path")
+            return PipedAudioMappedSource(entry, sampleRate, channelCount)
+        }
+
+        if (MediaHelper.VERBOSE) Log.v(TAG, "miss for $path")
+        if (!isReadToEnd) return decoder
+        val partial = mDir.createPartial(context, key) ?: return decoder
+        return PipedAudioCacheTee(decoder, partial, key)
+    }
+
+    /**
+     * Get the cache entry of a story audio file without opening it.
+     * @return the file of 16-bit PCM (native byte order), or null on a cache miss.
+     */
+    @JvmStatic
+    fun lookup(context: Context, path: String, sampleRate: Int, channelCount: Int): File? {
+        val key = getCacheKey(context, path, sampleRate, channelCount) ?: return null
+        return getEntry(context, key, channelCount)
+    }
+
+    /**
+     * Get the cache key of a story audio file in the given format.
+     * @return the key, or null if the file cannot be identified reliably enough to cache.
+     */
+    @JvmStatic
+    fun getCacheKey(context: Context, path: String, sampleRate: Int, channelCount: Int): String? {
+        if (sampleRate == 0 || channelCount == 0) return null
+        val version = DiskCacheDir.getFileVersion(context, path) ?: return null
+        //Audio resampled in another mode would sound different, so the mode is part of the key.
+        val mode = PipedAudioResampler.defaultMode
+        return DiskCacheDir.hash("$version|$sampleRate|$channelCount|s16|$mode")
+    }
+
+    /**
+     * Get the complete cache entry for a key, marking it as recently used.
+     * @return the entry file, or null if there is no usable entry.
+     */
+    private fun getEntry(context: Context, key: String, channelCount: Int): File? {
+        return mDir.getEntry(context, key) { it.length() % (2 * channelCount) == 0L }
+    }
+
+    /**
+     * Make a completely written partial entry visible, then trim the cache.
+     */
+    internal fun commit(partial: File, key: String) {
+        mDir.commit(partial, key)
+    }
+}
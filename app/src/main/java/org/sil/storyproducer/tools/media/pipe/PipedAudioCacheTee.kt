@@ -0,0 +1,149 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ *
+ * This media pipeline component passes a raw audio stream through unchanged while writing a copy
+ * of it to a [PcmCache] entry. The entry is only made visible once the source has reached the end
+ * of its stream; a stream which is closed early, or which fails to write, leaves no entry behind.
+ * Only use it for consumers which read their source to the end.
+ */
+internal class PipedAudioCacheTee
+/**
+ * @param mSource raw audio source to be cached.
+ * @param mPartialFile file to write the stream to.
+ * @param mKey cache key of the entry the complete stream becomes.
+ */
+(private val mSource: PipedMediaByteBufferSource, private val mPartialFile: File, private val mKey: String) : PipedMediaByteBufferSource, PipedMediaPrefetchable {
+
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private var mChannel: FileChannel? = null
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        mSource.setup()
+
+        try {
+            mChannel = FileOutputStream(mPartialFile).channel
+        } catch (e: IOException) {
+            Log.w(TAG, "Not caching; could not open " + mPartialFile.absolutePath, e)
+        }
+
+        mComponentState = PipedMediaSource.State.RUNNING
+    }
+
+    override fun prefetch() {
+        if (mSource is PipedMediaPrefetchable) {
+            mSource.prefetch()
+        }
+    }
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return mSource.mediaType
+    }
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mSource.outputFormat
+    }
+
+    override fun isDone(): Boolean {
+        return mSource.isDone
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        mSource.fillBuffer(buffer, info)
+        write(buffer)
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer? {
+        val buffer = mSource.getBuffer(info)
+        if (buffer != null) {
+            write(buffer)
+        } else {
+            //The source ended without reporting it first.
+            finish()
+        }
+        return buffer
+    }
+
+    @Throws(InvalidBufferException::class, SourceClosedException::class)
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        mSource.releaseBuffer(buffer)
+    }
+
+    private fun write(buffer: ByteBuffer) {
+        val channel = mChannel ?: return
+        try {
+            //Write through a duplicate so the position seen by the consumer is untouched.
+            val copy = buffer.duplicate()
+            while (copy.hasRemaining()) {
+                channel.write(copy)
+            }
+            if (mSource.isDone) {
+                finish()
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Abandoning cache entry", e)
+            abandon()
+        }
+    }
+
+    /**
+     * Make the entry visible, now that the whole stream has been written.
+     */
+    private fun finish() {
+        val channel = mChannel ?: return
+        mChannel = null
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            Log.w(TAG, "Abandoning cache entry", e)
+            mPartialFile.delete()
+            return
+        }
+        PcmCache.commit(mPartialFile, mKey)
+    }
+
+    private fun abandon() {
+        val channel = mChannel ?: return
+        mChannel = null
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            //The file is deleted regardless.
+        }
+        mPartialFile.delete()
+    }
+
+    override fun close() {
+        //A consumer may see the end of the source without pulling any further.
+        if (mComponentState == PipedMediaSource.State.RUNNING && mSource.isDone) {
+            finish()
+        }
+        mComponentState = PipedMediaSource.State.CLOSED
+        abandon()
+        mSource.close()
+    }
+
+    companion object {
+        private val TAG = "PipedAudioCacheTee"
+    }
+}
@@ -3,7 +3,7 @@ package org.sil.storyproducer.tools.media.pipe
 import android.content.Context
 import android.media.MediaFormat
 import android.util.Log
-import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.media.MediaDurationIndex
 import org.sil.storyproducer.tools.media.MediaHelper
 import java.io.IOException
 import java.util.*
@@ -16,6 +16,9 @@ import kotlin.math.min
  * in between streams. Note that this transition time is halved for the beginning and end of the stream.
  *
  * This component also optionally ensures that each audio stream matches an expected duration.
+ *
+ * The 16-bit sources are brought into the float domain as they are read, so that the source
+ * volume and the fades are applied (and mixed afterwards) without clipping or rounding.
  */
 class PipedAudioConcatenator
 /**
@@ -25,7 +28,7 @@ class PipedAudioConcatenator
  * @param channelCount desired channel count.
  */
 (private val context: Context, private val mTransitionUs: Long //duration of the audio transition
- , sampleRate: Int, channelCount: Int) : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
+ , sampleRate: Int, channelCount: Int) : PipedAudioFloatManipulator(), PipedMediaByteBufferDest {
 
     override val componentName: String = TAG
     private var mCurrentState = ConcatState.TRANSITION //start in transition
@@ -34,12 +37,23 @@ class PipedAudioConcatenator
     private val catExpectedDurations = LinkedList<Long>()
     private val catVolume = LinkedList<Float>()
 
+    private var mSource: PipedMediaByteBufferSource? = null
+    private var srcHasBuffer = false
+    private val mShortBuffer = ShortArray(srcBuffer.size)
+
     //default to 20ms - get most of the finger press noise.
     private var mFadeInUs: Long = 50000
     private var mFadeOutUs: Long = 50000
-    private val fadeInSamples: Int get() {return (mFadeInUs * mSampleRate / 1000000.0).toInt()}
-    private val fadeOutSamples: Int get() {return (mFadeOutUs * mSampleRate / 1000000.0).toInt()}
 
+    //Gain and fade envelope of the current source, precomputed in frame indices (same units as
+    //mAbsoluteFrameIndex) so that fetchSourceBuffer can apply them in a single pass.
+    private var mFadeInFrames: Int = 0
+    private var mFadeOutFrames: Int = 0
+    private var mFadeInStep = 1f //envelope increase per frame
+    private var mFadeOutStep = 1f //envelope decrease per frame
+    private var mSourceStartIndex: Long = 0
+    private var mSourceEndIndex: Long = NO_END
+    private var mSourceGain = 1f
 
     private var mSourceExpectedDuration: Long = 0 //current source expected duration (us)
     private var mSourceVolume: Float = 1.0f //current source volume
@@ -49,6 +63,9 @@ class PipedAudioConcatenator
 
     private var mOutputFormat: MediaFormat? = null
 
+    private var mLookaheadDepth = 0
+    private var mLookaheadBytes = LOOKAHEAD_BYTES_DEFAULT
+
     private//If we encounter an error, just let this source be passed over.
     val nextSource: PipedMediaByteBufferSource?
         get() {
@@ -60,6 +77,8 @@ class PipedAudioConcatenator
                 if (MediaHelper.VERBOSE) Log.v(TAG, "getNextSource source found")
 
                 ns = catSources.remove()
+                //Let the following files open while this one plays.
+                prefetchUpcoming()
                 if (ns == null) {
                     return null
                 }
@@ -105,6 +124,18 @@ class PipedAudioConcatenator
         mFadeOutUs = fadeOutUs
     }
 
+    /**
+     * Decode upcoming sources on background threads while the current one plays. Each source
+     * decodes at most its share of the memory cap ahead of being read.
+     * @param depth number of sources after the current one to decode ahead (0 to only open the
+     * next file ahead of time).
+     * @param maxBytes memory cap for the decoded audio of the current and upcoming sources.
+     */
+    fun setLookahead(depth: Int, maxBytes: Long = LOOKAHEAD_BYTES_DEFAULT) {
+        mLookaheadDepth = depth
+        mLookaheadBytes = maxBytes
+    }
+
     override fun getOutputFormat(): MediaFormat? {
         return mOutputFormat
     }
@@ -158,6 +189,10 @@ class PipedAudioConcatenator
      * with silence until the duration has elapsed. If duration is shorter than the source audio length, both
      * functions will behave the same.
      *
+     *
+     * The decoded audio is read from [PcmCache], and saved to it if the source is expected to be
+     * used to the end.
+     *
      * @param sourcePath source audio path.
      * @param duration expected duration of the source audio stream.
      */
@@ -165,7 +200,9 @@ class PipedAudioConcatenator
     @JvmOverloads
     fun addSourcePath(sourcePath: String?, duration: Long = 0, volume: Float = 1.0f) {
         if (sourcePath != null) {
-            addSource(PipedAudioDecoderMaverick(context,sourcePath), duration, volume)
+            //A source longer than its expected duration is cut off before its end.
+            val isReadToEnd = duration == 0L || MediaDurationIndex.getDuration(context, sourcePath) in 1..duration
+            addSource(PcmCache.openSource(context, sourcePath, mSampleRate, mChannelCount, isReadToEnd), duration, volume)
         } else {
             addSource(null, duration)
         }
@@ -190,10 +227,10 @@ class PipedAudioConcatenator
     @Throws(SourceUnacceptableException::class)
     fun addLoopingSourcePath(sourcePath: String?, duration: Long, volume: Float = 1.0f) {
         if (sourcePath != null) {
-            val sourceDuration: Long = MediaHelper.getAudioDuration(context,getStoryUri(sourcePath)!!)
+            val sourceDuration: Long = MediaDurationIndex.getDuration(context, sourcePath)
             if (sourceDuration < duration) {
                 //Only add a looper if necessary
-                addSource(PipedAudioLooper(context,sourcePath, duration), duration, volume)
+                addSource(PipedAudioLooper(context, sourcePath, duration, mSampleRate, mChannelCount), duration, volume)
             } else {
                 addSourcePath(sourcePath, duration, volume)
             }
@@ -216,16 +253,41 @@ class PipedAudioConcatenator
         mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
         mOutputFormat!!.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount)
 
+        mFadeInFrames = (mFadeInUs * mSampleRate / 1000000L).toInt()
+        mFadeOutFrames = (mFadeOutUs * mSampleRate / 1000000L).toInt()
+        mFadeInStep = if (mFadeInFrames > 0) 1f / mFadeInFrames else 1f
+        mFadeOutStep = if (mFadeOutFrames > 0) 1f / mFadeOutFrames else 1f
+
+        if (mLookaheadDepth > 0) {
+            val bufferCount = mLookaheadBytes / ((mLookaheadDepth + 1) * PipedAudioLookahead.BUFFER_CAPACITY)
+            val iterator = catSources.listIterator()
+            while (iterator.hasNext()) {
+                val source = iterator.next() ?: continue
+                iterator.set(PipedAudioLookahead(source, mSampleRate, mChannelCount, bufferCount.toInt()))
+            }
+        }
+        prefetchUpcoming()
+
         mComponentState = PipedMediaSource.State.SETUP
 
         start()
     }
 
+    private fun prefetchUpcoming() {
+        var count = 0
+        for (source in catSources) {
+            if (count >= Math.max(1, mLookaheadDepth)) break
+            if (source == null) continue
+            if (source is PipedMediaPrefetchable) source.prefetch()
+            count++
+        }
+    }
+
     private fun zeroSourceBuffer(timeUntil: Long){
+        val frames = min(srcBuffer.size / mChannelCount, ((timeUntil - mSeekTime) * mSampleRate / 1000000.0).toInt()+1)
         srcPos = 0
-        srcEnd = min(srcBuffer.size,((timeUntil - mSeekTime) * mSampleRate / 1000000.0).toInt()+1)
-        if(srcEnd < 1) srcEnd = 1
-        srcBuffer.fill(0,0,srcEnd-1)
+        srcEnd = max(1, frames) * mChannelCount
+        srcBuffer.fill(0f, 0, srcEnd)
         srcHasBuffer = true
     }
 
@@ -282,6 +344,11 @@ class PipedAudioConcatenator
                     } else {
                         mTransitionStart = mSourceStart + mSourceExpectedDuration
                     }
+
+                    mSourceStartIndex = mSourceStart * mSampleRate / 1000000L
+                    mSourceEndIndex = if (mSourceExpectedDuration == 0L) NO_END
+                        else (mSourceStart + mSourceExpectedDuration) * mSampleRate / 1000000L
+                    mSourceGain = mSourceVolume
                 }
 
                 if (!isDone && mSourceStart > mSeekTime) {
@@ -313,29 +380,12 @@ class PipedAudioConcatenator
             val sourceEnd = mSourceStart + mSourceExpectedDuration
 
 
+            //Fetching also applies the source volume and the fade in/fade out.
             if (srcHasBuffer && srcPos >= srcEnd) {
                 fetchSourceBuffer()
             }
 
 
-            //Do a controlled fade out/fade in.
-            val fadeInEndTime = mSourceStart + mFadeInUs
-            val fadeInSamplesAtPos = ((mSeekTime - mSourceStart) *  mSampleRate / 1000000.0).toInt()
-            val fadeInEnd = min(srcEnd, srcPos + ((fadeInEndTime - mSeekTime) * mSampleRate / 1000000.0).toInt())
-            val fadeInMult: Float = (1.0 / fadeInSamples).toFloat()
-            for (index in srcPos until fadeInEnd) {
-                srcBuffer[index] = (srcBuffer[index] * (fadeInSamplesAtPos + index) * fadeInMult).toShort()
-            }
-
-            val fadeOutStartTime = sourceEnd - mFadeOutUs
-            val fadeOutSamplesToEnd = (sourceEnd *  mSampleRate / 1000000.0 - mAbsoluteSampleIndex).toInt()
-            val fadeOutPos = max(srcPos, srcPos + ((fadeOutStartTime - mSeekTime) * mSampleRate / 1000000.0).toInt())
-            val fadeOutMult: Float = (1.0 / fadeOutSamples).toFloat()
-            for (index in fadeOutPos until srcEnd) {
-                srcBuffer[index] = (srcBuffer[index] * (fadeOutSamplesToEnd - index) * fadeOutMult).toShort()
-            }
-
-
             val isWithinExpectedTime = mSourceExpectedDuration == 0L || mSeekTime <= sourceEnd
             if (!srcHasBuffer || !isWithinExpectedTime) {
                 if (MediaHelper.VERBOSE) Log.v(TAG, "loadSamples starting transition")
@@ -352,7 +402,7 @@ class PipedAudioConcatenator
     }
 
     @Throws(SourceClosedException::class)
-    override fun fetchSourceBuffer() {
+    private fun fetchSourceBuffer() {
         if (mSource!!.isDone) {
             srcHasBuffer = false
             return
@@ -360,26 +410,87 @@ class PipedAudioConcatenator
 
         //buffer of bytes
         val buffer = mSource!!.getBuffer(mInfo)
+        if (buffer == null) {
+            //The source ended without reporting it first.
+            srcHasBuffer = false
+            return
+        }
         //buffer of shorts (16-bit samples)
         val sBuffer = MediaHelper.getShortBuffer(buffer)
 
         srcPos = 0
         srcEnd = sBuffer.remaining()
         //Copy ShortBuffer to array of shorts in hopes of speedup.
-        sBuffer.get(srcBuffer, srcPos, srcEnd)
-
-        if(mSourceVolume != 1.0f)
-            srcBuffer.sliceArray(srcPos..srcEnd).forEachIndexed {
-                index, sh -> srcBuffer[index] = (sh*mSourceVolume).toShort() }
+        sBuffer.get(mShortBuffer, 0, srcEnd)
 
         //Release buffer since data was copied.
         mSource!!.releaseBuffer(buffer)
 
+        applyGainAndFades(srcEnd)
+
         srcHasBuffer = true
     }
 
+    /**
+     * Convert the freshly fetched samples to float, applying the source volume, fade-in and
+     * fade-out in the same pass. mShortBuffer[0] is the first sample of frame mAbsoluteFrameIndex.
+     * Only the samples inside the fade ramps need a per-frame envelope; the rest are scaled by the
+     * constant gain.
+     * @param length number of samples in mShortBuffer.
+     */
+    private fun applyGainAndFades(length: Int) {
+        val shorts = mShortBuffer
+        val buffer = srcBuffer
+        val channelCount = mChannelCount
+        val firstFrame = mAbsoluteFrameIndex - mSourceStartIndex //frames since source start
+        val fadeInEnd = ((mFadeInFrames - firstFrame) * channelCount).coerceIn(0, length.toLong()).toInt()
+        val fadeOutStart = if (mSourceEndIndex == NO_END) length
+            else ((mSourceEndIndex - mFadeOutFrames - mAbsoluteFrameIndex) * channelCount).coerceIn(fadeInEnd.toLong(), length.toLong()).toInt()
+
+        val gain = mSourceGain * SHORT_TO_FLOAT
+        for (i in fadeInEnd until fadeOutStart) {
+            buffer[i] = shorts[i] * gain
+        }
+
+        for (i in 0 until fadeInEnd) {
+            buffer[i] = shorts[i] * gain * getEnvelope(firstFrame + i / channelCount)
+        }
+        for (i in max(fadeInEnd, fadeOutStart) until length) {
+            buffer[i] = shorts[i] * gain * getEnvelope(firstFrame + i / channelCount)
+        }
+    }
+
+    private fun getEnvelope(sourceFrame: Long): Float {
+        var envelope = 1f
+        if (sourceFrame < mFadeInFrames) {
+            envelope = max(0L, sourceFrame) * mFadeInStep
+        }
+        if (mSourceEndIndex != NO_END) {
+            val framesToEnd = mSourceEndIndex - mSourceStartIndex - sourceFrame
+            if (framesToEnd < mFadeOutFrames) {
+                envelope *= max(0L, framesToEnd) * mFadeOutStep
+            }
+        }
+        return envelope
+    }
+
+    override fun close() {
+        super.close()
+        mSource?.close()
+        mSource = null
+        //Sources which never played may hold files, codecs or decoding threads.
+        for (source in catSources) {
+            source?.close()
+        }
+        catSources.clear()
+    }
 
     companion object {
         private val TAG = "PipedAudioConcatenator"
+
+        /** default memory cap for decoding ahead */
+        const val LOOKAHEAD_BYTES_DEFAULT: Long = 1024 * 1024
+
+        private const val NO_END = Long.MAX_VALUE
     }
 }
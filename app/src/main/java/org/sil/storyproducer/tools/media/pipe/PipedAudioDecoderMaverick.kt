@@ -8,11 +8,18 @@ import org.sil.storyproducer.tools.media.MediaHelper
 
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
 /**
  *
  * This media pipeline component is a thin wrapper for the commonly used triumvirate of
  * [PipedMediaExtractor], [PipedMediaDecoder], and [PipedAudioResampler].
+ *
+ *
+ * Its decoder comes from [MediaCodecPool], and its extractor can be opened ahead of time with
+ * [prefetch], so that consecutive files of the same format play without setting up a codec each.
  */
 class PipedAudioDecoderMaverick
 /**
@@ -22,12 +29,14 @@ class PipedAudioDecoderMaverick
  * @param mChannelCount desired channel count.
  * @param mVolumeModifier volume scaling factor.
  */
-@JvmOverloads constructor(private val context: Context, private val mPath: String, private val mSampleRate: Int = 0, private val mChannelCount: Int = 0, private val mVolumeModifier: Float = 1f) : PipedMediaByteBufferSource {
+@JvmOverloads constructor(private val context: Context, private val mPath: String, private val mSampleRate: Int = 0, private val mChannelCount: Int = 0, private val mVolumeModifier: Float = 1f) : PipedMediaByteBufferSource, PipedMediaPrefetchable {
 
     private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
 
     private var mSource: PipedMediaByteBufferSource? = null
 
+    private var mPrefetch: Future<PipedMediaExtractor>? = null
+
     override fun getMediaType(): MediaHelper.MediaType {
         return MediaHelper.MediaType.AUDIO
     }
@@ -61,9 +70,9 @@ class PipedAudioDecoderMaverick
             return
         }
 
-        val extractor = PipedMediaExtractor(context, mPath, MediaHelper.MediaType.AUDIO)
+        val extractor = takeExtractor()
 
-        val decoder = PipedMediaDecoder()
+        val decoder = PipedMediaDecoder(true)
         decoder.addSource(extractor)
         decoder.setup()
 
@@ -80,7 +89,55 @@ class PipedAudioDecoderMaverick
         mComponentState = PipedMediaSource.State.SETUP
     }
 
+    @Synchronized
+    override fun prefetch() {
+        if (mPrefetch != null || mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+        mPrefetch = PipelineExecutor.submitBackground(Callable<PipedMediaExtractor> {
+            val extractor = PipedMediaExtractor(context, mPath, MediaHelper.MediaType.AUDIO)
+            try {
+                extractor.setup()
+            } catch (e: Exception) {
+                extractor.close()
+                throw e
+            }
+            extractor
+        })
+    }
+
+    @Synchronized
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun takeExtractor(): PipedMediaExtractor {
+        val prefetch = mPrefetch ?: return PipedMediaExtractor(context, mPath, MediaHelper.MediaType.AUDIO)
+        mPrefetch = null
+        try {
+            return prefetch.get()
+        } catch (e: ExecutionException) {
+            val cause = e.cause
+            when (cause) {
+                is IOException -> throw cause
+                is SourceUnacceptableException -> throw cause
+                else -> throw IOException("Failed to open $mPath", cause)
+            }
+        } catch (e: InterruptedException) {
+            prefetch.cancel(true)
+            throw IOException("Interrupted while opening $mPath", e)
+        }
+    }
+
     override fun close() {
+        synchronized(this) {
+            val prefetch = mPrefetch
+            mPrefetch = null
+            if (prefetch != null && !prefetch.cancel(false)) {
+                try {
+                    prefetch.get().close()
+                } catch (e: Exception) {
+                    //The failure no longer matters.
+                }
+            }
+        }
         if (mSource != null) {
             mSource!!.close()
             mSource = null
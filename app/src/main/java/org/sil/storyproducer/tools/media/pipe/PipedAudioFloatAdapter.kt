@@ -0,0 +1,101 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.IOException
+
+/**
+ *
+ * This media pipeline component brings a raw 16-bit audio stream into the float domain,
+ * so that it can feed a [PipedAudioFloatManipulator] such as [PipedAudioFloatMixer].
+ */
+class PipedAudioFloatAdapter : PipedAudioFloatManipulator(), PipedMediaByteBufferDest {
+    override val componentName: String
+        get() = TAG
+
+    private var mSource: PipedMediaByteBufferSource? = null
+    private var mOutputFormat: MediaFormat? = null
+
+    private val mShortBuffer = ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    @Throws(SourceUnacceptableException::class)
+    override fun addSource(src: PipedMediaByteBufferSource?) {
+        if (mSource != null) {
+            throw SourceUnacceptableException("I already got a source")
+        }
+        if (src == null) {
+            throw SourceUnacceptableException("Source cannot be null!")
+        }
+        mSource = src
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        val source = mSource ?: throw SourceUnacceptableException("No source specified!")
+        source.setup()
+
+        val format = source.outputFormat
+        if (source.mediaType != MediaHelper.MediaType.AUDIO
+                || format.getString(MediaFormat.KEY_MIME) != MediaHelper.MIMETYPE_RAW_AUDIO) {
+            throw SourceUnacceptableException("Source audio must be a raw audio stream!")
+        }
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+
+        mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount)
+
+        start()
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun loadSamples(): Boolean {
+        val source = mSource ?: return false
+        //Skip over empty buffers until samples or the end of the stream turn up.
+        while (!source.isDone) {
+            val buffer = source.getBuffer(mInfo) ?: return false
+            val sBuffer = MediaHelper.getShortBuffer(buffer)
+            val size = sBuffer.remaining()
+            sBuffer.get(mShortBuffer, 0, size)
+            source.releaseBuffer(buffer)
+
+            if (MediaHelper.VERBOSE) Log.v(TAG, "Received buffer of size " + mInfo.size)
+
+            if (size > 0) {
+                val shorts = mShortBuffer
+                val floats = srcBuffer
+                for (i in 0 until size) {
+                    floats[i] = shorts[i] * SHORT_TO_FLOAT
+                }
+                srcPos = 0
+                srcEnd = size
+                return true
+            }
+        }
+        return false
+    }
+
+    override fun close() {
+        super.close()
+        if (mSource != null) {
+            mSource!!.close()
+            mSource = null
+        }
+    }
+
+    companion object {
+        private val TAG = "PipedAudioFloatAdapter"
+    }
+}
@@ -0,0 +1,246 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.nio.ByteBuffer
+import kotlin.math.min
+
+/**
+ *
+ * This abstract media pipeline component provides a base for audio components which process
+ * samples as floats rather than shorts.
+ *
+ *
+ * Float components are chained directly through [PipedAudioFloatSource.readFloats]; no thread,
+ * queue or ByteBuffer sits between them, and gains or sums are never clipped along the way.
+ * Samples are quantized to 16-bit PCM exactly once, when a ByteBuffer consumer (normally a
+ * [PipedMediaEncoder]) calls [fillBuffer] or [getBuffer]. Quantization uses TPDF dither
+ * unless it is disabled with [setDither].
+ *
+ *
+ * A class overriding this class only needs to provide [loadSamples], which refills
+ * [srcBuffer] with whole frames of interleaved samples.
+ */
+abstract class PipedAudioFloatManipulator : PipedAudioFloatSource, PipedMediaByteBufferSource {
+
+    protected abstract val componentName: String
+
+    private var mIsDone = false
+
+    protected var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    protected var mSampleRate: Int = 0
+    protected var mChannelCount: Int = 0
+    protected var mAbsoluteFrameIndex: Long = 0
+    protected val mSeekTime: Long get() {
+        if(mSampleRate == 0) return 0
+        return mAbsoluteFrameIndex * 1000000 / mSampleRate
+    }
+
+    protected val mInfo = MediaCodec.BufferInfo()
+    protected var srcBuffer = FloatArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
+    protected var srcPos: Int = 0
+    protected var srcEnd: Int = 0
+    protected val srcSamplesAvailable: Int get() {return srcEnd - srcPos}
+
+    //Quantization state, only used at the ByteBuffer boundary.
+    private var mDither = true
+    private var mDitherSeed = 0x2545F491
+    private var mQuantizeFloats = FloatArray(0)
+    private var mQuantizeShorts = ShortArray(0)
+    private var mOutBuffer: ByteBuffer? = null
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return MediaHelper.MediaType.AUDIO
+    }
+
+    override fun isDone(): Boolean {
+        return mIsDone || mComponentState == PipedMediaSource.State.CLOSED
+    }
+
+    /**
+     * Enable or disable TPDF dither when quantizing to 16-bit output. Dither is on by default.
+     */
+    fun setDither(dither: Boolean) {
+        mDither = dither
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun readFloats(dest: FloatArray, offset: Int, length: Int): Int {
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            throw SourceClosedException()
+        }
+        if (mIsDone) return -1
+
+        //N.B. Always provide all samples (of different channels) of the same time together.
+        val wanted = length - length % mChannelCount
+        var written = 0
+        while (written < wanted) {
+            if (srcSamplesAvailable <= 0 && !loadSamples()) {
+                mIsDone = true
+                break
+            }
+            val copyLength = min(wanted - written, srcSamplesAvailable)
+            System.arraycopy(srcBuffer, srcPos, dest, offset + written, copyLength)
+            srcPos += copyLength
+            written += copyLength
+
+            //Keep track of the current presentation time, which loadSamples may depend on.
+            mAbsoluteFrameIndex += copyLength / mChannelCount
+        }
+
+        return if (written == 0 && mIsDone) -1 else written
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        buffer.clear()
+        quantizeInto(buffer, buffer.capacity() / 2, info)
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+        val buffer = ByteBufferPool.getShared()
+        mOutBuffer = buffer
+        quantizeInto(buffer, buffer.capacity() / 2, info)
+        return buffer
+    }
+
+    @Throws(InvalidBufferException::class)
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        if (buffer !== mOutBuffer) {
+            throw InvalidBufferException("I don't own that buffer!")
+        }
+        mOutBuffer = null
+        ByteBufferPool.releaseShared(buffer)
+    }
+
+    /**
+     * Read up to maxSamples samples from this component and write them to buffer as 16-bit PCM.
+     */
+    @Throws(SourceClosedException::class)
+    private fun quantizeInto(buffer: ByteBuffer, maxSamples: Int, info: MediaCodec.BufferInfo) {
+        val length = min(maxSamples, MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
+        if (mQuantizeFloats.size < length) {
+            mQuantizeFloats = FloatArray(length)
+            mQuantizeShorts = ShortArray(length)
+        }
+
+        info.set(0, 0, mSeekTime, 0)
+
+        val count = readFloats(mQuantizeFloats, 0, length).coerceAtLeast(0)
+
+        val floats = mQuantizeFloats
+        val shorts = mQuantizeShorts
+        if (mDither) {
+            var seed = mDitherSeed
+            for (i in 0 until count) {
+                //Triangular dither of +/-1 LSB: the difference of two uniform values.
+                seed = seed xor (seed shl 13)
+                seed = seed xor (seed ushr 17)
+                seed = seed xor (seed shl 5)
+                val r1 = seed and 0xFFFF
+                seed = seed xor (seed shl 13)
+                seed = seed xor (seed ushr 17)
+                seed = seed xor (seed shl 5)
+                val r2 = seed and 0xFFFF
+                val dither = (r1 - r2) * DITHER_SCALE
+                shorts[i] = quantize(floats[i] * FULL_SCALE + dither)
+            }
+            mDitherSeed = seed
+        } else {
+            for (i in 0 until count) {
+                shorts[i] = quantize(floats[i] * FULL_SCALE)
+            }
+        }
+
+        MediaHelper.getShortBuffer(buffer).put(shorts, 0, count)
+        info.size = count * 2 //short = 2 bytes
+        buffer.position(info.offset)
+        buffer.limit(info.offset + info.size)
+
+        if (mIsDone) {
+            info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM
+        }
+
+        if (MediaHelper.VERBOSE) {
+            Log.v(TAG, "$componentName: quantized buffer of size " + info.size
+                    + " for time " + info.presentationTimeUs)
+        }
+    }
+
+    /**
+     *
+     * Instruct the callee to refill [srcBuffer], setting [srcPos] and [srcEnd].
+     * Only this abstract base class should call this function.
+     *
+     * @return true if samples were loaded and false if the component has no more input
+     */
+    @Throws(SourceClosedException::class)
+    protected abstract fun loadSamples(): Boolean
+
+    /**
+     * Validate the source as raw audio against specified channel count and sample rate.
+     * @param source to be validated
+     * @param channelCount required source channel count (or 0 for any channel count)
+     * @param sampleRate required source sample rate (or 0 for any sample rate)
+     * @throws SourceUnacceptableException if source is not raw audio or doesn't match specs
+     */
+    @Throws(SourceUnacceptableException::class)
+    protected fun validateSource(source: PipedMediaByteBufferSource, channelCount: Int = mChannelCount, sampleRate: Int = mSampleRate) {
+        val format = source.outputFormat
+
+        if (source.mediaType != MediaHelper.MediaType.AUDIO
+                || format.getString(MediaFormat.KEY_MIME) != MediaHelper.MIMETYPE_RAW_AUDIO) {
+            throw SourceUnacceptableException("Source audio must be a raw audio stream!")
+        }
+        if (channelCount != 0 && channelCount != format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)) {
+            throw SourceUnacceptableException("Source audio channel counts don't match!")
+        }
+        if (sampleRate != 0 && sampleRate != format.getInteger(MediaFormat.KEY_SAMPLE_RATE)) {
+            throw SourceUnacceptableException("Source audio sample rates don't match!")
+        }
+    }
+
+    /**
+     * Mark the component as running once [mSampleRate] and [mChannelCount] are known.
+     */
+    @Throws(SourceUnacceptableException::class)
+    protected fun start() {
+        if (mSampleRate == 0) {
+            throw SourceUnacceptableException("$componentName: Sample rate not specified!")
+        }
+        if (mChannelCount == 0) {
+            throw SourceUnacceptableException("$componentName: Channel count not specified!")
+        }
+        mComponentState = PipedMediaSource.State.RUNNING
+    }
+
+    override fun close() {
+        mComponentState = PipedMediaSource.State.CLOSED
+        val outBuffer = mOutBuffer
+        if (outBuffer != null) {
+            mOutBuffer = null
+            ByteBufferPool.releaseShared(outBuffer)
+        }
+    }
+
+    companion object {
+        private val TAG = "PipedAudioFloatMan"
+
+        /** float value of one 16-bit step */
+        const val SHORT_TO_FLOAT = 1f / 32768f
+        private const val FULL_SCALE = 32768f
+        private const val DITHER_SCALE = 1f / 65536f
+
+        private fun quantize(value: Float): Short {
+            //Round to nearest; the float to int conversion itself saturates.
+            val rounded = if (value >= 0) (value + 0.5f).toInt() else (value - 0.5f).toInt()
+            return MediaHelper.clampToShort(rounded)
+        }
+    }
+}
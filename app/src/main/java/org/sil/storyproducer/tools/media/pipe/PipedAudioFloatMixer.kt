@@ -0,0 +1,181 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaFormat
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.IOException
+import java.util.*
+
+/**
+ *
+ * This media pipeline component mixes raw audio streams together in the float domain.
+ *
+ * Sums and gains are not clipped; the result is only clipped (and dithered) once, when it is
+ * handed to the encoder as 16-bit PCM. Sources which only provide 16-bit buffers are wrapped in a
+ * [PipedAudioFloatAdapter].
+ */
+class PipedAudioFloatMixer : PipedAudioFloatManipulator(), PipedMediaByteBufferDest {
+    override val componentName: String
+        get() = TAG
+
+    private var mOutputFormat: MediaFormat? = null
+
+    private val mixSources = ArrayList<PipedAudioFloatSource>()
+    private val mixSourceGains = ArrayList<Float>()
+
+    //Per-source state, indexed in step with mixSources. Only the first mSourceCount entries are live.
+    private var mSourceCount = 0
+    private var mixGains = FloatArray(0)
+
+    private val mReadBuffer = FloatArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    /**
+     * Specify a predecessor of this component in the pipeline.
+     * @param src the preceding component of the pipeline.
+     * @throws SourceUnacceptableException if source is null.
+     */
+    @Throws(SourceUnacceptableException::class)
+    override fun addSource(src: PipedMediaByteBufferSource?) {
+        addSource(src, 1f)
+    }
+
+    /**
+     * Specify a predecessor of this component in the pipeline with a specified volume scaling factor.
+     * @param src the preceding component of the pipeline.
+     * @param gain volume scaling factor applied to this source while mixing.
+     * @throws SourceUnacceptableException if source is null.
+     */
+    @Throws(SourceUnacceptableException::class)
+    fun addSource(src: PipedMediaByteBufferSource?, gain: Float) {
+        if (src == null) {
+            throw SourceUnacceptableException("Source cannot be null!")
+        }
+
+        if (src is PipedAudioFloatSource) {
+            addFloatSource(src, gain)
+        } else {
+            val adapter = PipedAudioFloatAdapter()
+            adapter.addSource(src)
+            addFloatSource(adapter, gain)
+        }
+    }
+
+    /**
+     * Specify a float predecessor of this component in the pipeline.
+     * @param src the preceding component of the pipeline.
+     * @param gain volume scaling factor applied to this source while mixing.
+     */
+    fun addFloatSource(src: PipedAudioFloatSource, gain: Float) {
+        mixSources.add(src)
+        mixSourceGains.add(gain)
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        if (mixSources.isEmpty()) {
+            throw SourceUnacceptableException("No sources specified!")
+        }
+
+        mSourceCount = mixSources.size
+        mixGains = FloatArray(mSourceCount)
+
+        for (i in 0 until mSourceCount) {
+            val source = mixSources[i]
+            source.setup()
+
+            val format = source.outputFormat
+            if (source.mediaType != MediaHelper.MediaType.AUDIO
+                    || format.getString(MediaFormat.KEY_MIME) != MediaHelper.MIMETYPE_RAW_AUDIO) {
+                throw SourceUnacceptableException("Source audio must be a raw audio stream!")
+            }
+            val channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            val sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+            if (mChannelCount == 0) {
+                mChannelCount = channelCount
+            } else if (mChannelCount != channelCount) {
+                throw SourceUnacceptableException("Source audio channel counts don't match!")
+            }
+            if (mSampleRate == 0) {
+                mSampleRate = sampleRate
+            } else if (mSampleRate != sampleRate) {
+                throw SourceUnacceptableException("Source audio sample rates don't match!")
+            }
+
+            mixGains[i] = mixSourceGains[i]
+        }
+
+        mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount)
+
+        start()
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun loadSamples(): Boolean {
+        val out = srcBuffer
+        val read = mReadBuffer
+        var length = 0
+
+        //Every source is asked for the same amount. A source which comes up short has ended,
+        //so the rest of the mix is made up of the sources that remain.
+        var s = 0
+        while (s < mSourceCount) {
+            val source = mixSources[s]
+            val gain = mixGains[s]
+            val count = source.readFloats(read, 0, out.size)
+            if (count < 0) {
+                source.close()
+                removeSource(s)
+                continue
+            }
+
+            //Zero the part of the mix this source is the first to reach.
+            for (i in length until count) out[i] = 0f
+            if (count > length) length = count
+
+            if (gain == 1f) {
+                for (i in 0 until count) out[i] += read[i]
+            } else {
+                for (i in 0 until count) out[i] += read[i] * gain
+            }
+            s++
+        }
+
+        if (mSourceCount == 0) return false
+
+        srcPos = 0
+        srcEnd = length
+        return true
+    }
+
+    private fun removeSource(sourceIndex: Int) {
+        mixSources.removeAt(sourceIndex)
+        for (i in sourceIndex until mSourceCount - 1) {
+            mixGains[i] = mixGains[i + 1]
+        }
+        mSourceCount--
+    }
+
+    override fun close() {
+        super.close()
+        while (!mixSources.isEmpty()) {
+            val source = mixSources.removeAt(0)
+            source.close()
+        }
+        mSourceCount = 0
+    }
+
+    companion object {
+        private val TAG = "PipedAudioFloatMixer"
+    }
+}
@@ -0,0 +1,21 @@
+package org.sil.storyproducer.tools.media.pipe;
+
+/**
+ * <p>Describes a component of the media pipeline which provides raw audio as interleaved float
+ * samples, where 1.0 corresponds to the full scale of a 16-bit sample.</p>
+ * <p>Float samples are not clipped, so gains can be stacked between float components without
+ * overflowing. Conversion back to 16-bit PCM is left to the last component before an encoder.</p>
+ * <p>Note: This interface is only intended to be used by other media pipeline components.</p>
+ */
+public interface PipedAudioFloatSource extends PipedMediaSource {
+    /**
+     * Request that this component copy its next samples into the provided array.
+     * Whole frames (all channels of a time step) are always provided together.
+     * @param dest the array (owned by the caller) to be filled.
+     * @param offset index of dest at which to start writing.
+     * @param length maximum number of samples to write.
+     * @return the number of samples written, or -1 if the component has no more samples.
+     * @throws SourceClosedException if the source is closed prematurely.
+     */
+    int readFloats(float[] dest, int offset, int length) throws SourceClosedException;
+}
@@ -0,0 +1,256 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Future
+
+/**
+ *
+ * This media pipeline component sets up and decodes a raw audio source on a background thread,
+ * into a [ByteBufferQueue] of bounded size, before its consumer needs it. The concatenator
+ * starts it with [prefetch] while the previous source is still playing, so that codec start-up
+ * and the first few seconds of decoding are off its critical path.
+ *
+ *
+ * The source is converted to the given sample rate and channel count on the background thread
+ * as well. Once the queue is full, the background thread waits for the consumer.
+ *
+ *
+ * Decoding runs on the bounded background pool of [PipelineExecutor]. If no worker has picked
+ * the source up by the time it is set up, the consumer reads it directly instead.
+ */
+class PipedAudioLookahead
+/**
+ * @param mSource raw audio source to decode ahead.
+ * @param mSampleRate desired sample rate.
+ * @param mChannelCount desired channel count.
+ * @param bufferCount number of [BUFFER_CAPACITY] buffers that may be decoded ahead.
+ */
+(private val mSource: PipedMediaByteBufferSource, private val mSampleRate: Int, private val mChannelCount: Int,
+ bufferCount: Int) : PipedMediaByteBufferSource, PipedMediaPrefetchable {
+
+    private val mLock = Object()
+    @Volatile private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private val mQueue = ByteBufferQueue(Math.max(2, bufferCount), BUFFER_CAPACITY)
+
+    private var mTask: Future<*>? = null
+    private var mIsProducerStarted = false
+    private var mIsProducerStopped = false
+    //source read by the consumer itself, when decoding ahead never started
+    private var mDirectSource: PipedMediaByteBufferSource? = null
+
+    private val mSetupDone = CountDownLatch(1)
+    @Volatile private var mSetupError: Exception? = null
+    @Volatile private var mOutputFormat: MediaFormat? = null
+    @Volatile private var mIsProducerDone = false
+
+    override fun prefetch() {
+        synchronized(mLock) {
+            if (mTask != null || mComponentState == PipedMediaSource.State.CLOSED) {
+                return
+            }
+            mTask = PipelineExecutor.submitBackground(Runnable { produce() })
+        }
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        prefetch()
+        val isDirect = synchronized(mLock) {
+            if (!mIsProducerStarted && mComponentState != PipedMediaSource.State.CLOSED) {
+                //The producer will see the direct source and leave the source alone.
+                mDirectSource = mSource
+                mTask?.cancel(false)
+            }
+            mDirectSource != null
+        }
+        if (isDirect) {
+            mSource.setup()
+            val source = PipedAudioResampler.correctSampling(mSource, mSampleRate, mChannelCount)
+            mDirectSource = source
+            source.setup()
+            mOutputFormat = source.outputFormat
+            mComponentState = PipedMediaSource.State.RUNNING
+            return
+        }
+        try {
+            mSetupDone.await()
+        } catch (e: InterruptedException) {
+            throw IOException("Interrupted while setting up source", e)
+        }
+        val error = mSetupError
+        when (error) {
+            null -> {}
+            is IOException -> throw error
+            is SourceUnacceptableException -> throw error
+            else -> throw IOException("Failed to set up source", error)
+        }
+
+        mComponentState = PipedMediaSource.State.RUNNING
+    }
+
+    private fun produce() {
+        synchronized(mLock) {
+            if (mComponentState == PipedMediaSource.State.CLOSED) {
+                mSetupError = SourceClosedException()
+                mSetupDone.countDown()
+                return
+            }
+            if (mDirectSource != null) return
+            mIsProducerStarted = true
+        }
+
+        var source = mSource
+        try {
+            try {
+                source.setup()
+                source = PipedAudioResampler.correctSampling(source, mSampleRate, mChannelCount)
+                source.setup()
+                mOutputFormat = source.outputFormat
+            } catch (e: Exception) {
+                mSetupError = e
+                return
+            } finally {
+                mSetupDone.countDown()
+            }
+
+            val info = MediaCodec.BufferInfo()
+            while (!source.isDone) {
+                val buffer = source.getBuffer(info) ?: break
+                try {
+                    if (!enqueue(buffer, info)) break
+                } finally {
+                    source.releaseBuffer(buffer)
+                }
+            }
+        } catch (e: SourceClosedException) {
+            if (MediaHelper.VERBOSE) Log.v(TAG, "Source closed while decoding ahead.")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to decode ahead; ending the source early.", e)
+        } finally {
+            mIsProducerDone = true
+            synchronized(mLock) {
+                //Let the consumer drain what is left, then see the end.
+                mQueue.close()
+                source.close()
+                mIsProducerStopped = true
+                if (mComponentState == PipedMediaSource.State.CLOSED) {
+                    mQueue.recycleBuffers()
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a source buffer into as many queue buffers as it needs.
+     * @return false if the queue was closed.
+     */
+    private fun enqueue(buffer: ByteBuffer, info: MediaCodec.BufferInfo): Boolean {
+        val limit = buffer.limit()
+        while (buffer.hasRemaining()) {
+            var queueBuffer: ByteBuffer? = null
+            while (queueBuffer == null) {
+                if (mComponentState == PipedMediaSource.State.CLOSED) return false
+                queueBuffer = mQueue.getEmptyBuffer(QUEUE_WAIT_US)
+            }
+            val size = Math.min(queueBuffer.remaining(), buffer.remaining())
+            buffer.limit(buffer.position() + size)
+            queueBuffer.put(buffer)
+            buffer.limit(limit)
+            queueBuffer.flip()
+
+            info.offset = 0
+            info.size = size
+            mQueue.sendFilledBuffer(queueBuffer, info)
+        }
+        return true
+    }
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return MediaHelper.MediaType.AUDIO
+    }
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    override fun isDone(): Boolean {
+        mDirectSource?.let { return it.isDone || mComponentState == PipedMediaSource.State.CLOSED }
+        return (mIsProducerDone && mQueue.isEmpty) || mComponentState == PipedMediaSource.State.CLOSED
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        val queueBuffer = getBuffer(info) ?: throw SourceClosedException()
+        buffer.clear()
+        buffer.put(queueBuffer)
+        releaseBuffer(queueBuffer)
+    }
+
+    /**
+     * @return the next decoded buffer, or null once the source has ended.
+     */
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer? {
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            throw SourceClosedException()
+        }
+        mDirectSource?.let { return it.getBuffer(info) }
+        return mQueue.getFilledBuffer(info)
+    }
+
+    @Throws(InvalidBufferException::class, SourceClosedException::class)
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        val directSource = mDirectSource
+        if (directSource != null) {
+            directSource.releaseBuffer(buffer)
+        } else {
+            mQueue.releaseUsedBuffer(buffer)
+        }
+    }
+
+    override fun close() {
+        synchronized(mLock) {
+            if (mComponentState == PipedMediaSource.State.CLOSED) {
+                return
+            }
+            mComponentState = PipedMediaSource.State.CLOSED
+            mQueue.close()
+            val directSource = mDirectSource
+            if (directSource != null) {
+                directSource.close()
+                mQueue.recycleBuffers()
+            } else if (!mIsProducerStarted) {
+                //The producer will see the closed state and leave the source alone.
+                mTask?.cancel(false)
+                mSource.close()
+                mQueue.recycleBuffers()
+            } else if (mIsProducerStopped) {
+                mQueue.recycleBuffers()
+            }
+            //Otherwise, the producer closes the source and recycles the buffers when it stops.
+        }
+        if (MediaHelper.DEBUG) Log.d(TAG, "Queue: " + mQueue.statistics)
+    }
+
+    companion object {
+        private val TAG = "PipedAudioLookahead"
+
+        /** capacity of each decoded buffer */
+        const val BUFFER_CAPACITY = 16 * 1024
+
+        private const val QUEUE_WAIT_US: Long = 100000
+    }
+}
@@ -1,14 +1,26 @@
 package org.sil.storyproducer.tools.media.pipe
 
 import android.content.Context
+import android.media.MediaCodec
 import android.media.MediaFormat
 import android.util.Log
+import org.sil.storyproducer.tools.media.MediaDurationIndex
 import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.File
 import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.min
 
 /**
  *
  * This media pipeline component loops a single audio file for a specified amount of time.
+ *
+ * The file is decoded once into a loop buffer (or, if [PcmCache] already holds it, the cache
+ * entry is mapped) and replayed from there, with a short cross-fade at each seam. Files too long
+ * to hold in memory are streamed instead, reopening the file for each pass.
  */
 class PipedAudioLooper
 /**
@@ -25,6 +37,17 @@ class PipedAudioLooper
 
     override val componentName: String = TAG
 
+    //Loop buffer state; mLoop is null when streaming.
+    private var mLoop: ShortBuffer? = null
+    private var mLoopLength = 0 //samples
+    private var mSeamLength = 0 //samples
+    private var mLoopPos = 0 //next sample of mLoop to play
+    private var mSeamPos = -1 //position within the seam, or -1 when not in a seam
+    private var mEndIndex = 0 //value of mAbsoluteSampleIndex at the desired duration
+
+    //Cache entries hold the file at its original volume.
+    private val isUnityVolume: Boolean get() = Math.abs(mVolumeModifier - 1) < 0.001
+
     init {
         mSampleRate = sampleRate
         mChannelCount = channelCount
@@ -40,21 +63,35 @@ class PipedAudioLooper
             return
         }
 
-        mSource = PipedAudioDecoderMaverick(context, mPath, mSampleRate, mChannelCount, mVolumeModifier)
+        mSource = openSource()
         mSource!!.setup()
 
         validateSource(mSource!!)
 
+        val sourceOutputFormat = mSource!!.outputFormat
+        mSampleRate = sourceOutputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        mChannelCount = sourceOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+        mEndIndex = (mDurationUs * mSampleRate / 1000000L).toInt()
+
         try {
-            fetchSourceBuffer()
+            mLoop = loadLoopBuffer()
+            if (mLoop == null) {
+                fetchSourceBuffer()
+            }
         } catch (e: SourceClosedException) {
             //This case should not happen.
             throw SourceUnacceptableException("First fetchSourceBuffer failed! Strange", e)
         }
 
-        val sourceOutputFormat = mSource!!.outputFormat
-        mSampleRate = sourceOutputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
-        mChannelCount = sourceOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+        if (mLoop != null) {
+            mLoopLength = mLoop!!.limit()
+            if (mLoopLength == 0) {
+                throw SourceUnacceptableException("Audio file is empty!")
+            }
+            //The seam must leave some of the loop untouched between fades.
+            val seamFrames = min(SEAM_US * mSampleRate / 1000000L, (mLoopLength / mChannelCount / 4).toLong()).toInt()
+            mSeamLength = seamFrames * mChannelCount
+        }
 
         mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
         mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
@@ -65,12 +102,59 @@ class PipedAudioLooper
         start()
     }
 
+    /**
+     * Get the whole audio file as samples, either by mapping its [PcmCache] entry or by decoding
+     * mSource to the end. The source is closed if it was used up.
+     * @return the loop buffer, or null if the file is too long and must be streamed.
+     */
+    @Throws(IOException::class, SourceClosedException::class)
+    private fun loadLoopBuffer(): ShortBuffer? {
+        val entry: File? = if (isUnityVolume) PcmCache.lookup(context, mPath, mSampleRate, mChannelCount) else null
+        if (entry != null) {
+            RandomAccessFile(entry, "r").use { file ->
+                val mapped = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+                closeSource()
+                return mapped.order(ByteOrder.nativeOrder()).asShortBuffer()
+            }
+        }
+
+        val durationUs = MediaDurationIndex.getDuration(context, mPath)
+        val estimate = durationUs * mSampleRate / 1000000L * mChannelCount
+        if (durationUs <= 0 || estimate > MAX_LOOP_SAMPLES) {
+            if (MediaHelper.VERBOSE) Log.v(TAG, "streaming $mPath")
+            return null
+        }
+
+        //Leave some headroom for the reported duration being a little short.
+        var samples = ShortArray(estimate.toInt() + estimate.toInt() / 16 + mChannelCount)
+        var length = 0
+        val info = MediaCodec.BufferInfo()
+        val source = mSource!!
+        while (!source.isDone) {
+            val buffer = source.getBuffer(info) ?: break
+            val sBuffer = MediaHelper.getShortBuffer(buffer)
+            val size = sBuffer.remaining()
+            if (length + size > samples.size) {
+                samples = samples.copyOf(samples.size * 2)
+            }
+            sBuffer.get(samples, length, size)
+            length += size
+            source.releaseBuffer(buffer)
+        }
+        closeSource()
+
+        return ShortBuffer.wrap(samples, 0, length - length % mChannelCount).slice()
+    }
+
     @Throws(SourceClosedException::class)
     override fun loadSamples(): Boolean {
+        if (mLoop != null) {
+            return loadLoopSamples()
+        }
+
         //Component is done if duration is exceeded.
         if (mSeekTime >= mDurationUs) {
-            mSource!!.close()
-            mSource = null
+            closeSource()
             return false
         }
 
@@ -79,20 +163,18 @@ class PipedAudioLooper
         }
         if (!srcHasBuffer) {
             mSource!!.close()
-            mSource = PipedAudioDecoderMaverick(context, mPath, mSampleRate, mChannelCount, mVolumeModifier)
+            mSource = openSource()
 
             try {
                 mSource!!.setup()
                 fetchSourceBuffer()
             } catch (e: IOException) {
                 Log.e(TAG, "Source setup failed!", e)
-                mSource!!.close()
-                mSource = null
+                closeSource()
                 return false
             } catch (e: SourceUnacceptableException) {
                 Log.e(TAG, "Source setup failed!", e)
-                mSource!!.close()
-                mSource = null
+                closeSource()
                 return false
             }
 
@@ -101,7 +183,84 @@ class PipedAudioLooper
         return true
     }
 
+    /**
+     * Fill srcBuffer from the loop buffer, up to the desired duration.
+     *
+     * The first pass plays the loop from its start. Each seam blends the last mSeamLength samples
+     * of the loop (fading out) with the first mSeamLength samples (fading in), after which the
+     * next pass continues just past the faded-in part.
+     */
+    private fun loadLoopSamples(): Boolean {
+        val loop = mLoop!!
+        var remaining = mEndIndex - mAbsoluteSampleIndex
+        remaining -= remaining % mChannelCount
+        if (remaining <= 0) return false
+
+        val length = min(srcBuffer.size - srcBuffer.size % mChannelCount, remaining)
+        val out = srcBuffer
+        val seamStart = mLoopLength - mSeamLength
+        var pos = 0
+        while (pos < length) {
+            if (mSeamPos < 0) {
+                val count = min(length - pos, seamStart - mLoopPos)
+                loop.position(mLoopPos)
+                loop.get(out, pos, count)
+                pos += count
+                mLoopPos += count
+                if (mLoopPos >= seamStart) {
+                    mSeamPos = 0
+                }
+            } else {
+                //Linear cross-fade, with the same weight for every channel of a frame.
+                val seamFrames = mSeamLength / mChannelCount
+                while (pos < length && mSeamPos < mSeamLength) {
+                    val frame = mSeamPos / mChannelCount
+                    val fadeOut = loop.get(seamStart + mSeamPos) * (seamFrames - frame)
+                    val fadeIn = loop.get(mSeamPos) * frame
+                    out[pos++] = ((fadeOut + fadeIn) / seamFrames).toShort()
+                    mSeamPos++
+                }
+                if (mSeamPos >= mSeamLength) {
+                    mSeamPos = -1
+                    mLoopPos = mSeamLength
+                }
+            }
+        }
+
+        srcPos = 0
+        srcEnd = length
+        return true
+    }
+
+    /**
+     * Open the audio file from [PcmCache] when it can hold it: the first pass of the loop fills the
+     * cache entry, so later passes read the mapped file instead of decoding again.
+     */
+    private fun openSource(): PipedMediaByteBufferSource {
+        return if (isUnityVolume && mSampleRate != 0 && mChannelCount != 0) {
+            PcmCache.openSource(context, mPath, mSampleRate, mChannelCount)
+        } else {
+            PipedAudioDecoderMaverick(context, mPath, mSampleRate, mChannelCount, mVolumeModifier)
+        }
+    }
+
+    private fun closeSource() {
+        if (mSource != null) {
+            mSource!!.close()
+            mSource = null
+        }
+    }
+
+    override fun close() {
+        super.close()
+        mLoop = null
+    }
+
     companion object {
         private val TAG = "PipedAudioLooper"
+
+        //Loops longer than this (about 45 s of 44.1 kHz mono, 4 MB) are streamed.
+        private const val MAX_LOOP_SAMPLES = 2 * 1024 * 1024
+        private const val SEAM_US: Long = 50000
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import kotlin.math.min
+
+/**
+ *
+ * This media pipeline component provides a raw audio stream from a file of 16-bit PCM samples
+ * (in native byte order), such as an entry of [PcmCache].
+ *
+ * The file is memory mapped, and the buffers handed out by [getBuffer] are views into the
+ * mapping, so no decoding or copying is done by this component.
+ */
+class PipedAudioMappedSource
+/**
+ * Create a source from a PCM file.
+ * @param mFile file of interleaved 16-bit samples.
+ * @param mSampleRate sample rate of the samples in the file.
+ * @param mChannelCount channel count of the samples in the file.
+ */
+(private val mFile: File, private val mSampleRate: Int, private val mChannelCount: Int) : PipedMediaByteBufferSource {
+
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private var mMapped: ByteBuffer? = null
+    private var mOutBuffer: ByteBuffer? = null
+    private var mOutBufferHeld = false
+    private var mOutputFormat: MediaFormat? = null
+
+    private var mPosition = 0
+    private var mIsDone = false
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        RandomAccessFile(mFile, "r").use { file ->
+            //The mapping stays valid after the file is closed.
+            mMapped = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+                    .order(ByteOrder.nativeOrder())
+        }
+
+        mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount)
+
+        mIsDone = mMapped!!.capacity() == 0
+        mComponentState = PipedMediaSource.State.RUNNING
+    }
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return MediaHelper.MediaType.AUDIO
+    }
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    override fun isDone(): Boolean {
+        return mIsDone || mComponentState == PipedMediaSource.State.CLOSED
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        buffer.clear()
+        val view = nextView(buffer.capacity(), info)
+        buffer.put(view)
+        buffer.position(info.offset)
+        buffer.limit(info.offset + info.size)
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+        if (mOutBufferHeld) {
+            throw RuntimeException("$TAG: previous buffer was not released")
+        }
+        mOutBufferHeld = true
+        return nextView(CHUNK_SIZE, info)
+    }
+
+    @Throws(InvalidBufferException::class)
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        if (!mOutBufferHeld || buffer !== mOutBuffer) {
+            throw InvalidBufferException("I don't own that buffer!")
+        }
+        mOutBufferHeld = false
+    }
+
+    /**
+     * Point the view buffer at the next (at most) maxBytes bytes of the mapping.
+     */
+    @Throws(SourceClosedException::class)
+    private fun nextView(maxBytes: Int, info: MediaCodec.BufferInfo): ByteBuffer {
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            throw SourceClosedException()
+        }
+        if (mIsDone) {
+            throw RuntimeException("$TAG: buffer requested after depleted")
+        }
+
+        val mapped = mMapped!!
+        val frameBytes = 2 * mChannelCount //short = 2 bytes
+        val length = min(maxBytes - maxBytes % frameBytes, mapped.capacity() - mPosition)
+
+        mapped.limit(mapped.capacity())
+        mapped.position(mPosition)
+        val view = mapped.slice().order(ByteOrder.nativeOrder())
+        view.limit(length)
+        mOutBuffer = view
+
+        info.set(0, length, mPosition.toLong() / frameBytes * 1000000 / mSampleRate, 0)
+        mPosition += length
+
+        if (mPosition >= mapped.capacity()) {
+            mIsDone = true
+            info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM
+        }
+        return view
+    }
+
+    override fun close() {
+        mComponentState = PipedMediaSource.State.CLOSED
+        mOutBuffer = null
+        mMapped = null
+    }
+
+    companion object {
+        private val TAG = "PipedAudioMappedSource"
+
+        //This value is somewhat arbitrary, intended to be smaller than MediaHelper.MAX_INPUT_BUFFER_SIZE.
+        private const val CHUNK_SIZE = 16 * 1024
+    }
+}
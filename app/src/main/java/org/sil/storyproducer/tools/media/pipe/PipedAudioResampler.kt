@@ -4,41 +4,70 @@ import android.media.MediaFormat
 import android.util.Log
 import org.sil.storyproducer.tools.media.MediaHelper
 import java.io.IOException
-import kotlin.math.floor
-import kotlin.math.max
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.min
+import kotlin.math.roundToInt
+import kotlin.math.sin
 
 /**
  *
- * This media pipeline component resamples (converts sample rate of) raw audio using linear interpolation.
+ * This media pipeline component resamples (converts sample rate of) raw audio.
+ *
+ * Two resampling modes are available:
+ *  * [Mode.LINEAR] uses fixed-point linear interpolation driven by an incrementing phase accumulator.
+ *  * [Mode.SINC] uses a polyphase windowed-sinc filter whose coefficient table is computed once per
+ * conversion ratio (e.g. 22050→44100, 48000→44100, 16000→44100) and shared between resamplers.
+ * Ratios that would need an unreasonably large table fall back to [Mode.LINEAR].
+ *
+ * [Mode.SINC] is the default: linear interpolation lets through images of the source spectrum
+ * (e.g. a faint 14 kHz whistle above every 8 kHz tone of 22050 Hz narration), which the encoder
+ * then spends bits on.
  *
  * This component also optionally changes the channel count and/or volume of the raw audio stream.
+ * Channel conversion is done once while reading the source, so the inner loops only have to handle
+ * mono or stereo frames of the output layout.
  */
 class PipedAudioResampler
 /**
  * Create resampler changing channel count from the source channel count to the specified channel count.
  * @param sampleRate sample rate of the new, resampled audio stream.
  * @param channelCount number of channels in the new, resampled audio stream.
+ * @param mMode resampling mode.
  */
-@JvmOverloads constructor(sampleRate: Int, channelCount: Int = 0) : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
+@JvmOverloads constructor(sampleRate: Int, channelCount: Int = 0, private val mMode: Mode = defaultMode) : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
     override val componentName: String
         get() = TAG
 
+    enum class Mode {
+        LINEAR,
+        SINC
+    }
+
     private var mVolumeModifier = 1f
+    private var mGain = GAIN_UNITY
 
     private var mOutputFormat: MediaFormat? = null
 
-    private var orgFormat: MediaFormat? = null
-    protected val orgBuffer = ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2) //short = 2 bytes
-    protected var orgPos: Int = 0
-    protected var orgEnd: Int = 0
     private var orgSampleRate: Int = 0
-    private var orgCumBufferEnd: Int = 0
     private var orgChannelCount: Int = 0
-    private val orgBufferEndTime: Long get() {
-        if(orgSampleRate == 0) return 0
-        return (orgCumBufferEnd * 1000000.0 / orgSampleRate / orgChannelCount).toLong()
-    }
-    private var orgBufferStartTime: Long = 0
+
+    //Source frames, already converted to the output channel layout, with a little history kept in
+    //front of mInputIndex for the interpolation filter.
+    private val orgBuffer = ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE + 8 * SINC_HALF_TAPS)
+    private val inputScratch = ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
+    private var orgFrames: Int = 0
+    private var mSourceDone = false
+
+    //Integer input frame of the next output frame
+    private var mInputIndex: Int = 0
+    //LINEAR: fraction of an input frame past mInputIndex (32-bit fixed point)
+    private var mPhase: Long = 0
+    private var mPhaseStep: Long = 0
+    //SINC: polyphase filter and current phase in [0, mSinc.upFactor)
+    private var mSinc: SincTable? = null
+    private var mSincPhase: Int = 0
 
     init {
         mSampleRate = sampleRate
@@ -79,13 +108,30 @@ class PipedAudioResampler
 
         validateSource(mSource!!, 0, 0)
 
-        orgFormat = mSource!!.outputFormat
-        orgSampleRate = orgFormat!!.getInteger(MediaFormat.KEY_SAMPLE_RATE)
-        orgChannelCount = orgFormat!!.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+        val orgFormat = mSource!!.outputFormat
+        orgSampleRate = orgFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        orgChannelCount = orgFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
 
         if (mChannelCount == 0) {
             mChannelCount = orgChannelCount
         }
+        if (mSampleRate == 0) {
+            mSampleRate = orgSampleRate
+        }
+
+        mGain = (mVolumeModifier * GAIN_UNITY).roundToInt()
+
+        if (mMode == Mode.SINC && orgSampleRate != mSampleRate) {
+            mSinc = SincTable.forRates(orgSampleRate, mSampleRate)
+        }
+        if (mSinc != null) {
+            //Start with silent history so that the first output frame is centered on the first input frame.
+            orgFrames = SINC_HALF_TAPS - 1
+            orgBuffer.fill(0, 0, orgFrames * mChannelCount)
+            mInputIndex = orgFrames
+        } else {
+            mPhaseStep = (orgSampleRate.toLong() shl 32) / mSampleRate
+        }
 
         mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
         mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
@@ -98,73 +144,185 @@ class PipedAudioResampler
 
     @Throws(SourceClosedException::class)
     override fun loadSamples(): Boolean {
-        //grab the last sample for interpolation before the first sample of the new data
-        val last = ShortArray(orgChannelCount)
-        var ch = 0
-        if(orgEnd > 0) { // don't populate if it is the first run through, where orgEnd == 0.
-            for (index in orgEnd - orgChannelCount until orgEnd) {
-                last[ch++] = orgBuffer[index]
-            }
-        }
-        //grab the new buffer into org buffer
-        //prepend the "last" samples.
-        fetchSourceBufferWithPrepend(last)
-        //There is no new data.  Return.
-        if (!srcHasBuffer) {
-            mSource!!.close()
-            mSource = null
-            return false
-        }
-        //Or, there is data.
-        //Find out how many interpolated samples we can actually make based on the available time.
-        //add one to capture the last element.
-        srcPos = 0
-        srcEnd = max(0,floor(((orgBufferEndTime - mSeekTime) * mSampleRate / 1000000.0 + 1).toFloat()).toInt() * mChannelCount)
-
-        //convert all the samples
-        val relStartTime = mSeekTime - orgBufferStartTime
-        val srMult = (1000000.0 / mSampleRate).toFloat()
-        val ssrMult = (orgSampleRate / 1000000.0).toFloat()
-        if (mChannelCount == 2 && orgChannelCount == 2) {
-            for (i in 0 until srcEnd) {
-                val cChannel = i % 2
-                val fSample = (relStartTime + (i / 2) * srMult) * ssrMult
-                val si = floor(fSample).toInt() * 2 + cChannel  // first index
-                val sw = fSample - floor(fSample) //weight of second term
-                srcBuffer[i] = (mVolumeModifier * (orgBuffer[si] * (1 - sw) + orgBuffer[si + 2] * sw)).toShort()
-            }
-        } else if (mChannelCount == 1 && orgChannelCount == 2) {
-            for (i in 0 until srcEnd) {
-                val fSample = (relStartTime + i * srMult) * ssrMult
-                val si = floor(fSample).toInt() * 2  // first index
-                val sw = fSample - floor(fSample) //weight of second term
-                srcBuffer[i] = (mVolumeModifier *
-                        ((orgBuffer[si] + orgBuffer[si + 1]) * (1 - sw) +
-                                (orgBuffer[si + 2] + orgBuffer[si + 3]) * sw) * 0.5).toShort()
-            }
-        } else if (mChannelCount == 2 && orgChannelCount == 1) {
-            for (i in 0 until srcEnd step 2) {
-                val fSample = (relStartTime + (i / 2) * srMult) * ssrMult
-                val si = floor(fSample).toInt() // first index
-                val sw = fSample - si //weight of second term
-                srcBuffer[i] = (mVolumeModifier * (orgBuffer[si] * (1 - sw) + orgBuffer[si + 1] * sw)).toShort()
-                srcBuffer[i + 1] = srcBuffer[i]
-            }
-        } else {//1,1
-            for (i in 0 until srcEnd) {
-                val fSample = (relStartTime + i * srMult) * ssrMult
-                val si = floor(fSample).toInt() // first index
-                val sw = fSample - si //weight of second term
-                srcBuffer[i] = (mVolumeModifier * (orgBuffer[si] * (1 - sw) + orgBuffer[si + 1] * sw)).toShort()
-            }
-        }
-        return true
+        while (true) {
+            val maxFrames = srcBuffer.size / mChannelCount
+            val frames = when {
+                mSinc != null && mChannelCount == 2 -> resampleSincStereo(maxFrames)
+                mSinc != null -> resampleSincMono(maxFrames)
+                mChannelCount == 2 -> resampleLinearStereo(maxFrames)
+                else -> resampleLinearMono(maxFrames)
+            }
+            if (frames > 0) {
+                srcPos = 0
+                srcEnd = frames * mChannelCount
+                return true
+            }
+
+            //There is no new data.  Return.
+            if (mSourceDone) {
+                mSource?.close()
+                mSource = null
+                return false
+            }
+
+            discardUsedInput()
+            fetchSourceFrames()
+        }
+    }
+
+    private fun resampleLinearMono(maxFrames: Int): Int {
+        val org = orgBuffer
+        val out = srcBuffer
+        val step = mPhaseStep
+        val gain = mGain
+        var idx = mInputIndex
+        var phase = mPhase
+        var n = 0
+        while (n < maxFrames && idx + 1 < orgFrames) {
+            val f = (phase ushr 18).toInt() //14-bit fraction
+            val a = org[idx].toInt()
+            val v = a + (((org[idx + 1] - a) * f) shr 14)
+            out[n] = if (gain == GAIN_UNITY) v.toShort() else MediaHelper.clampToShort((v * gain) shr GAIN_SHIFT)
+            n++
+            phase += step
+            idx += (phase ushr 32).toInt()
+            phase = phase and FRACTION_MASK
+        }
+        mInputIndex = idx
+        mPhase = phase
+        return n
+    }
+
+    private fun resampleLinearStereo(maxFrames: Int): Int {
+        val org = orgBuffer
+        val out = srcBuffer
+        val step = mPhaseStep
+        val gain = mGain
+        var idx = mInputIndex
+        var phase = mPhase
+        var n = 0
+        while (n < maxFrames && idx + 1 < orgFrames) {
+            val f = (phase ushr 18).toInt() //14-bit fraction
+            val i = idx * 2
+            val l = org[i].toInt()
+            val r = org[i + 1].toInt()
+            val vl = l + (((org[i + 2] - l) * f) shr 14)
+            val vr = r + (((org[i + 3] - r) * f) shr 14)
+            if (gain == GAIN_UNITY) {
+                out[2 * n] = vl.toShort()
+                out[2 * n + 1] = vr.toShort()
+            } else {
+                out[2 * n] = MediaHelper.clampToShort((vl * gain) shr GAIN_SHIFT)
+                out[2 * n + 1] = MediaHelper.clampToShort((vr * gain) shr GAIN_SHIFT)
+            }
+            n++
+            phase += step
+            idx += (phase ushr 32).toInt()
+            phase = phase and FRACTION_MASK
+        }
+        mInputIndex = idx
+        mPhase = phase
+        return n
+    }
+
+    private fun resampleSincMono(maxFrames: Int): Int {
+        val sinc = mSinc!!
+        val coeffs = sinc.coefficients
+        val up = sinc.upFactor
+        val down = sinc.downFactor
+        val org = orgBuffer
+        val out = srcBuffer
+        val gain = mGain
+        var idx = mInputIndex
+        var phase = mSincPhase
+        var n = 0
+        while (n < maxFrames && idx + SINC_HALF_TAPS < orgFrames) {
+            val first = idx - SINC_HALF_TAPS + 1
+            val c = phase * SINC_TAPS
+            var acc = 0
+            for (k in 0 until SINC_TAPS) {
+                acc += org[first + k] * coeffs[c + k]
+            }
+            out[n] = MediaHelper.clampToShort(if (gain == GAIN_UNITY) acc shr COEFF_SHIFT
+                                              else ((acc shr COEFF_SHIFT) * gain) shr GAIN_SHIFT)
+            n++
+            phase += down
+            while (phase >= up) {
+                phase -= up
+                idx++
+            }
+        }
+        mInputIndex = idx
+        mSincPhase = phase
+        return n
     }
 
+    private fun resampleSincStereo(maxFrames: Int): Int {
+        val sinc = mSinc!!
+        val coeffs = sinc.coefficients
+        val up = sinc.upFactor
+        val down = sinc.downFactor
+        val org = orgBuffer
+        val out = srcBuffer
+        val gain = mGain
+        var idx = mInputIndex
+        var phase = mSincPhase
+        var n = 0
+        while (n < maxFrames && idx + SINC_HALF_TAPS < orgFrames) {
+            val first = (idx - SINC_HALF_TAPS + 1) * 2
+            val c = phase * SINC_TAPS
+            var accL = 0
+            var accR = 0
+            for (k in 0 until SINC_TAPS) {
+                val coeff = coeffs[c + k]
+                accL += org[first + 2 * k] * coeff
+                accR += org[first + 2 * k + 1] * coeff
+            }
+            if (gain == GAIN_UNITY) {
+                out[2 * n] = MediaHelper.clampToShort(accL shr COEFF_SHIFT)
+                out[2 * n + 1] = MediaHelper.clampToShort(accR shr COEFF_SHIFT)
+            } else {
+                out[2 * n] = MediaHelper.clampToShort(((accL shr COEFF_SHIFT) * gain) shr GAIN_SHIFT)
+                out[2 * n + 1] = MediaHelper.clampToShort(((accR shr COEFF_SHIFT) * gain) shr GAIN_SHIFT)
+            }
+            n++
+            phase += down
+            while (phase >= up) {
+                phase -= up
+                idx++
+            }
+        }
+        mInputIndex = idx
+        mSincPhase = phase
+        return n
+    }
+
+    /**
+     * Drop input frames which are no longer needed by the filter, moving the remaining history
+     * to the front of orgBuffer.
+     */
+    private fun discardUsedInput() {
+        val history = if (mSinc != null) SINC_HALF_TAPS - 1 else 0
+        val keepFrom = min(orgFrames, mInputIndex - history)
+        if (keepFrom <= 0) return
+        val ch = mChannelCount
+        System.arraycopy(orgBuffer, keepFrom * ch, orgBuffer, 0, (orgFrames - keepFrom) * ch)
+        orgFrames -= keepFrom
+        mInputIndex -= keepFrom
+    }
+
+    /**
+     * Append the next source buffer to orgBuffer, converting it to the output channel layout.
+     * At the end of the source, silence is appended so that the filter can finish the last frames.
+     */
     @Throws(SourceClosedException::class)
-    fun fetchSourceBufferWithPrepend(prependSamples : ShortArray) {
+    private fun fetchSourceFrames() {
+        val ch = mChannelCount
         if (mSource!!.isDone) {
-            srcHasBuffer = false
+            val padFrames = if (mSinc != null) SINC_HALF_TAPS else 1
+            orgBuffer.fill(0, orgFrames * ch, (orgFrames + padFrames) * ch)
+            orgFrames += padFrames
+            mSourceDone = true
             return
         }
 
@@ -179,26 +337,117 @@ class PipedAudioResampler
                     + " with" + (if (buffer.hasArray()) "" else "out") + " array")
         }
 
-        for (i in 0 until prependSamples.size)
-            orgBuffer[i] = prependSamples[i]
-
-        orgBufferStartTime = orgBufferEndTime
-        orgPos = prependSamples.size
-        orgEnd = sBuffer.remaining() + prependSamples.size
-        orgCumBufferEnd += sBuffer.remaining()
-        //Copy ShortBuffer to array of shorts in hopes of speedup.
-        sBuffer.get(orgBuffer, orgPos, sBuffer.remaining())
+        val samples = sBuffer.remaining()
+        val frames = samples / orgChannelCount
+        val dest = orgFrames * ch
+        if (orgChannelCount == ch) {
+            //Copy ShortBuffer to array of shorts in hopes of speedup.
+            sBuffer.get(orgBuffer, dest, frames * ch)
+        } else {
+            sBuffer.get(inputScratch, 0, samples)
+            if (orgChannelCount == 2) {
+                //stereo to mono: average both channels
+                for (i in 0 until frames) {
+                    orgBuffer[dest + i] = ((inputScratch[2 * i] + inputScratch[2 * i + 1]) shr 1).toShort()
+                }
+            } else {
+                //mono to stereo: duplicate the channel
+                for (i in 0 until frames) {
+                    val sample = inputScratch[i]
+                    orgBuffer[dest + 2 * i] = sample
+                    orgBuffer[dest + 2 * i + 1] = sample
+                }
+            }
+        }
+        orgFrames += frames
 
         //Release buffer since data was copied.
         mSource!!.releaseBuffer(buffer)
+    }
 
+    /**
+     * Polyphase windowed-sinc filter for one conversion ratio (upFactor/downFactor, reduced).
+     * Row p of [coefficients] holds the [SINC_TAPS] taps for an output frame located p/upFactor
+     * of an input frame after the center input frame.
+     */
+    internal class SincTable(val upFactor: Int, val downFactor: Int) {
+        val coefficients = IntArray(upFactor * SINC_TAPS)
+
+        init {
+            //Cut off below the lower of the two Nyquist frequencies (relative to the input rate).
+            val cutoff = SINC_ROLLOFF * min(1.0, upFactor.toDouble() / downFactor)
+            val taps = DoubleArray(SINC_TAPS)
+            for (p in 0 until upFactor) {
+                val offset = p.toDouble() / upFactor
+                var sum = 0.0
+                for (k in 0 until SINC_TAPS) {
+                    val x = (k - SINC_HALF_TAPS + 1) - offset
+                    taps[k] = cutoff * sinc(cutoff * x) * blackman(x / SINC_HALF_TAPS)
+                    sum += taps[k]
+                }
+                //Normalize every phase to unity gain at DC.
+                for (k in 0 until SINC_TAPS) {
+                    coefficients[p * SINC_TAPS + k] = (taps[k] / sum * (1 shl COEFF_SHIFT)).roundToInt()
+                }
+            }
+        }
+
+        companion object {
+            private val tables = HashMap<Long, SincTable>()
+
+            /**
+             * Get the (cached) table for a conversion, or null if the reduced ratio needs too many phases.
+             */
+            @Synchronized
+            fun forRates(inRate: Int, outRate: Int): SincTable? {
+                val g = gcd(inRate, outRate)
+                val up = outRate / g
+                val down = inRate / g
+                if (up > SINC_MAX_PHASES) return null
+                val key = (up.toLong() shl 32) or down.toLong()
+                return tables.getOrPut(key) { SincTable(up, down) }
+            }
+
+            private fun gcd(a: Int, b: Int): Int {
+                var x = a
+                var y = b
+                while (y != 0) {
+                    val t = x % y
+                    x = y
+                    y = t
+                }
+                return x
+            }
 
-        srcHasBuffer = true
+            private fun sinc(x: Double): Double {
+                return if (abs(x) < 1e-9) 1.0 else sin(PI * x) / (PI * x)
+            }
+
+            /** Blackman window over x in [-1, 1] */
+            private fun blackman(x: Double): Double {
+                if (abs(x) >= 1.0) return 0.0
+                return 0.42 + 0.5 * cos(PI * x) + 0.08 * cos(2 * PI * x)
+            }
+        }
     }
 
     companion object {
         private val TAG = "PipedAudioResampler"
 
+        private const val GAIN_SHIFT = 14
+        private const val GAIN_UNITY = 1 shl GAIN_SHIFT
+        private const val FRACTION_MASK = 0xFFFFFFFFL
+
+        private const val SINC_HALF_TAPS = 8
+        private const val SINC_TAPS = 2 * SINC_HALF_TAPS
+        private const val SINC_MAX_PHASES = 1024
+        private const val SINC_ROLLOFF = 0.95
+        private const val COEFF_SHIFT = 14
+
+        /** mode used by resamplers which do not ask for a particular one */
+        @JvmStatic
+        var defaultMode = Mode.SINC
+
         /**
          *
          * Gets a [PipedMediaByteBufferSource] with the correct sampling.
@@ -208,13 +457,14 @@ class PipedAudioResampler
          * returned. Otherwise, a resampler is inserted into the pipeline.
          */
         @Throws(IOException::class, SourceUnacceptableException::class)
-        fun correctSampling(src: PipedMediaByteBufferSource, sampleRate: Int, channelCount: Int): PipedMediaByteBufferSource {
+        @JvmOverloads
+        fun correctSampling(src: PipedMediaByteBufferSource, sampleRate: Int, channelCount: Int, mode: Mode = defaultMode): PipedMediaByteBufferSource {
             val format = src.outputFormat
 
             val isSamplingCorrect = (sampleRate == 0 || format.getInteger(MediaFormat.KEY_SAMPLE_RATE) == sampleRate) && (channelCount == 0 || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == channelCount)
 
             if (!isSamplingCorrect) {
-                val resampler = PipedAudioResampler(sampleRate, channelCount)
+                val resampler = PipedAudioResampler(sampleRate, channelCount, mode)
                 resampler.addSource(src)
                 return resampler
             } else {
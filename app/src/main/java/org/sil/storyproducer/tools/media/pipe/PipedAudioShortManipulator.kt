@@ -7,7 +7,6 @@ import android.util.Log
 import org.sil.storyproducer.tools.media.MediaHelper
 
 import java.nio.ByteBuffer
-import java.nio.ShortBuffer
 import kotlin.math.min
 
 /**
@@ -16,11 +15,13 @@ import kotlin.math.min
  * which care about touching every output short.
  *
  *
- * The most important methods for a class overriding this class are [.loadSamples]
- * and [.getSampleForChannel]. [.loadSamples] will be called exactly
- * once, in order, for each time step according to [.mSampleRate]. After each of these calls,
- * [.getSampleForChannel] will be called exactly once, in order, for each channel
- * according to [.mChannelCount].
+ * The most important method for a class overriding this class is [.loadSamples], which refills
+ * [srcBuffer]. It is called, in order, whenever the samples already loaded have been used up.
+ *
+ *
+ * Output is produced on demand: each call to [getBuffer] or [fillBuffer] runs the component
+ * (and, through [fetchSourceBuffer], the components behind it) on the calling thread until one
+ * buffer is full. There is no thread or queue of its own; see [PipelineExecutor].
  *
  *
  * As a note on implementation, we are generally trying to use arrays when manipulating the shorts
@@ -31,20 +32,15 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
 
     protected abstract val componentName: String
 
-    private var mThread: Thread? = null
-
-    //Any caller of isDone needs to be immediately aware of changes to the mIsDone variable,
-    //even in another thread.
-    @Volatile
     private var mIsDone = false
-    private var mNonvolatileIsDone = false
 
-    //Although this is cross-thread, it isn't important for the input thread to immediately stop;
-    //so no volatile keyword.
     protected var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
-    private val mBufferQueue = ByteBufferQueue(BUFFER_COUNT)
     private val mShortBuffer = ShortArray(MAX_BUFFER_CAPACITY / 2) //short = 2 bytes
 
+    //Buffer handed out through getBuffer; reused for every call until close.
+    private var mOutBuffer: ByteBuffer? = null
+    private var mOutBufferHeld = false
+
     protected var mSampleRate: Int = 0
     protected var mChannelCount: Int = 0
     protected var mAbsoluteSampleIndex = 0
@@ -66,23 +62,37 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
     }
 
     override fun isDone(): Boolean {
-        return mIsDone && mBufferQueue.isEmpty || mComponentState == PipedMediaSource.State.CLOSED
+        return mIsDone || mComponentState == PipedMediaSource.State.CLOSED
     }
 
+    @Throws(SourceClosedException::class)
     override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
-        val myBuffer = mBufferQueue.getFilledBuffer(info)
         buffer.clear()
-        buffer.put(myBuffer)
-        mBufferQueue.releaseUsedBuffer(myBuffer)
+        produceBuffer(buffer, info)
     }
 
+    @Throws(SourceClosedException::class)
     override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer? {
-        return mBufferQueue.getFilledBuffer(info)
+        if (mOutBufferHeld) {
+            throw RuntimeException("$componentName: previous buffer was not released")
+        }
+        if (mOutBuffer == null) {
+            mOutBuffer = ByteBufferPool.getShared(OUTPUT_BUFFER_CAPACITY)
+        }
+        val buffer = mOutBuffer!!
+        buffer.clear()
+        buffer.limit(OUTPUT_BUFFER_CAPACITY)
+        produceBuffer(buffer, info)
+        mOutBufferHeld = true
+        return buffer
     }
 
     @Throws(InvalidBufferException::class)
     override fun releaseBuffer(buffer: ByteBuffer) {
-        mBufferQueue.releaseUsedBuffer(buffer)
+        if (!mOutBufferHeld || buffer !== mOutBuffer) {
+            throw InvalidBufferException("I don't own that buffer!")
+        }
+        mOutBufferHeld = false
     }
 
     @Throws(SourceUnacceptableException::class)
@@ -94,88 +104,62 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
             throw SourceUnacceptableException("$componentName: Channel count not specified!")
         }
 
-        mThread = Thread(Runnable {
-            try {
-                spinInput()
-            } catch (e: Exception) {
-                Log.w(TAG, "spinInput stopped prematurely", e)
-            }
-        })
         mComponentState = PipedMediaSource.State.RUNNING
-        mThread!!.start()
     }
 
+    /**
+     * Fill outBuffer (from position 0 up to its limit) with the next samples of this component.
+     */
     @Throws(SourceClosedException::class)
-    private fun spinInput() {
-
-        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput starting")
-
-        while (mComponentState != PipedMediaSource.State.CLOSED && !mIsDone) {
-            var durationNs: Long = 0
-            val info = MediaCodec.BufferInfo()
-            if (MediaHelper.DEBUG) {
-                durationNs = -System.nanoTime()
-            }
-            //Prepare outBuffer
-            val outBuffer = mBufferQueue.getEmptyBuffer(MediaHelper.TIMEOUT_USEC)
-            if (outBuffer == null) {
-                if (MediaHelper.VERBOSE)
-                    Log.d(TAG, "$componentName.spinInput: empty buffer unavailable")
-                continue
-            }
-
-            outBuffer.clear()
-            info.set(0, 0, mSeekTime, 0)
-            val outShortBuffer = MediaHelper.getShortBuffer(outBuffer)
-            val osbLength = outShortBuffer.remaining()
-            var osbPos = 0
-
-            outShortBuffer.get(mShortBuffer, osbPos, osbLength)
-            outShortBuffer.clear()
-
-            if (srcSamplesAvailable <= 0) mNonvolatileIsDone = !loadSamples()
-
-            while ((osbPos < osbLength) && !mNonvolatileIsDone) {
-                //interleave channels
-                //N.B. Always put all samples (of different channels) of the same time in the same buffer.
-                val copyLength = min(osbLength - osbPos, srcSamplesAvailable)
-                val transBuffer = ShortBuffer.wrap(srcBuffer,srcPos,copyLength)
-                transBuffer.get(mShortBuffer,osbPos,copyLength)
-                osbPos += copyLength
-                srcPos += copyLength
-
-                //Keep track of the current presentation time in the output audio stream.
-                mAbsoluteSampleIndex += copyLength
-
-                if (srcSamplesAvailable <= 0) mNonvolatileIsDone = !loadSamples()
-            }
-
-            info.size = osbPos * 2 //short = 2 bytes
-
-            outShortBuffer.put(mShortBuffer, 0, osbLength)
-
-            //just to be sure
-            outBuffer.position(info.offset)
-            outBuffer.limit(info.offset + info.size)
-
-            if (mNonvolatileIsDone) {
-                //Sync the volatile version of the isDone variable.
-                mIsDone = true
-
-                info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM
-            }
-
-            mBufferQueue.sendFilledBuffer(outBuffer, info)
-
-            if (MediaHelper.DEBUG) {
-                durationNs += System.nanoTime()
-                val sec = durationNs / 1E9
-                Log.d(TAG, componentName + ".spinInput: return output buffer after "
-                        + MediaHelper.getDecimal(sec) + " seconds: size " + info.size
-                        + " for time " + info.presentationTimeUs)
-            }
+    private fun produceBuffer(outBuffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            throw SourceClosedException()
+        }
+
+        var durationNs: Long = 0
+        if (MediaHelper.DEBUG) {
+            durationNs = -System.nanoTime()
+        }
+
+        info.set(0, 0, mSeekTime, 0)
+        val outShortBuffer = MediaHelper.getShortBuffer(outBuffer)
+        val osbLength = min(outShortBuffer.remaining(), mShortBuffer.size)
+        var osbPos = 0
+
+        if (srcSamplesAvailable <= 0 && !mIsDone) mIsDone = !loadSamples()
+
+        while ((osbPos < osbLength) && !mIsDone) {
+            //interleave channels
+            //N.B. Always put all samples (of different channels) of the same time in the same buffer.
+            val copyLength = min(osbLength - osbPos, srcSamplesAvailable)
+            System.arraycopy(srcBuffer, srcPos, mShortBuffer, osbPos, copyLength)
+            osbPos += copyLength
+            srcPos += copyLength
+
+            //Keep track of the current presentation time in the output audio stream.
+            mAbsoluteSampleIndex += copyLength
+
+            if (srcSamplesAvailable <= 0) mIsDone = !loadSamples()
+        }
+
+        info.size = osbPos * 2 //short = 2 bytes
+
+        outShortBuffer.put(mShortBuffer, 0, osbPos)
+
+        outBuffer.position(info.offset)
+        outBuffer.limit(info.offset + info.size)
+
+        if (mIsDone) {
+            info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM
+        }
+
+        if (MediaHelper.DEBUG) {
+            durationNs += System.nanoTime()
+            val sec = durationNs / 1E9
+            Log.d(TAG, componentName + ".produceBuffer: return output buffer after "
+                    + MediaHelper.getDecimal(sec) + " seconds: size " + info.size
+                    + " for time " + info.presentationTimeUs)
         }
-        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput complete!")
     }
 
     /**
@@ -185,7 +169,7 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
      *
      *
      * Note: Sequential calls to this function will provide strictly increasing times.
-     * @return true if the component has more source input to process and false if [.spinInput] should finish
+     * @return true if the component has more source input to process and false if the stream should end
      */
     @Throws(SourceClosedException::class)
     protected abstract fun loadSamples(): Boolean
@@ -252,28 +236,26 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
     }
 
     override fun close() {
-        //Force the spinInput thread to shutdown.
         mComponentState = PipedMediaSource.State.CLOSED
         if (mSource != null) {
             mSource!!.close()
             mSource = null
         }
-        if (mThread != null) {
-            try {
-                mThread!!.join()
-            } catch (e: InterruptedException) {
-                Log.w(TAG, "$componentName: Failed to stop input thread!", e)
-            }
-
-            mThread = null
+        if (mOutBuffer != null) {
+            //The buffer goes back to the pool even if a consumer forgot to release it;
+            //a closed component must not be read from.
+            ByteBufferPool.releaseShared(mOutBuffer!!)
+            mOutBuffer = null
+            mOutBufferHeld = false
         }
     }
 
     companion object {
         private val TAG = "PipedAudioShortMan"
 
-        val BUFFER_COUNT = 8
-
         private val MAX_BUFFER_CAPACITY = MediaHelper.MAX_INPUT_BUFFER_SIZE
+
+        //This value is somewhat arbitrary, intended to be smaller than MediaHelper.MAX_INPUT_BUFFER_SIZE.
+        private const val OUTPUT_BUFFER_CAPACITY = 16 * 1024
     }
 }
@@ -0,0 +1,168 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ *
+ * This media pipeline component splits one stream of buffers into several identical streams.
+ *
+ * Each output pulls from the shared source whenever it has nothing queued, and a copy of every
+ * pulled buffer is queued for the other outputs. Outputs should therefore be drained at about the
+ * same pace (as [PipedMediaMuxer] does for renditions), or the slowest one will queue up the whole
+ * stream. The source is closed once every output has been closed.
+ */
+class PipedMediaByteBufferTee
+/**
+ * Create a tee of a source.
+ * @param mSource the stream to be split.
+ */
+(private val mSource: PipedMediaByteBufferSource) {
+
+    private val mOutputs = ArrayList<Output>()
+    private val mInfo = MediaCodec.BufferInfo()
+    private var mIsSetup = false
+
+    /**
+     * Create another output of the tee. All outputs must be created before any is pulled from.
+     */
+    fun createOutput(): PipedMediaByteBufferSource {
+        val output = Output()
+        mOutputs.add(output)
+        return output
+    }
+
+    @Synchronized
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun setupSource() {
+        if (!mIsSetup) {
+            mSource.setup()
+            mIsSetup = true
+        }
+    }
+
+    /**
+     * Pull one buffer from the source and queue it for every open output.
+     * @return false if the source has no more buffers.
+     */
+    @Throws(SourceClosedException::class)
+    private fun pull(): Boolean {
+        if (mSource.isDone) return false
+
+        val buffer = mSource.getBuffer(mInfo)
+        try {
+            for (output in mOutputs) {
+                if (output.isClosed) continue
+                val copy = ByteBufferPool.getShared(Math.max(mInfo.size, 1))
+                copy.clear()
+                val src = buffer.duplicate()
+                src.position(mInfo.offset)
+                src.limit(mInfo.offset + mInfo.size)
+                copy.put(src)
+                copy.flip()
+                output.queue.add(Chunk(copy, mInfo.size, mInfo.presentationTimeUs, mInfo.flags))
+            }
+        } finally {
+            mSource.releaseBuffer(buffer)
+        }
+        return true
+    }
+
+    @Synchronized
+    private fun closeOutput(output: Output) {
+        output.isClosed = true
+        while (output.queue.isNotEmpty()) {
+            ByteBufferPool.releaseShared(output.queue.poll().buffer)
+        }
+        if (mOutputs.all { it.isClosed }) {
+            mSource.close()
+        }
+    }
+
+    private class Chunk(val buffer: ByteBuffer, val size: Int, val presentationTimeUs: Long, val flags: Int)
+
+    private inner class Output : PipedMediaByteBufferSource {
+        val queue = ArrayDeque<Chunk>()
+        var isClosed = false
+        private var mHeld: ByteBuffer? = null
+
+        override fun getMediaType(): MediaHelper.MediaType {
+            return mSource.mediaType
+        }
+
+        override fun getOutputFormat(): MediaFormat? {
+            return mSource.outputFormat
+        }
+
+        @Throws(IOException::class, SourceUnacceptableException::class)
+        override fun setup() {
+            setupSource()
+        }
+
+        override fun isDone(): Boolean {
+            synchronized(this@PipedMediaByteBufferTee) {
+                return isClosed || queue.isEmpty() && mSource.isDone
+            }
+        }
+
+        @Throws(SourceClosedException::class)
+        private fun next(): Chunk {
+            synchronized(this@PipedMediaByteBufferTee) {
+                if (isClosed) {
+                    throw SourceClosedException()
+                }
+                while (queue.isEmpty()) {
+                    if (!pull()) {
+                        throw SourceClosedException()
+                    }
+                }
+                return queue.poll()
+            }
+        }
+
+        @Throws(SourceClosedException::class)
+        override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+            val chunk = next()
+            buffer.clear()
+            buffer.put(chunk.buffer)
+            info.set(0, chunk.size, chunk.presentationTimeUs, chunk.flags)
+            buffer.position(0)
+            buffer.limit(chunk.size)
+            ByteBufferPool.releaseShared(chunk.buffer)
+        }
+
+        @Throws(SourceClosedException::class)
+        override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+            val chunk = next()
+            info.set(0, chunk.size, chunk.presentationTimeUs, chunk.flags)
+            mHeld = chunk.buffer
+            return chunk.buffer
+        }
+
+        @Throws(InvalidBufferException::class)
+        override fun releaseBuffer(buffer: ByteBuffer) {
+            if (buffer !== mHeld) {
+                throw InvalidBufferException("I don't own that buffer!")
+            }
+            mHeld = null
+            ByteBufferPool.releaseShared(buffer)
+        }
+
+        override fun close() {
+            val held = mHeld
+            if (held != null) {
+                mHeld = null
+                ByteBufferPool.releaseShared(held)
+            }
+            if (!isClosed) {
+                closeOutput(this)
+            }
+        }
+    }
+}
@@ -13,15 +13,14 @@ import java.util.*
  * This abstract media pipeline component provides a base for components which encode or decode
  * media streams. This class primarily encapsulates a [MediaCodec].
  *
- * Note: This class is spawns a child thread which keeps churning input while other calling code
- * pulls output.
+ * Note: This class does not own a thread. Whenever calling code pulls output and the codec has
+ * none ready, the component feeds the codec one step of input (see [feedInput]) on the calling
+ * thread, and only waits on the codec when there is no input it can give.
  */
 abstract class PipedMediaCodec : PipedMediaByteBufferSource {
 
     protected abstract val componentName: String
 
-    internal var mThread: Thread? = null
-
     @Volatile
     protected var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
 
@@ -56,6 +55,20 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
         return mIsDone
     }
 
+    /**
+     * The output format, if the codec has reported it yet.
+     */
+    protected val knownOutputFormat: MediaFormat?
+        get() = mOutputFormat
+
+    /**
+     * Use the output format of a codec which has already decoded a stream of the same format
+     * (see [MediaCodecPool]), since it will not report the format again.
+     */
+    protected fun presetOutputFormat(format: MediaFormat) {
+        mOutputFormat = format
+    }
+
     @Throws(SourceClosedException::class)
     override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
         val outputBuffer = pullBuffer(info, false)
@@ -81,16 +94,7 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
 
     protected fun start() {
         mCodec!!.start()
-
-        mThread = Thread(Runnable {
-            try {
-                spinInput()
-            } catch (e: SourceClosedException) {
-                Log.w(TAG, "spinInput stopped prematurely", e)
-            }
-        })
         mComponentState = PipedMediaSource.State.RUNNING
-        mThread!!.start()
     }
 
     @Throws(SourceClosedException::class)
@@ -106,23 +110,33 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
             return tempBuffer.buffer
         }
 
+        //Only wait on the codec when the previous attempt fed it nothing.
+        var timeoutUs: Long = 0
         while (!mIsDone) {
             if (mComponentState == PipedMediaSource.State.CLOSED) {
                 throw SourceClosedException()
             }
             try {
-                outputBufferId = mCodec!!.dequeueOutputBuffer(
-                        info, MediaHelper.TIMEOUT_USEC)
+                outputBufferId = mCodec!!.dequeueOutputBuffer(info, timeoutUs)
             } catch (e : Exception) {
                 mIsDone = true
                 outputBufferId = MediaCodec.INFO_TRY_AGAIN_LATER
             }
+            if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER && !mIsDone) {
+                timeoutUs = if (feedInput()) 0 else MediaHelper.TIMEOUT_USEC
+                continue
+            }
             if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 Log.v(TAG, "$componentName.pullBuffer: output format changed")
+                val format = mCodec!!.outputFormat
                 if (mOutputFormat != null) {
-                    throw RuntimeException("changed output format again?")
+                    //A reused codec may report its (unchanged) format again.
+                    if (!isSameRawFormat(mOutputFormat!!, format)) {
+                        throw RuntimeException("changed output format again?")
+                    }
+                } else {
+                    mOutputFormat = format
                 }
-                mOutputFormat = mCodec!!.outputFormat
                 if (getFormat) {
                     return null
                 }
@@ -178,48 +192,48 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
 
     /**
      *
-     * Gather input from source, feeding it into mCodec, until source is depleted.
+     * Gather one step of input from the source and feed it into mCodec, without blocking.
+     * Called by [pullBuffer] whenever the codec has no output ready.
      *
-     * Note: This method **must return after [.mComponentState] becomes CLOSED**.
+     * @return true if input was fed (so output may follow shortly) and false if the codec
+     * could not take input or the source is already depleted.
      */
     @Throws(SourceClosedException::class)
-    protected abstract fun spinInput()
+    protected abstract fun feedInput(): Boolean
+
+    private fun isSameRawFormat(a: MediaFormat, b: MediaFormat): Boolean {
+        for (key in arrayOf(MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+                MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT)) {
+            val valueA = if (a.containsKey(key)) a.getInteger(key) else null
+            val valueB = if (b.containsKey(key)) b.getInteger(key) else null
+            if (valueA != valueB) return false
+        }
+        return true
+    }
 
     override fun close() {
-        //Shutdown child thread
         mComponentState = PipedMediaSource.State.CLOSED
 
-        //Wait for two times the length of the timeout in the pullBuffer loop to ensure the codec
-        //stops being used.
-        try {
-            Thread.sleep((MediaHelper.TIMEOUT_USEC * 2 / 1E6).toLong() + 1)
-        } catch (e: InterruptedException) {
-            Log.w(TAG, "sleep interrupted", e)
-        }
-
-        if (mThread != null) {
-            try {
-                mThread!!.join()
-            } catch (e: InterruptedException) {
-                Log.w(TAG, "$componentName: Failed to close input thread!", e)
-            }
-
-            mThread = null
-        }
-
         //Shutdown MediaCodec
         if (mCodec != null) {
-            try {
-                mCodec!!.stop()
-            } catch (e: IllegalStateException) {
-                Log.w(TAG, "$componentName: Failed to stop MediaCodec!", e)
-            } finally {
-                mCodec!!.release()
-            }
+            releaseCodec(mCodec!!)
             mCodec = null
         }
     }
 
+    /**
+     * Let go of the codec when the component is closed. By default, it is stopped and released.
+     */
+    protected open fun releaseCodec(codec: MediaCodec) {
+        try {
+            codec.stop()
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "$componentName: Failed to stop MediaCodec!", e)
+        } finally {
+            codec.release()
+        }
+    }
+
     companion object {
         private val TAG = "PipedMediaCodec"
     }
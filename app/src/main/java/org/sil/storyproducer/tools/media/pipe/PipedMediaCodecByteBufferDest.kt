@@ -16,6 +16,7 @@ abstract class PipedMediaCodecByteBufferDest : PipedMediaCodec(), PipedMediaByte
 
     protected var mSource: PipedMediaByteBufferSource? = null
     private val mInfo = MediaCodec.BufferInfo()
+    private var mInputDone = false
 
     @Throws(SourceUnacceptableException::class)
     override fun addSource(src: PipedMediaByteBufferSource) {
@@ -26,44 +27,62 @@ abstract class PipedMediaCodecByteBufferDest : PipedMediaCodec(), PipedMediaByte
     }
 
     @Throws(SourceClosedException::class)
-    override fun spinInput() {
+    override fun feedInput(): Boolean {
         if (mSource == null) {
             throw RuntimeException("No source specified for encoder!")
         }
+        if (mInputDone) {
+            return false
+        }
 
-        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput starting")
-
-        while (mComponentState != PipedMediaSource.State.CLOSED && !mSource!!.isDone) {
-            val pollCode = mCodec!!.dequeueInputBuffer(MediaHelper.TIMEOUT_USEC)
-            if (pollCode == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput: no input buffer")
-                //Do nothing.
-            } else {
-                if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput: returned input buffer: $pollCode")
-
-                var durationNs: Long = 0
-                if (MediaHelper.DEBUG) {
-                    durationNs = -System.nanoTime()
-                }
+        val pollCode = mCodec!!.dequeueInputBuffer(0)
+        if (pollCode == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.feedInput: no input buffer")
+            return false
+        }
+        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.feedInput: returned input buffer: $pollCode")
+
+        if (mSource!!.isDone) {
+            //The source ended without flagging its last buffer; end the stream with an empty one.
+            mCodec!!.queueInputBuffer(pollCode, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+            mInputDone = true
+            mSource!!.close()
+            return true
+        }
 
-                val inputBuffer = mCodec!!.getInputBuffer(pollCode)
-                mSource!!.fillBuffer(inputBuffer, mInfo)
-                mCodec!!.queueInputBuffer(pollCode, 0, mInfo.size, mInfo.presentationTimeUs, mInfo.flags)
+        var durationNs: Long = 0
+        if (MediaHelper.DEBUG) {
+            durationNs = -System.nanoTime()
+        }
 
-                if (MediaHelper.DEBUG) {
-                    durationNs += System.nanoTime()
-                    val sec = durationNs / 1E9
-                    Log.d(TAG, componentName + ".spinInput: fill/queue input buffer after "
-                            + MediaHelper.getDecimal(sec) + " seconds: " + pollCode
-                            + " of size " + mInfo.size + " for time " + mInfo.presentationTimeUs)
-                }
-            }
+        val inputBuffer = mCodec!!.getInputBuffer(pollCode)
+        mSource!!.fillBuffer(inputBuffer, mInfo)
+        mCodec!!.queueInputBuffer(pollCode, 0, mInfo.size, mInfo.presentationTimeUs, mInfo.flags)
 
+        if (MediaHelper.DEBUG) {
+            durationNs += System.nanoTime()
+            val sec = durationNs / 1E9
+            Log.d(TAG, componentName + ".feedInput: fill/queue input buffer after "
+                    + MediaHelper.getDecimal(sec) + " seconds: " + pollCode
+                    + " of size " + mInfo.size + " for time " + mInfo.presentationTimeUs)
         }
 
-        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput complete!")
+        if (mSource!!.isDone) {
+            if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.feedInput complete!")
+            mInputDone = true
+            mSource!!.close()
+        }
+        return true
+    }
 
-        mSource!!.close()
+    override fun close() {
+        super.close()
+        //A source left unfinished is released too, so that nothing upstream (such as a tee)
+        //keeps working for this component.
+        if (!mInputDone) {
+            mInputDone = true
+            mSource?.close()
+        }
     }
 
     companion object {
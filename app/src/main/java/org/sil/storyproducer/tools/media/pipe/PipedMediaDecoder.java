@@ -11,6 +11,8 @@ import java.io.IOException;
  * <p>This media pipeline component provides a simple decoder encapsulating a {@link MediaCodec}.
  * Therefore, it takes an encoded media stream and outputs a raw media stream.</p>
  * <p>A common source for this component is {@link PipedMediaExtractor}.</p>
+ * <p>A pooled decoder takes its {@link MediaCodec} from {@link MediaCodecPool} and gives it back
+ * when closed, rather than creating and releasing one for each stream.</p>
  */
 public class PipedMediaDecoder extends PipedMediaCodecByteBufferDest {
     private static final String TAG = "PipedMediaDecoder";
@@ -20,8 +22,19 @@ public class PipedMediaDecoder extends PipedMediaCodecByteBufferDest {
     }
 
     private MediaFormat mSourceFormat;
+    private final boolean mPooled;
+    private String mPoolKey;
 
-    public PipedMediaDecoder() { }
+    public PipedMediaDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param pooled whether to use a decoder from {@link MediaCodecPool}.
+     */
+    public PipedMediaDecoder(boolean pooled) {
+        mPooled = pooled;
+    }
 
     @Override
     public MediaHelper.MediaType getMediaType() {
@@ -39,6 +52,19 @@ public class PipedMediaDecoder extends PipedMediaCodecByteBufferDest {
 
         getMSource().setup();
         mSourceFormat = getMSource().getOutputFormat();
+
+        if(mPooled) {
+            MediaCodecPool.Decoder decoder = MediaCodecPool.INSTANCE.acquireDecoder(mSourceFormat);
+            mPoolKey = decoder.getKey();
+            setMCodec(decoder.getCodec());
+            if(decoder.getOutputFormat() != null) {
+                presetOutputFormat(decoder.getOutputFormat());
+            }
+            //The pool hands out codecs which are already started.
+            setMComponentState(State.RUNNING);
+            return;
+        }
+
         setMCodec(MediaCodec.createDecoderByType(mSourceFormat.getString(MediaFormat.KEY_MIME)));
         getMCodec().configure(mSourceFormat, null, null, 0);
 
@@ -46,4 +72,13 @@ public class PipedMediaDecoder extends PipedMediaCodecByteBufferDest {
 
         start();
     }
+
+    @Override
+    protected void releaseCodec(MediaCodec codec) {
+        if(mPooled) {
+            MediaCodecPool.INSTANCE.release(codec, mPoolKey, getKnownOutputFormat());
+        } else {
+            super.releaseCodec(codec);
+        }
+    }
 }
@@ -15,7 +15,7 @@ import java.io.IOException
  * Therefore, it takes a raw media stream and outputs an encoded media stream.
  *
  * Common source for this component include [PipedMediaDecoder]
- * or any child class of [PipedAudioShortManipulator].
+ * or any child class of [PipedAudioShortManipulator] or [PipedAudioFloatManipulator].
  */
 class PipedMediaEncoder(private val mConfigureFormat: MediaFormat) : PipedMediaCodecByteBufferDest() {
     override val componentName: String
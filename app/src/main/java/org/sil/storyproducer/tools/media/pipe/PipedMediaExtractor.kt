@@ -10,6 +10,7 @@ import org.sil.storyproducer.tools.file.getStoryFileDescriptor
 
 import org.sil.storyproducer.tools.media.MediaHelper
 
+import java.io.File
 import java.io.IOException
 import java.nio.ByteBuffer
 
@@ -24,7 +25,18 @@ class PipedMediaExtractor
  * @param mPath path of the media file.
  * @param mType (audio/video) track to select from file.
  */
-(private val context: Context, private val mPath: String, private val mType: MediaHelper.MediaType) : PipedMediaByteBufferSource {
+(private val context: Context?, private val mPath: String, private val mType: MediaHelper.MediaType) : PipedMediaByteBufferSource {
+
+    private var mFile: File? = null
+
+    /**
+     * Create extractor from a file outside of the story (such as a temporary or cached file).
+     * @param file the media file.
+     * @param type (audio/video) track to select from file.
+     */
+    constructor(file: File, type: MediaHelper.MediaType) : this(null, file.absolutePath, type) {
+        mFile = file
+    }
 
     private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
 
@@ -34,8 +46,6 @@ class PipedMediaExtractor
 
     private var mIsDone = false
 
-    private val mBufferPool = ByteBufferPool()
-
     @Throws(IOException::class, SourceUnacceptableException::class)
     override fun setup() {
         if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
@@ -43,13 +53,18 @@ class PipedMediaExtractor
         }
 
         mExtractor = MediaExtractor()
-        mExtractor!!.setDataSource(getStoryFileDescriptor(context, mPath,"","r")!!)
+        if (mFile != null) {
+            mExtractor!!.setDataSource(mFile!!.absolutePath)
+        } else {
+            mExtractor!!.setDataSource(getStoryFileDescriptor(context!!, mPath,"","r")!!)
+        }
 
         var foundTrack = false
 
         for (i in 0 until mExtractor!!.trackCount) {
-            mFormat = mExtractor!!.getTrackFormat(i)
-            if (!foundTrack && MediaHelper.getTypeFromFormat(mFormat!!) == mType) {
+            val format = mExtractor!!.getTrackFormat(i)
+            if (!foundTrack && MediaHelper.getTypeFromFormat(format) == mType) {
+                mFormat = format
                 mExtractor!!.selectTrack(i)
                 foundTrack = true
             }
@@ -79,14 +94,14 @@ class PipedMediaExtractor
     }
 
     override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
-        val buffer = mBufferPool.get()
+        val buffer = ByteBufferPool.getShared()
         pullBuffer(buffer, info)
         return buffer
     }
 
     @Throws(InvalidBufferException::class)
     override fun releaseBuffer(buffer: ByteBuffer) {
-        mBufferPool.release(buffer)
+        ByteBufferPool.releaseShared(buffer)
     }
 
     private fun pullBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
@@ -11,12 +11,25 @@ import java.io.Closeable
 import java.io.File
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
 /**
  *
  * This media pipeline component multiplexes encoded audio and video streams into an output file.
  * This class primarily encapsulates a [MediaMuxer].
  *
+ * The muxer drives the pipeline: each track is drained by one task on [PipelineExecutor], which
+ * pulls buffers from the components behind it on demand.
+ *
+ * Other renditions of the same media (e.g. a smaller video for older phones) can be written in the
+ * same pass with [addRendition]: the rendition's tracks are drained by this muxer's tasks,
+ * interleaved with the matching tracks of this muxer.
+ *
+ * [close] may be called from any thread (e.g. to cancel from the UI) and does not wait: while
+ * [crunch] runs, it only stops the track tasks, and the crunching thread tears the muxer down once
+ * they have stopped.
+ *
  * Components commonly used in conjunction with this class are [PipedMediaCodec]
  * (particularly its subclasses [PipedMediaEncoder] and [PipedVideoSurfaceEncoder])
  * and [PipedMediaExtractor].
@@ -39,17 +52,36 @@ class PipedMediaMuxer
     private var mAudioTrackIndex = -1
     private var mAudioOutputFormat: MediaFormat? = null
     private val mAudioBitrate = -1
-    private var mAudioThread: StreamThread? = null
+    @Volatile
+    private var mAudioStream: StreamTask? = null
 
     private var mVideoSource: PipedMediaByteBufferSource? = null
     private var mVideoTrackIndex = -1
     private var mVideoOutputFormat: MediaFormat? = null
     private val mVideoBitrate = -1
-    private var mVideoThread: StreamThread? = null
+    @Volatile
+    private var mVideoStream: StreamTask? = null
+
+    private var mTextCues: List<TextCue> = emptyList()
+    private var mTextTrackIndex = -1
+
+    private val mRenditions = ArrayList<PipedMediaMuxer>()
 
     @Volatile
     private var mAbnormallyEnded = false
 
+    //Whether a thread is in crunch(), which then tears the muxer down itself. Guarded by mStateLock,
+    //along with the transitions of mComponentState out of UNINITIALIZED and into CLOSED.
+    private var mIsCrunching = false
+    private val mStateLock = Any()
+
+    /**
+     * Whether muxing stopped because of an error. For a rendition, this is the result of the
+     * crunch of the muxer it was added to.
+     */
+    val isAbnormallyEnded: Boolean
+        get() = mAbnormallyEnded
+
     /**
      * Get approximate current progress of the audio track (i.e. the latest timestamp in microseconds).
      * @return approximate microseconds of completed audio
@@ -81,9 +113,32 @@ class PipedMediaMuxer
         }
     }
 
+    /**
+     * Add a muxer which writes another rendition of the same media in the same pass. Its sources
+     * are set up and drained by this muxer; do not crunch it separately. A failure of the rendition
+     * does not stop this muxer.
+     */
+    fun addRendition(rendition: PipedMediaMuxer) {
+        mRenditions.add(rendition)
+    }
+
+    /**
+     * Text shown from startUs up to (excluding) endUs.
+     */
+    class TextCue(val startUs: Long, val endUs: Long, val text: String)
+
+    /**
+     * Add a 3GPP timed text track with the given cues, in order. Not every device's muxer accepts
+     * a text track; where it doesn't, the file is written without one.
+     */
+    fun setTimedText(cues: List<TextCue>) {
+        mTextCues = cues
+    }
+
     private fun getAudioProgress(allowDeflect: Boolean): Long {
-        return if (mAudioThread != null) {
-            mAudioThread!!.progress
+        val stream = mAudioStream
+        return if (stream != null) {
+            stream.progress
         } else if (allowDeflect) {
             //If there is no audio channel, use the video progress as audio progress.
             getVideoProgress(false)
@@ -93,8 +148,9 @@ class PipedMediaMuxer
     }
 
     private fun getVideoProgress(allowDeflect: Boolean): Long {
-        return if (mVideoThread != null) {
-            mVideoThread!!.progress
+        val stream = mVideoStream
+        return if (stream != null) {
+            stream.progress
         } else if (allowDeflect) {
             //If there is no video channel, use the audio progress as video progress.
             getAudioProgress(false)
@@ -111,42 +167,55 @@ class PipedMediaMuxer
      */
     @Throws(IOException::class, SourceUnacceptableException::class)
     fun crunch(): Boolean {
-        start()
-
-        synchronized(audioLock) {
-            if (mAudioSource != null) {
-                mAudioThread = StreamThread(mMuxer!!, mAudioSource!!, mAudioTrackIndex, mAudioBitrate)
-                mAudioThread!!.start()
-            }
+        synchronized(mStateLock) {
+            if (mComponentState == PipedMediaSource.State.CLOSED) return false
+            mIsCrunching = true
         }
-
-        synchronized(videoLock) {
-            if (mVideoSource != null) {
-                mVideoThread = StreamThread(mMuxer!!, mVideoSource!!, mVideoTrackIndex, mVideoBitrate)
-                mVideoThread!!.start()
+        try {
+            start()
+            for (rendition in mRenditions) {
+                try {
+                    rendition.start()
+                } catch (e: Exception) {
+                    Log.w(TAG, "Rendition " + rendition.mPath + " could not be started", e)
+                    rendition.mAbnormallyEnded = true
+                    //Its sources must not hold up (or buffer for) the other outputs.
+                    rendition.close()
+                }
             }
-        }
+            val renditions = mRenditions.filter { !it.mAbnormallyEnded }
 
-        if (mAudioThread != null) {
-            try {
-                mAudioThread!!.join()
-            } catch (e: InterruptedException) {
-                Log.w(TAG, "Audio thread did not end!", e)
+            //A close() from now on leaves mMuxer to this thread, so it is still set here.
+            synchronized(audioLock) {
+                if (mAudioSource != null) {
+                    val stream = StreamTask(Track(this, mMuxer!!, mAudioSource!!, mAudioTrackIndex),
+                            renditions.filter { it.mAudioSource != null }
+                                    .map { Track(it, it.mMuxer!!, it.mAudioSource!!, it.mAudioTrackIndex) })
+                    stream.future = PipelineExecutor.submit(stream)
+                    mAudioStream = stream
+                }
             }
 
-        }
-
-        if (mVideoThread != null) {
-            try {
-                mVideoThread!!.join()
-            } catch (e: InterruptedException) {
-                Log.w(TAG, "Video thread did not end!", e)
+            synchronized(videoLock) {
+                if (mVideoSource != null) {
+                    val stream = StreamTask(Track(this, mMuxer!!, mVideoSource!!, mVideoTrackIndex),
+                            renditions.filter { it.mVideoSource != null }
+                                    .map { Track(it, it.mMuxer!!, it.mVideoSource!!, it.mVideoTrackIndex) })
+                    stream.future = PipelineExecutor.submit(stream)
+                    mVideoStream = stream
+                }
             }
 
+            mAudioStream?.await()
+            mVideoStream?.await()
+        } finally {
+            synchronized(mStateLock) {
+                mComponentState = PipedMediaSource.State.CLOSED
+                mIsCrunching = false
+            }
+            release()
         }
 
-        close()
-
         return !mAbnormallyEnded
     }
 
@@ -159,7 +228,12 @@ class PipedMediaMuxer
         }
         synchronized(muxerLock) {
             mMuxer = MediaMuxer(mPath, mFormat)
-            mComponentState = PipedMediaSource.State.RUNNING
+            synchronized(mStateLock) {
+                //A close() in the meantime must still stop the track tasks.
+                if (mComponentState == PipedMediaSource.State.UNINITIALIZED) {
+                    mComponentState = PipedMediaSource.State.RUNNING
+                }
+            }
 
             if (mAudioSource != null) {
                 if (MediaHelper.VERBOSE) Log.v(TAG, "setting up audio track.")
@@ -183,50 +257,188 @@ class PipedMediaMuxer
                 if (MediaHelper.VERBOSE) Log.v(TAG, "adding video track.")
                 mVideoTrackIndex = mMuxer!!.addTrack(mVideoOutputFormat!!)
             }
+            if (mTextCues.isNotEmpty()) {
+                mTextTrackIndex = addTextTrack(mMuxer!!)
+            }
             if (MediaHelper.VERBOSE) Log.v(TAG, "starting")
             mMuxer!!.start()
+            if (mTextTrackIndex >= 0) {
+                writeTimedText(mMuxer!!)
+            }
         }
     }
 
-    private inner class StreamThread(private val mMuxer: MediaMuxer, private val mSource: PipedMediaByteBufferSource, private val mTrackIndex: Int, private val mBitrate: Int) : Thread() {
+    private fun addTextTrack(muxer: MediaMuxer): Int {
+        val format = MediaFormat()
+        format.setString(MediaFormat.KEY_MIME, MIMETYPE_TEXT_3GPP)
+        format.setString(MediaFormat.KEY_LANGUAGE, "und")
+        return try {
+            muxer.addTrack(format)
+        } catch (e: IllegalArgumentException) {
+            Log.i(TAG, "Muxer does not support timed text; leaving it out of $mPath")
+            -1
+        } catch (e: IllegalStateException) {
+            Log.i(TAG, "Muxer does not support timed text; leaving it out of $mPath")
+            -1
+        }
+    }
+
+    /**
+     * Write all cues of the text track at once; there are only a few, and the muxer interleaves
+     * them with the other tracks. Gaps between cues are filled with empty samples, which clear
+     * the text.
+     */
+    private fun writeTimedText(muxer: MediaMuxer) {
+        val info = MediaCodec.BufferInfo()
+        var endUs: Long = 0
+        try {
+            for (cue in mTextCues) {
+                if (cue.startUs > endUs) {
+                    writeTextSample(muxer, info, endUs, "")
+                }
+                writeTextSample(muxer, info, cue.startUs, cue.text)
+                endUs = cue.endUs
+            }
+            writeTextSample(muxer, info, endUs, "")
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to write timed text to $mPath", e)
+        }
+    }
+
+    private fun writeTextSample(muxer: MediaMuxer, info: MediaCodec.BufferInfo, timeUs: Long, text: String) {
+        //A 3GPP text sample is the length of the UTF-8 text, then the text.
+        var bytes = text.toByteArray(Charsets.UTF_8)
+        if (bytes.size > 0xFFFF) bytes = bytes.copyOf(0xFFFF)
+        val sample = ByteBuffer.allocate(2 + bytes.size)
+        sample.putShort(bytes.size.toShort())
+        sample.put(bytes)
+        sample.flip()
+        info.set(0, sample.remaining(), timeUs, MediaCodec.BUFFER_FLAG_KEY_FRAME)
+        synchronized(muxer) {
+            muxer.writeSampleData(mTextTrackIndex, sample, info)
+        }
+    }
+
+    /**
+     * One track of one output file.
+     */
+    private class Track(val owner: PipedMediaMuxer, val muxer: MediaMuxer, val source: PipedMediaByteBufferSource, val trackIndex: Int) {
+        var progress: Long = 0
+        var isDone = false
+    }
+
+    /**
+     * Drains one track of this muxer, along with the same track of each rendition. The track which
+     * is furthest behind is always pulled next, so that shared upstream components (such as a tee)
+     * never have to buffer far ahead.
+     */
+    private inner class StreamTask(private val mMain: Track, private val mRenditionTracks: List<Track>) : Runnable {
+        @Volatile
         var progress: Long = 0
             private set
 
+        var future: Future<*>? = null
+
+        private val mTrackIndex = mMain.trackIndex
+
         override fun run() {
-            var buffer: ByteBuffer
+            val tracks = ArrayList<Track>()
+            tracks.add(mMain)
+            tracks.addAll(mRenditionTracks)
             val info = MediaCodec.BufferInfo()
-            try {
-                while (!mSource.isDone && mComponentState != PipedMediaSource.State.CLOSED) {
-                    buffer = mSource.getBuffer(info)
-                    if (MediaHelper.VERBOSE)
-                        Log.v(TAG, "[track " + mTrackIndex + "] writing output buffer of size "
-                                + info.size + " for time " + info.presentationTimeUs)
-
-                    //Update progress if progress increased. (There may be edge cases where
-                    //presentation time is 0, and that is an undesirable progress indicator.)
-                    //In other words, never allow regression, only progression.
-                    if (info.presentationTimeUs > progress) {
-                        //TODO: determine presentation time for end of this buffer if possible
-                        progress = info.presentationTimeUs// + (info.size * 1000000L / 8 / mBitrate);
+            while (mComponentState != PipedMediaSource.State.CLOSED) {
+                var track: Track? = null
+                for (candidate in tracks) {
+                    if (candidate.isDone) continue
+                    if (candidate.source.isDone) {
+                        candidate.isDone = true
+                        continue
+                    }
+                    if (track == null || candidate.progress < track.progress) {
+                        track = candidate
                     }
+                }
+                if (track == null) break
 
-                    synchronized(mMuxer) {
-                        mMuxer.writeSampleData(mTrackIndex, buffer, info)
+                try {
+                    writeBuffer(track, info)
+                } catch (e: Exception) {
+                    if (track === mMain) {
+                        Log.w(TAG, "Source closed forcibly", e)
+                        mAbnormallyEnded = true
+                        break
                     }
-                    mSource.releaseBuffer(buffer)
+                    //A broken rendition must not spoil the main output.
+                    Log.w(TAG, "Rendition " + track.owner.mPath + " failed", e)
+                    track.owner.mAbnormallyEnded = true
+                    track.isDone = true
+                    track.source.close()
                 }
-            } catch (e: Exception) {
-                Log.w(TAG, "Source closed forcibly", e)
-                mAbnormallyEnded = true
             }
+            //Renditions which were left unfinished are incomplete.
+            for (track in mRenditionTracks) {
+                if (!track.isDone) {
+                    track.owner.mAbnormallyEnded = true
+                }
+            }
+        }
+
+        private fun writeBuffer(track: Track, info: MediaCodec.BufferInfo) {
+            val buffer = track.source.getBuffer(info)
+            if (MediaHelper.VERBOSE)
+                Log.v(TAG, "[track " + track.trackIndex + "] writing output buffer of size "
+                        + info.size + " for time " + info.presentationTimeUs)
+
+            //Update progress if progress increased. (There may be edge cases where
+            //presentation time is 0, and that is an undesirable progress indicator.)
+            //In other words, never allow regression, only progression.
+            if (info.presentationTimeUs > track.progress) {
+                //TODO: determine presentation time for end of this buffer if possible
+                track.progress = info.presentationTimeUs
+                if (track === mMain) {
+                    progress = info.presentationTimeUs
+                }
+            }
+
+            synchronized(track.muxer) {
+                track.muxer.writeSampleData(track.trackIndex, buffer, info)
+            }
+            track.source.releaseBuffer(buffer)
+        }
 
+        /**
+         * Wait for the track to be drained.
+         */
+        fun await() {
+            try {
+                future?.get()
+            } catch (e: InterruptedException) {
+                Log.w(TAG, "Track $mTrackIndex did not end!", e)
+            } catch (e: ExecutionException) {
+                Log.w(TAG, "Track $mTrackIndex failed!", e)
+                mAbnormallyEnded = true
+            }
         }
     }
 
     override fun close() {
-        synchronized(muxerLock) {
-            //Close sources.
+        synchronized(mStateLock) {
+            //The track tasks check the state between buffers. While crunch() runs, it lets them
+            //finish the buffer in hand before the components they are pulling from are torn down.
             mComponentState = PipedMediaSource.State.CLOSED
+            if (mIsCrunching) return
+        }
+        release()
+    }
+
+    /**
+     * Release the muxer and close the sources, once no track task is running.
+     */
+    private fun release() {
+        synchronized(muxerLock) {
+            for (rendition in mRenditions) {
+                rendition.close()
+            }
 
             //Close self.
             if (mMuxer != null) {
@@ -266,6 +478,8 @@ class PipedMediaMuxer
     companion object {
         private val TAG = "PipedMediaMuxer"
 
+        private const val MIMETYPE_TEXT_3GPP = "text/3gpp"
+
         private val audioLock = Any()
         private val videoLock = Any()
         private val muxerLock = Any()
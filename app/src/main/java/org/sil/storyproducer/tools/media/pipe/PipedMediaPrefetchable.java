@@ -0,0 +1,14 @@
+package org.sil.storyproducer.tools.media.pipe;
+
+/**
+ * <p>Describes a component of the media pipeline which can start the slow part of its
+ * {@link PipedMediaSource#setup()} (such as opening and parsing a file) in the background.</p>
+ * <p>Note: This interface is only intended to be used by other media pipeline components.</p>
+ */
+public interface PipedMediaPrefetchable {
+    /**
+     * Start preparing this component ahead of {@link PipedMediaSource#setup()}, which will then
+     * use (and wait for) the prepared work. Any failure is reported by setup.
+     */
+    void prefetch();
+}
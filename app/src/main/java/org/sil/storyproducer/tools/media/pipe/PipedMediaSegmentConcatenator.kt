@@ -0,0 +1,220 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.content.Context
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ *
+ * This media pipeline component joins already encoded segments of one track into a single
+ * encoded stream, without decoding them. Each segment is read by a [PipedMediaExtractor] and
+ * its presentation times are shifted so that it starts at the time given for it, or right after
+ * the previous segment.
+ *
+ *
+ * The segments must have been encoded with identical codec configuration (the same csd-0 and
+ * csd-1 buffers), and each must start with a sync frame; [setup] rejects segments whose
+ * configuration differs.
+ */
+class PipedMediaSegmentConcatenator
+/**
+ * Create a concatenator for the given track type.
+ * @param mType (audio/video) track to read from each segment.
+ */
+(private val mType: MediaHelper.MediaType) : PipedMediaByteBufferSource {
+
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private val mSegments = ArrayList<Segment>()
+
+    private var mOutputFormat: MediaFormat? = null
+
+    private var mSegmentIndex = -1
+    private var mSource: PipedMediaExtractor? = null
+    private var mIsDone = false
+
+    //Timing of the current segment.
+    private var mOffsetUs: Long = 0
+    private var mIsFirstBuffer = true
+    //Output times of the last two buffers, for placing a segment right after the previous one.
+    private var mLastTimeUs: Long = -1
+    private var mLastIntervalUs: Long = 0
+
+    /**
+     * Add a segment after those already added.
+     * @param segment the encoded media file.
+     * @param startUs presentation time, in microseconds, at which the segment starts, or
+     * [FOLLOW_PREVIOUS] to start it one frame after the last frame of the previous segment.
+     */
+    fun addSegment(segment: File, startUs: Long) {
+        mSegments.add(Segment(segment.name, startUs) { PipedMediaExtractor(segment, mType) })
+    }
+
+    /**
+     * Add a story file as a segment after those already added.
+     * @param path story-relative path of the encoded media file.
+     * @param startUs presentation time, in microseconds, at which the segment starts, or
+     * [FOLLOW_PREVIOUS] to start it one frame after the last frame of the previous segment.
+     */
+    fun addSegment(context: Context, path: String, startUs: Long) {
+        mSegments.add(Segment(path, startUs) { PipedMediaExtractor(context, path, mType) })
+    }
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return mType
+    }
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    override fun isDone(): Boolean {
+        return mIsDone || mComponentState == PipedMediaSource.State.CLOSED
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+        if (mSegments.isEmpty()) {
+            throw SourceUnacceptableException("No segments provided!")
+        }
+
+        //Check every segment up front, so a mismatch is found before any output is written.
+        for (segment in mSegments) {
+            val format = readFormat(segment)
+            if (mOutputFormat == null) {
+                mOutputFormat = format
+            } else if (!isSameConfig(mOutputFormat!!, format)) {
+                throw SourceUnacceptableException("Segment " + segment.name + " has a different codec configuration")
+            }
+        }
+
+        openNextSegment()
+
+        mComponentState = PipedMediaSource.State.RUNNING
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun readFormat(segment: Segment): MediaFormat {
+        val extractor = segment.open()
+        try {
+            extractor.setup()
+            return extractor.outputFormat
+                    ?: throw SourceUnacceptableException("Segment " + segment.name + " has no format")
+        } finally {
+            extractor.close()
+        }
+    }
+
+    private fun isSameConfig(a: MediaFormat, b: MediaFormat): Boolean {
+        if (a.getString(MediaFormat.KEY_MIME) != b.getString(MediaFormat.KEY_MIME)) return false
+        for (key in CSD_KEYS) {
+            val csdA = if (a.containsKey(key)) a.getByteBuffer(key) else null
+            val csdB = if (b.containsKey(key)) b.getByteBuffer(key) else null
+            if (csdA != csdB) return false
+        }
+        return true
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun openNextSegment(): Boolean {
+        mSource?.close()
+        mSource = null
+
+        mSegmentIndex++
+        if (mSegmentIndex >= mSegments.size) {
+            return false
+        }
+
+        if (MediaHelper.VERBOSE) Log.v(TAG, "starting segment " + mSegments[mSegmentIndex].name)
+        mSource = mSegments[mSegmentIndex].open()
+        mSource!!.setup()
+        mIsFirstBuffer = true
+        return true
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        val outBuffer = getBuffer(info)
+        buffer.clear()
+        buffer.put(outBuffer)
+        buffer.position(info.offset)
+        buffer.limit(info.offset + info.size)
+        releaseBuffer(outBuffer)
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            throw SourceClosedException()
+        }
+
+        while (true) {
+            val source = mSource!!
+            val buffer = source.getBuffer(info)
+            if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM == 0 || mSegmentIndex >= mSegments.size - 1) {
+                if (info.size > 0) {
+                    if (mIsFirstBuffer) {
+                        mOffsetUs = getStartUs(mSegments[mSegmentIndex]) - info.presentationTimeUs
+                        mIsFirstBuffer = false
+                    }
+                    info.presentationTimeUs += mOffsetUs
+                    if (mLastTimeUs >= 0) {
+                        mLastIntervalUs = info.presentationTimeUs - mLastTimeUs
+                    }
+                    mLastTimeUs = info.presentationTimeUs
+                }
+                if (source.isDone) {
+                    mIsDone = true
+                }
+                return buffer
+            }
+
+            //Only the end of the last segment ends the stream.
+            source.releaseBuffer(buffer)
+            try {
+                openNextSegment()
+            } catch (e: IOException) {
+                throw RuntimeException("Could not open segment " + mSegments[mSegmentIndex].name, e)
+            } catch (e: SourceUnacceptableException) {
+                throw RuntimeException("Could not open segment " + mSegments[mSegmentIndex].name, e)
+            }
+        }
+    }
+
+    private fun getStartUs(segment: Segment): Long {
+        if (segment.startUs != FOLLOW_PREVIOUS) return segment.startUs
+        return if (mLastTimeUs < 0) 0 else mLastTimeUs + mLastIntervalUs
+    }
+
+    @Throws(InvalidBufferException::class)
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        ByteBufferPool.releaseShared(buffer)
+    }
+
+    override fun close() {
+        mComponentState = PipedMediaSource.State.CLOSED
+        mSource?.close()
+        mSource = null
+    }
+
+    private class Segment(val name: String, val startUs: Long, val open: () -> PipedMediaExtractor)
+
+    companion object {
+        private val TAG = "PipedMediaSegmentConcat"
+
+        /** start time of a segment which directly follows the previous one */
+        const val FOLLOW_PREVIOUS: Long = -1
+
+        private val CSD_KEYS = arrayOf("csd-0", "csd-1")
+    }
+}
@@ -0,0 +1,226 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.graphics.Canvas
+import android.graphics.Picture
+import android.media.MediaFormat
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.io.IOException
+import java.util.ArrayDeque
+
+/**
+ *
+ * This media pipeline component lets several [PipedVideoSurfaceEncoder]s encode the frames of one
+ * source, e.g. to make renditions of different sizes in the same pass.
+ *
+ * Each frame is drawn once, into a [Picture], and played back onto the canvas of every output,
+ * scaled to the output's size. An output with a lower frame rate than the source skips frames.
+ * Frames (and their pictures) are recycled once every output has used or skipped them.
+ * Frames are queued for outputs which fall behind, so the outputs should be drained at about the
+ * same pace (as [PipedMediaMuxer] does for renditions). Once [MAX_QUEUED_FRAMES] frames are queued,
+ * an output which is ahead reports [PipedVideoSurfaceEncoder.Source.isFrameReady] false, so that
+ * its encoder holds off drawing until the others catch up. The source is closed once every output
+ * has been closed.
+ */
+class PipedVideoFrameTee
+/**
+ * Create a tee of a frame source.
+ * @param mSource the source of frames.
+ */
+(private val mSource: PipedVideoSurfaceEncoder.Source) {
+
+    private val mOutputs = ArrayList<Output>()
+    private var mIsSetup = false
+    private var mWidth = 0
+    private var mHeight = 0
+    private var mFrameRate = 0
+
+    //Frames no output has queued any more, to record later frames into.
+    private val mFreeFrames = ArrayDeque<Frame>()
+    private var mFrameCount = 0
+
+    //Frames queued for (or being drawn by) at least one output.
+    private val framesInUse: Int
+        get() = mFrameCount - mFreeFrames.size
+
+    /**
+     * Create another output of the tee. All outputs must be created before any is pulled from.
+     * @param format format of the output; its size, and frame rate if lower than the
+     * source's, are applied to the frames.
+     */
+    fun createOutput(format: MediaFormat): PipedVideoSurfaceEncoder.Source {
+        val output = Output(format)
+        mOutputs.add(output)
+        return output
+    }
+
+    @Synchronized
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun setupSource() {
+        if (!mIsSetup) {
+            mSource.setup()
+            val format = mSource.outputFormat
+            mWidth = format.getInteger(MediaFormat.KEY_WIDTH)
+            mHeight = format.getInteger(MediaFormat.KEY_HEIGHT)
+            mFrameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE)
+            mIsSetup = true
+        }
+    }
+
+    /**
+     * Draw the next frame of the source and queue it for every open output.
+     * @return false if the source has no more frames.
+     */
+    private fun pull(): Boolean {
+        if (mSource.isDone) return false
+
+        var frame = mFreeFrames.poll()
+        if (frame == null) {
+            frame = Frame()
+            mFrameCount++
+        }
+        frame.timeUs = mSource.fillCanvas(frame.picture.beginRecording(mWidth, mHeight))
+        frame.picture.endRecording()
+        frame.holdUs = mSource.holdUs
+        for (output in mOutputs) {
+            if (!output.isClosed) {
+                output.queue.add(frame)
+                frame.users++
+            }
+        }
+        if (frame.users == 0) {
+            mFreeFrames.add(frame)
+        }
+        return true
+    }
+
+    /**
+     * Drop one output's use of a frame, recycling the frame once no output needs it.
+     */
+    private fun release(frame: Frame) {
+        frame.users--
+        if (frame.users == 0) {
+            mFreeFrames.add(frame)
+        }
+    }
+
+    @Synchronized
+    private fun closeOutput(output: Output) {
+        output.isClosed = true
+        for (frame in output.queue) {
+            release(frame)
+        }
+        output.queue.clear()
+        if (mOutputs.all { it.isClosed }) {
+            mSource.close()
+        }
+    }
+
+    private class Frame {
+        val picture = Picture()
+        var timeUs: Long = 0
+        var holdUs: Long = 0
+        //number of outputs which have the frame queued
+        var users = 0
+    }
+
+    private inner class Output(private val mFormat: MediaFormat) : PipedVideoSurfaceEncoder.Source {
+        val queue = ArrayDeque<Frame>()
+        var isClosed = false
+
+        private var mHoldUs: Long = 0
+        //Earliest time of the next frame to be used, when skipping frames.
+        private var mNextTimeUs = Long.MIN_VALUE
+        private var mFrameIntervalUs: Long = 0
+
+        override fun getMediaType(): MediaHelper.MediaType {
+            return MediaHelper.MediaType.VIDEO
+        }
+
+        override fun getOutputFormat(): MediaFormat {
+            return mFormat
+        }
+
+        @Throws(IOException::class, SourceUnacceptableException::class)
+        override fun setup() {
+            setupSource()
+            if (mFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                val frameRate = mFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
+                if (frameRate in 1 until mFrameRate) {
+                    mFrameIntervalUs = 1000000L / frameRate
+                }
+            }
+        }
+
+        override fun isDone(): Boolean {
+            synchronized(this@PipedVideoFrameTee) {
+                //peek() never skips the last frame of the source, so a queued frame is always used.
+                return isClosed || (queue.isEmpty() && mSource.isDone)
+            }
+        }
+
+        override val holdUs: Long
+            get() = mHoldUs
+
+        override val isFrameReady: Boolean
+            get() {
+                synchronized(this@PipedVideoFrameTee) {
+                    return isClosed || queue.isNotEmpty() || framesInUse < MAX_QUEUED_FRAMES
+                }
+            }
+
+        /**
+         * Get the next frame this output will use, drawing it if needed.
+         * @return the frame, or null if there are no more frames.
+         */
+        private fun peek(): Frame? {
+            while (true) {
+                if (queue.isEmpty() && !pull()) return null
+                val frame = queue.peek()
+                //Allow a little jitter in the source's frame times.
+                if (frame.timeUs + mFrameIntervalUs / 4 >= mNextTimeUs) return frame
+                //Keep the last frame, so that the output ends on it as isDone() promised.
+                if (queue.size == 1 && mSource.isDone) return frame
+                release(queue.poll())
+            }
+        }
+
+        override fun fillCanvas(canv: Canvas): Long {
+            val frame: Frame
+            synchronized(this@PipedVideoFrameTee) {
+                frame = peek() ?: throw RuntimeException("fillCanvas called after depleted")
+                queue.poll()
+            }
+            if (mFrameIntervalUs > 0) {
+                mNextTimeUs = frame.timeUs + mFrameIntervalUs
+            }
+            mHoldUs = frame.holdUs
+
+            val timeUs = frame.timeUs
+            canv.save()
+            canv.scale(canv.width / mWidth.toFloat(), canv.height / mHeight.toFloat())
+            frame.picture.draw(canv)
+            canv.restore()
+            //Only now may the frame be recorded over.
+            synchronized(this@PipedVideoFrameTee) {
+                release(frame)
+            }
+            return timeUs
+        }
+
+        override fun close() {
+            if (!isClosed) {
+                closeOutput(this)
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Number of frames the outputs may have queued before an output that is ahead waits.
+         * This covers the frames an encoder holds, twice over for an output at half the frame rate.
+         */
+        private const val MAX_QUEUED_FRAMES = 8
+    }
+}
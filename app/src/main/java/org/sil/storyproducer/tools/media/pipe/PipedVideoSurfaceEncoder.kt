@@ -5,6 +5,7 @@ import android.graphics.Canvas
 import android.media.*
 import android.media.MediaCodecInfo.CodecCapabilities.*
 import android.os.Build
+import android.os.Bundle
 import androidx.core.math.MathUtils
 import android.view.Surface
 import org.sil.storyproducer.tools.media.MediaHelper
@@ -38,6 +39,9 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
 
     private val mStartPresentationTime: Long = System.nanoTime()/1000
     private var mCurrentPresentationTime: Long = 0
+    private var mInputDone = false
+    private var mRefusedFeeds = 0
+    private var mRequestSyncFrame = false
 
     override fun getMediaType(): MediaHelper.MediaType {
         return MediaHelper.MediaType.VIDEO
@@ -75,53 +79,80 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
         start()
     }
 
-    override fun spinInput() {
+    override fun feedInput(): Boolean {
         if (mSource == null) {
             throw RuntimeException("No source provided!")
         }
+        if (mInputDone) {
+            return false
+        }
 
-        while (mComponentState != PipedMediaSource.State.CLOSED && !mSource!!.isDone) {
-
-            //For video creation, it should be able to create one slide from one image.
-            //If there is something holding it up, keep going but give it time to process.
-            //give it 100ms to process a frame.
-            var waitTries = 0
-            while(mPresentationTimeQueue.size > 3 && waitTries++ < 10){
-                //Really, for async processing we would use MediaCodec.Callback(), but maybe we can
-                //just count the number of buffers used through looking at the time queue.
-                Thread.sleep(10)
+        if (mSource!!.isDone) {
+            mInputDone = true
+            if (mComponentState != PipedMediaSource.State.CLOSED) {
+                mCodec!!.signalEndOfInputStream()
             }
-            // 4/6/2022 - DKH, Issue 639: Logcat reports this error: FrameEvents: updateAcquireFence: Did not find frame.
-            // The following code was previously used to allow the use of hardware Codec video
-            // encoding.
-            // mCanvas = if (Build.VERSION.SDK_INT >= 23) {
-            //    mSurface!!.lockHardwareCanvas()
-            // } else {
-            //    mSurface!!.lockCanvas(null)
-            //}
-            // With the advent of Android 11 and later versions, the Codec encoder began reporting
-            // to the system error log the following error per frame of data:
-            //      FrameEvents: updateAcquireFence: Did not find frame.
-            // For small stories (6 slides), this resulted ~3000 error messages to the system log
-            // Further analysis of the performance data showed that in most cases, the software
-            // codec encoder performed better than the hardware encoder.
-            // The following change uses the software codec to eliminate the error messages and
-            // provides better performance in most cases.
-            mCanvas = mSurface!!.lockCanvas(null)  // force use of software video codec encoder
-
-            mCurrentPresentationTime = mSource!!.fillCanvas(mCanvas!!)
+            mSource!!.close()
+            return true
+        }
 
-            synchronized(mPresentationTimeQueue) {
-                mPresentationTimeQueue.add(mCurrentPresentationTime)
+        //For video creation, it should be able to create one slide from one image.
+        //If the codec is holding several frames already, give it up to 100ms (each refusal
+        //costs one dequeue timeout in pullBuffer) to catch up before drawing another.
+        //Really, for async processing we would use MediaCodec.Callback(), but we can
+        //just count the number of buffers used through looking at the time queue.
+        synchronized(mPresentationTimeQueue) {
+            if (mPresentationTimeQueue.size > MAX_FRAMES_IN_FLIGHT && mRefusedFeeds++ < MAX_REFUSED_FEEDS) {
+                return false
+            }
+            //Likewise if the source would rather not draw yet. Waiting only helps while the
+            //codec holds frames: their output lets the caller go drain whatever the source
+            //waits on (such as the other outputs of a tee, pulled by the same muxer thread).
+            if (mPresentationTimeQueue.isNotEmpty() && !mSource!!.isFrameReady && mRefusedFeeds++ < MAX_REFUSED_FEEDS) {
+                return false
             }
-            mSurface!!.unlockCanvasAndPost(mCanvas!!)
+        }
+        mRefusedFeeds = 0
+
+        // 4/6/2022 - DKH, Issue 639: Logcat reports this error: FrameEvents: updateAcquireFence: Did not find frame.
+        // The following code was previously used to allow the use of hardware Codec video
+        // encoding.
+        // mCanvas = if (Build.VERSION.SDK_INT >= 23) {
+        //    mSurface!!.lockHardwareCanvas()
+        // } else {
+        //    mSurface!!.lockCanvas(null)
+        //}
+        // With the advent of Android 11 and later versions, the Codec encoder began reporting
+        // to the system error log the following error per frame of data:
+        //      FrameEvents: updateAcquireFence: Did not find frame.
+        // For small stories (6 slides), this resulted ~3000 error messages to the system log
+        // Further analysis of the performance data showed that in most cases, the software
+        // codec encoder performed better than the hardware encoder.
+        // The following change uses the software codec to eliminate the error messages and
+        // provides better performance in most cases.
+        mCanvas = mSurface!!.lockCanvas(null)  // force use of software video codec encoder
+
+        mCurrentPresentationTime = mSource!!.fillCanvas(mCanvas!!)
+
+        synchronized(mPresentationTimeQueue) {
+            mPresentationTimeQueue.add(mCurrentPresentationTime)
         }
 
-        if (mComponentState != PipedMediaSource.State.CLOSED){
-            mCodec!!.signalEndOfInputStream()
+        //The frame ending a long hold is made a sync frame, so seeking into the hold is cheap.
+        if (mRequestSyncFrame) {
+            val params = Bundle()
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0)
+            mCodec!!.setParameters(params)
+            mRequestSyncFrame = false
         }
+        mSurface!!.unlockCanvasAndPost(mCanvas!!)
 
-        mSource!!.close()
+        //A held frame stays on screen until the next frame's presentation time; nothing is
+        //drawn or encoded for the time steps in between.
+        if (mSource!!.holdUs >= SYNC_FRAME_HOLD_US) {
+            mRequestSyncFrame = true
+        }
+        return true
     }
 
     override fun correctTime(info: MediaCodec.BufferInfo) {
@@ -144,10 +175,39 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
          * @return the presentation time (in microseconds) of the drawn frame.
          */
         fun fillCanvas(canv: Canvas): Long
+
+        /**
+         * How long (in microseconds) the frame last drawn by [fillCanvas] is held unchanged
+         * before the next frame, when the source skips drawing identical frames.
+         * 0 if the next frame follows at the normal frame rate.
+         */
+        val holdUs: Long
+            get() = 0
+
+        /**
+         * Whether a frame can be drawn without getting ahead of what the source buffers,
+         * such as a tee waiting on its other outputs. Drawing anyway must still work.
+         */
+        val isFrameReady: Boolean
+            get() = true
+    }
+
+    override fun close() {
+        super.close()
+        //A source left unfinished is released too, so that nothing upstream (such as a tee)
+        //keeps working for this component.
+        if (!mInputDone) {
+            mInputDone = true
+            mSource?.close()
+        }
     }
 
     companion object {
         private val TAG = "PipedVideoSurfaceEnc"
 
+        private const val MAX_FRAMES_IN_FLIGHT = 3
+        private const val MAX_REFUSED_FEEDS = 10
+        private const val SYNC_FRAME_HOLD_US: Long = 1000000
+
     }
 }
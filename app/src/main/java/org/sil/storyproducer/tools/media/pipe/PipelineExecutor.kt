@@ -0,0 +1,119 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaHelper
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ *
+ * Shared worker pool for the media pipeline.
+ *
+ * Pipeline components do not own threads. Instead, a sink (such as [PipedMediaMuxer]) submits
+ * one task per output stream, and that task pulls buffers through the chain of components
+ * behind it. A component which cannot make progress (e.g. a [PipedMediaCodec] waiting on its
+ * codec) feeds its own input or waits briefly in place rather than handing off to another thread.
+ *
+ * The pool is sized to the number of cores, with a floor of two so that the audio and video
+ * streams of a story always progress side by side.
+ *
+ *
+ * Work done ahead of time, such as opening or decoding upcoming files and images, runs on a
+ * second pool of the same size through [submitBackground], at a lower priority. Waiting on such a
+ * task runs it in the waiting thread if no worker has started it yet, so a busy background pool
+ * only costs the head start, never progress.
+ */
+object PipelineExecutor {
+    private val TAG = "PipelineExecutor"
+
+    private const val MIN_WORKERS = 2
+    private const val MAX_WORKERS = 4
+
+    /** number of worker threads in the pool */
+    val workerCount: Int = Runtime.getRuntime().availableProcessors().coerceIn(MIN_WORKERS, MAX_WORKERS)
+
+    private const val BACKGROUND_KEEP_ALIVE_S: Long = 30
+
+    private val mThreadIndex = AtomicInteger()
+    private val mBackgroundThreadIndex = AtomicInteger()
+
+    private val mExecutor: ExecutorService by lazy {
+        if (MediaHelper.VERBOSE) Log.v(TAG, "starting $workerCount workers")
+        Executors.newFixedThreadPool(workerCount, ThreadFactory { runnable ->
+            val thread = Thread(runnable, "pipeline-" + mThreadIndex.incrementAndGet())
+            thread.isDaemon = true
+            thread
+        })
+    }
+
+    private val mBackgroundExecutor: ThreadPoolExecutor by lazy {
+        val executor = ThreadPoolExecutor(workerCount, workerCount, BACKGROUND_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                LinkedBlockingQueue<Runnable>(), ThreadFactory { runnable ->
+            val thread = Thread(runnable, "pipeline-background-" + mBackgroundThreadIndex.incrementAndGet())
+            thread.isDaemon = true
+            thread.priority = Thread.NORM_PRIORITY - 1
+            thread
+        })
+        executor.allowCoreThreadTimeOut(true)
+        executor
+    }
+
+    /**
+     * Run a task on the pipeline pool.
+     * @param task work to be done, typically draining one output stream.
+     * @return future for waiting on (or cancelling) the task.
+     */
+    fun submit(task: Runnable): Future<*> {
+        return mExecutor.submit(task)
+    }
+
+    /**
+     * Run a task with a result on the pipeline pool.
+     */
+    fun <T> submit(task: Callable<T>): Future<T> {
+        return mExecutor.submit(task)
+    }
+
+    /**
+     * Run a task ahead of time on the background pool.
+     * @return future whose get() runs the task in the calling thread if it has not started yet.
+     */
+    fun <T> submitBackground(task: Callable<T>): Future<T> {
+        val future = BackgroundTask(task)
+        mBackgroundExecutor.execute(future)
+        return future
+    }
+
+    /**
+     * Run a task without a result ahead of time on the background pool.
+     */
+    fun submitBackground(task: Runnable): Future<*> {
+        return submitBackground(Callable { task.run() })
+    }
+
+    /**
+     * Task which whoever needs its result first runs: a worker, or the thread waiting on it.
+     * FutureTask.run() does nothing once the task has been started (or cancelled).
+     */
+    private class BackgroundTask<T>(task: Callable<T>) : FutureTask<T>(task) {
+        override fun get(): T {
+            run()
+            return super.get()
+        }
+
+        override fun get(timeout: Long, unit: TimeUnit): T {
+            run()
+            return super.get(timeout, unit)
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.media.MediaCodecInfo
+import android.util.Log
+
+import org.sil.storyproducer.tools.media.MediaDurationIndex
+import org.sil.storyproducer.tools.media.pipe.PipedAudioResampler
+import org.sil.storyproducer.tools.selectCodec
+
+/**
+ *
+ * Chooses the sample rate and channel count of a story's raw audio from the formats of its
+ * sources, so that as little audio as possible has to be resampled.
+ *
+ *
+ * Every source whose format differs from the chosen one goes through a single
+ * [PipedAudioResampler], which converts its sample rate and channel count together. The cost of
+ * that, and of mixing and encoding at the chosen rate, is estimated in multiply-accumulate
+ * operations. The format which leaves the most narration as it is wins, ideally all of it; among
+ * those, the cheapest wins, and ties go to the preferred format.
+ */
+object AudioFormatNegotiator {
+    private val TAG = "AudioFormatNegotiator"
+
+    //Speech below this rate sounds muffled, so lower-rate sources are converted up instead.
+    const val MIN_SAMPLE_RATE = 16000
+
+    private val STANDARD_SAMPLE_RATES = intArrayOf(16000, 22050, 24000, 32000, 44100, 48000)
+
+    //Operations per output sample of a sample rate conversion, per resampling mode.
+    private const val LINEAR_RATE_COST = 2
+    private const val SINC_RATE_COST = 16
+    //Operations per input sample of a channel-only conversion.
+    private const val CHANNEL_COST = 1
+    //Operations per output sample for mixing and encoding the story.
+    private const val OUTPUT_COST = 4
+
+    /**
+     * A stretch of one audio file played in the story.
+     * @param isNarration whether this is a narration, which should never need resampling.
+     */
+    class Source(val path: String, val sampleRate: Int, val channelCount: Int, val durationUs: Long,
+                 val isNarration: Boolean)
+
+    /**
+     * The single conversion of a source to the story's format.
+     * @param cost estimated operations for the conversion.
+     */
+    class Conversion(val source: Source, val sampleRate: Int, val channelCount: Int, val cost: Long) {
+        val isRateChange: Boolean
+            get() = source.sampleRate != sampleRate
+    }
+
+    /**
+     * The negotiated raw audio format of a story.
+     * @param conversions the sources which must be converted.
+     * @param cost estimated operations for the conversions, mixing and encoding.
+     */
+    class Plan(val sampleRate: Int, val channelCount: Int, val conversions: List<Conversion>, val cost: Long) {
+        val isNarrationConverted: Boolean
+            get() = narrationConvertedUs > 0
+
+        /** total duration of the narrations which must be converted */
+        val narrationConvertedUs: Long = conversions.filter { it.source.isNarration }.map { it.source.durationUs }.sum()
+
+        override fun toString(): String {
+            return "$sampleRate Hz, $channelCount ch; " + conversions.size + " conversions (" +
+                    conversions.count { it.isRateChange } + " resampled); ~" + cost / 1000000 + "M operations"
+        }
+    }
+
+    /**
+     * Choose the raw audio format of a story.
+     * @param sources the story's audio, with the formats of its files.
+     * @param storyDurationUs duration of the story.
+     * @param sampleRates sample rates the encoder supports.
+     * @param maxChannelCount most channels the encoder supports.
+     * @param preferredSampleRate sample rate to use when sources don't favor another.
+     * @param preferredChannelCount channel count to use when sources don't favor another.
+     * @param mode resampling mode which will be used.
+     */
+    fun negotiate(sources: List<Source>, storyDurationUs: Long, sampleRates: IntArray, maxChannelCount: Int,
+                  preferredSampleRate: Int, preferredChannelCount: Int,
+                  mode: PipedAudioResampler.Mode = PipedAudioResampler.defaultMode): Plan {
+        //Only the formats of the sources themselves can save work.
+        val candidateRates = LinkedHashSet<Int>()
+        candidateRates.add(preferredSampleRate)
+        for (source in sources) {
+            if (source.sampleRate >= MIN_SAMPLE_RATE && source.sampleRate in sampleRates) {
+                candidateRates.add(source.sampleRate)
+            }
+        }
+        //The resampler only handles mono and stereo.
+        val candidateChannels = (1..Math.min(2, maxChannelCount)).toMutableSet()
+        candidateChannels.add(preferredChannelCount)
+
+        var best: Plan? = null
+        for (sampleRate in candidateRates) {
+            for (channelCount in candidateChannels) {
+                val plan = createPlan(sources, storyDurationUs, sampleRate, channelCount, mode)
+                if (best == null || isBetter(plan, best, preferredSampleRate, preferredChannelCount)) {
+                    best = plan
+                }
+            }
+        }
+        return best!!
+    }
+
+    private fun isBetter(plan: Plan, other: Plan, preferredSampleRate: Int, preferredChannelCount: Int): Boolean {
+        if (plan.narrationConvertedUs != other.narrationConvertedUs) {
+            return plan.narrationConvertedUs < other.narrationConvertedUs
+        }
+        if (plan.cost != other.cost) return plan.cost < other.cost
+        return plan.sampleRate == preferredSampleRate && plan.channelCount == preferredChannelCount
+    }
+
+    private fun createPlan(sources: List<Source>, storyDurationUs: Long, sampleRate: Int, channelCount: Int,
+                           mode: PipedAudioResampler.Mode): Plan {
+        val conversions = ArrayList<Conversion>()
+        var cost = getSampleCount(storyDurationUs, sampleRate, channelCount) * OUTPUT_COST
+        for (source in sources) {
+            val conversionCost = getConversionCost(source, sampleRate, channelCount, mode)
+            if (source.sampleRate != sampleRate || source.channelCount != channelCount) {
+                conversions.add(Conversion(source, sampleRate, channelCount, conversionCost))
+                cost += conversionCost
+            }
+        }
+        return Plan(sampleRate, channelCount, conversions, cost)
+    }
+
+    /**
+     * Estimate the operations to convert a source to the given format in one step.
+     */
+    fun getConversionCost(source: Source, sampleRate: Int, channelCount: Int,
+                          mode: PipedAudioResampler.Mode = PipedAudioResampler.defaultMode): Long {
+        if (source.sampleRate != sampleRate) {
+            //Channels are converted while reading, so only the output channels are filtered.
+            val rateCost = if (mode == PipedAudioResampler.Mode.SINC) SINC_RATE_COST else LINEAR_RATE_COST
+            return getSampleCount(source.durationUs, sampleRate, channelCount) * rateCost +
+                    getSampleCount(source.durationUs, source.sampleRate, source.channelCount) * CHANNEL_COST
+        }
+        if (source.channelCount != channelCount) {
+            return getSampleCount(source.durationUs, source.sampleRate, source.channelCount) * CHANNEL_COST
+        }
+        return 0
+    }
+
+    private fun getSampleCount(durationUs: Long, sampleRate: Int, channelCount: Int): Long {
+        return durationUs * sampleRate / 1000000 * channelCount
+    }
+
+    /**
+     * Look up the formats of the narration and soundtrack audio of a story's pages in
+     * [MediaDurationIndex]. Files whose headers can't be read are left out.
+     */
+    fun getSources(context: Context, pages: Array<StoryPage>, audioTransitionUs: Long): List<Source> {
+        val headers = HashMap<String, Pair<Int, Int>?>()
+        fun getFormat(path: String): Pair<Int, Int>? {
+            if (!headers.containsKey(path)) {
+                val header = MediaDurationIndex.getFormat(context, path)
+                if (header == null) Log.w(TAG, "Could not read the format of $path")
+                headers[path] = if (header != null) Pair(header.sampleRate, header.channelCount) else null
+            }
+            return headers[path]
+        }
+
+        val sources = ArrayList<Source>()
+        for (page in pages) {
+            val narration = page.narrationAudioPath
+            if (narration != "") {
+                getFormat(narration)?.let {
+                    sources.add(Source(narration, it.first, it.second, page.audioDuration, true))
+                }
+            }
+            val soundtrack = page.soundtrackAudioPath
+            if (soundtrack != "") {
+                getFormat(soundtrack)?.let {
+                    sources.add(Source(soundtrack, it.first, it.second, page.getDuration(audioTransitionUs), false))
+                }
+            }
+        }
+        MediaDurationIndex.save(context)
+        return sources
+    }
+
+    /**
+     * Get the sample rates an encoder supports.
+     * @return the supported rates among the standard ones, or null if the encoder is not found.
+     */
+    fun getEncoderSampleRates(mime: String): IntArray? {
+        val caps = getAudioCapabilities(mime) ?: return null
+        return STANDARD_SAMPLE_RATES.filter { caps.isSampleRateSupported(it) }.toIntArray()
+    }
+
+    /**
+     * Get the most channels an encoder supports.
+     * @return the channel count, or 0 if the encoder is not found.
+     */
+    fun getEncoderMaxChannelCount(mime: String): Int {
+        return getAudioCapabilities(mime)?.maxInputChannelCount ?: 0
+    }
+
+    private fun getAudioCapabilities(mime: String): MediaCodecInfo.AudioCapabilities? {
+        val codecInfo = selectCodec(mime) ?: return null
+        return try {
+            codecInfo.getCapabilitiesForType(mime).audioCapabilities
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.media.MediaCodecInfo
 import android.media.MediaFormat
 import android.media.MediaMuxer
 import android.net.Uri
+import android.os.Build
 import android.os.Bundle
 import android.util.Log
 import android.widget.Toast
@@ -14,12 +15,16 @@ import com.google.firebase.crashlytics.FirebaseCrashlytics
 import org.sil.storyproducer.model.*
 import org.sil.storyproducer.R
 import org.sil.storyproducer.tools.file.copyToWorkspacePath
-import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.file.getChildOutputStream
+import org.sil.storyproducer.tools.media.MediaDurationIndex
 import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.selectCodec
 import org.sil.storyproducer.tools.media.graphics.KenBurnsEffect
 import org.sil.storyproducer.viewmodel.SlideViewModelBuilder
 import java.io.Closeable
 import java.io.File
+import java.io.OutputStreamWriter
+import java.io.Writer
 import java.text.SimpleDateFormat
 import java.util.*
 
@@ -41,13 +46,24 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     var mIncludeBackgroundMusic = true
     var mIncludePictures = true
     var mIncludeText = false
+    //Save the slide text as subtitle files next to the video, and as a text track in it.
+    var mIncludeSubtitles = false
     var mIncludeKBFX = true
     var mIncludeSong = false
+    //Reuse the cached video of unchanged slides, and the cached audio if none of it changed,
+    //from earlier exports.
+    var mIncrementalExport = false
+    //Mix the audio at the rate and channel count of the narrations, to avoid resampling them.
+    var mNegotiateAudio = true
 
     private var mLogProgress = false
 
     private var mStoryMaker: StoryMaker? = null
+    private var mPages: Array<StoryPage>? = null
     private var time3GPms = 0
+    //Whether the 3gp video is made by StoryMaker alongside the main video, rather than afterwards.
+    private var mMake3GPInline = false
+    private var mMaking3GPWithFFmpeg = false
     private var allVideosDone = false
 
     val isDone: Boolean
@@ -62,9 +78,11 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
                 return 0.0
             } else {
                 if (!mStoryMaker!!.isDone) {
-                    //Still making main video
-                    return mStoryMaker!!.progress / 2
-                }else {
+                    //Still making main video (and maybe the 3gp video with it)
+                    return if (mMake3GPInline) mStoryMaker!!.progress else mStoryMaker!!.progress / 2
+                } else if (mMake3GPInline && !mMaking3GPWithFFmpeg) {
+                    return 1.0
+                } else {
                     //making 3gp video
                     return 0.5 + time3GPms*1000.0/mStoryMaker!!.storyDuration / 2
                 }
@@ -77,10 +95,31 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         val videoFormat = if(mIncludePictures) {generateVideoFormat()} else {null}
         val audioFormat = generateAudioFormat()
         val pages = generatePages() ?: return
+        mPages = pages
 
         videoTempFile.delete()  //just in case it's still there.
         mStoryMaker = StoryMaker(context, videoTempFile, outputFormat, videoFormat, audioFormat,
                 pages, AUDIO_TRANSITION_US, SLIDE_CROSS_FADE_US)
+        mStoryMaker!!.isIncremental = mIncrementalExport
+        mStoryMaker!!.isAudioNegotiated = mNegotiateAudio
+        mStoryMaker!!.isTimedTextMuxed = mIncludeSubtitles
+
+        //Make the 3gp video in the same pass if this device can encode and mux it.
+        mMake3GPInline = mIncludePictures && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && selectCodec(VIDEO_3GP_MIME) != null
+        val video3gpFormat = if (mMake3GPInline) generate3GPVideoFormat() else null
+        if (video3gpFormat != null) {
+            video3gpFile.delete()  //just in case it's still there.
+            mStoryMaker!!.addRendition(video3gpFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_3GPP,
+                    video3gpFormat, audioFormat)
+        }
+
+        if (videoFormat != null) {
+            //Encode ranges of slides side by side where the device has the cores and codec
+            //instances for it; otherwise this is 1 and the story is made in one pass.
+            //Every segment encodes the 3gp rendition alongside the main video.
+            mStoryMaker!!.maxParallelEncoders = StoryMaker.getMaxParallelEncoders(listOfNotNull(videoFormat, video3gpFormat))
+        }
 
         watchProgress()
 
@@ -106,18 +145,75 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             params.putString("video_name", videoRelPath)
             Workspace.logEvent(context,"video_creation",params)
 
-            //Make 3gp video before you delete the temp video - it's made from that.
-            if(mIncludePictures) make3GPVideo()
+            if (mIncludeSubtitles) {
+                writeSubtitles(mPages!!)
+            }
+
+            if (mMake3GPInline && mStoryMaker!!.isRenditionSuccess(video3gpFile)) {
+                save3GPVideo()
+            } else if (mIncludePictures) {
+                //Make 3gp video before you delete the temp video - it's made from that.
+                mMaking3GPWithFFmpeg = true
+                make3GPVideo()
+            }
 
             videoTempFile.delete()
 
         } else {
             Log.w(TAG, "Deleting incomplete temporary video")
             videoTempFile.delete()
+            video3gpFile.delete()
         }
         allVideosDone = true
     }
 
+    /**
+     * Write the subtitle files of the video at [videoRelPath] from the current slides, without
+     * making the video again (e.g. after the story text was corrected). The other options must be
+     * those the video was made with. This reads every narration, so do not call it from the UI
+     * thread.
+     * @return whether both subtitle files were written.
+     */
+    fun writeSubtitles(): Boolean {
+        val pages = generatePages() ?: return false
+        return writeSubtitles(pages)
+    }
+
+    private fun writeSubtitles(pages: Array<StoryPage>): Boolean {
+        val cues = SubtitleWriter.getCues(pages, AUDIO_TRANSITION_US)
+        val name = File(videoRelPath).nameWithoutExtension
+        val vtt = writeSubtitleFile("$name$SUBTITLE_VTT_EXT", SUBTITLE_VTT_MIME) {
+            SubtitleWriter.writeWebVtt(cues, it)
+        }
+        val srt = writeSubtitleFile("$name$SUBTITLE_SRT_EXT", SUBTITLE_SRT_MIME) {
+            SubtitleWriter.writeSrt(cues, it)
+        }
+        return vtt && srt
+    }
+
+    private fun writeSubtitleFile(fileName: String, mimeType: String, write: (Writer) -> Unit): Boolean {
+        Log.v(TAG, "Writing subtitles to $fileName")
+        try {
+            val stream = getChildOutputStream(context, "$VIDEO_DIR/$fileName", mimeType, "wt") ?: return false
+            OutputStreamWriter(stream, Charsets.UTF_8).use { write(it) }
+            return true
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to write $fileName", e)
+            return false
+        }
+    }
+
+    private fun save3GPVideo() {
+        Log.v(TAG, "Moving completed 3gp video to " + video3gpPath)
+        copyToWorkspacePath(context,Uri.fromFile(video3gpFile),"$VIDEO_DIR/$video3gpPath")
+        Workspace.activeStory.addVideo(video3gpPath)
+        video3gpFile.delete()
+    }
+
+    /**
+     * Make the 3gp video from the main video with FFmpeg, for devices which cannot make it
+     * alongside the main video.
+     */
     private fun make3GPVideo() {
         Log.v(TAG, "Creating 3gp video" + video3gpPath)
         video3gpFile.delete()  //just in case it's still there.
@@ -206,15 +302,19 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             }
 
             val overlayText = SlideViewModelBuilder(slide).buildOverlayText(mIncludeText)
+            //Subtitles carry the text of every slide, whether or not it is drawn.
+            val subtitleText = SlideViewModelBuilder(slide).buildOverlayText(true)?.text ?: ""
 
             //error
             var duration = 5000000L  // 5 seconds, microseconds.
             if (audio != "") {
-                duration = MediaHelper.getAudioDuration(context, getStoryUri(audio)!!)
+                duration = MediaDurationIndex.getDuration(context, audio)
             }
 
-            pages.add(StoryPage(image, audio, duration, kbfx, overlayText, soundtrack,soundtrackVolume,slide.slideType))
+            pages.add(StoryPage(image, audio, duration, kbfx, overlayText, soundtrack,soundtrackVolume,slide.slideType,
+                    subtitleText))
         }
+        MediaDurationIndex.save(context)
 
         return pages.toTypedArray()
     }
@@ -267,6 +367,11 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         private val VIDEO_MP4_FRAMERATE = 30
         private val VIDEO_MP4_IFRAME_INTERVAL = 8           // 5 second between I-frames
 
+        private val SUBTITLE_VTT_EXT = ".vtt"
+        private val SUBTITLE_VTT_MIME = "text/vtt"
+        private val SUBTITLE_SRT_EXT = ".srt"
+        private val SUBTITLE_SRT_MIME = "application/x-subrip"
+
         private val VIDEO_3GP_EXT = ".3gp"
         private val VIDEO_3GP_CODEC = "h263"
         private val VIDEO_3GP_WIDTH = 176
@@ -274,6 +379,8 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         private val VIDEO_3GP_AUDIO = "aac"
         private val VIDEO_3GP_BITRATE = 1000000
         private val VIDEO_3GP_FRAMERATE = 15
+        private val VIDEO_3GP_MIME = MediaFormat.MIMETYPE_VIDEO_H263
+        private val VIDEO_3GP_IFRAME_INTERVAL = 8
 
         // parameters for the audio encoder
         private val AUDIO_MIME_TYPE = "audio/mp4a-latm" //MediaFormat.MIMETYPE_AUDIO_AAC;
@@ -296,6 +403,18 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             return videoFormat
         }
 
+        private fun generate3GPVideoFormat(): MediaFormat {
+            val videoFormat = MediaFormat.createVideoFormat(VIDEO_3GP_MIME,
+                    VIDEO_3GP_WIDTH, VIDEO_3GP_HEIGHT)
+
+            videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,VIDEO_MP4_COLOR)
+            videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_3GP_FRAMERATE)
+            videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_3GP_BITRATE)
+            videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_3GP_IFRAME_INTERVAL)
+
+            return videoFormat
+        }
+
         fun generateAudioFormat(): MediaFormat {
 
             val audioFormat = MediaHelper.createFormat(AUDIO_MIME_TYPE)
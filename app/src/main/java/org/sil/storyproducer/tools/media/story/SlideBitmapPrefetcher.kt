@@ -0,0 +1,190 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.Log
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.SlideService
+import org.sil.storyproducer.tools.BitmapScaler
+import org.sil.storyproducer.tools.file.ImageDerivativeCache
+import org.sil.storyproducer.tools.file.getDownsample
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.pipe.PipelineExecutor
+import java.io.Closeable
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+
+/**
+ * Decodes the images of upcoming slides on the background pool of [PipelineExecutor], so that the
+ * video encoder does not wait on image decoding at slide boundaries.
+ *
+ * Only the images of the current slide and the next few slides are kept; older images are
+ * dropped as the drawer moves forward. Images are shared between pages with the same path and
+ * Ken Burns effect.
+ *
+ * A page with a Ken Burns effect only has the part of its image the effect shows decoded, with
+ * the largest sample size at which its tightest crop still covers the video frame. Zoomed-in
+ * slides then stay sharp, and other slides hold and scale fewer pixels.
+ */
+internal class SlideBitmapPrefetcher(private val context: Context, private val mPages: Array<StoryPage>,
+                                     private val mWidth: Int, private val mHeight: Int,
+                                     private val mLookahead: Int = LOOKAHEAD_DEFAULT) : Closeable {
+
+    /**
+     * A decoded slide image along with the downsample factor it was decoded at.
+     * @param left left edge, in image pixels, of the region of the image that was decoded.
+     * @param top top edge, in image pixels, of the region of the image that was decoded.
+     */
+    class SlideBitmap(val bitmap: Bitmap?, val downsample: Int, val left: Int = 0, val top: Int = 0)
+
+    private val mBitmaps = HashMap<String, Future<SlideBitmap>>()
+    //Images already handed out, by page, so that drawing further frames of a slide is a lookup.
+    private val mSlots = arrayOfNulls<SlideBitmap>(mPages.size)
+
+    /** number of images that were decoded before they were needed */
+    var hits = 0
+        private set
+    /** number of images that were needed before their decode had started */
+    var misses = 0
+        private set
+    /** number of images whose decode had started but not finished when they were needed */
+    var lates = 0
+        private set
+
+    val statistics: String
+        get() = "hits $hits, misses $misses, lates $lates"
+
+    /**
+     * Move the window of kept images to start at the given slide, dropping images that are no
+     * longer needed and starting decodes of the slides after it.
+     * @param slideIndex index of the current slide (-1 before the first slide).
+     */
+    fun advanceTo(slideIndex: Int) {
+        val first = Math.max(slideIndex, 0)
+        val last = Math.min(slideIndex + mLookahead, mPages.size - 1)
+
+        for (i in mSlots.indices) {
+            if (i < first || i > last) mSlots[i] = null
+        }
+
+        val keep = HashSet<String>()
+        for (i in first..last) {
+            keep.add(getImageKey(mPages[i]))
+        }
+        val iterator = mBitmaps.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (!keep.contains(entry.key)) {
+                entry.value.cancel(false)
+                iterator.remove()
+            }
+        }
+
+        for (i in first..last) {
+            val key = getImageKey(mPages[i])
+            if (!mBitmaps.containsKey(key)) {
+                val page = mPages[i]
+                mBitmaps[key] = PipelineExecutor.submitBackground(Callable<SlideBitmap> { decode(page) })
+            }
+        }
+    }
+
+    /**
+     * Get the image of a page, waiting for its decode if it is still in progress.
+     * @param pageIndex index of the page in the story.
+     */
+    fun get(pageIndex: Int): SlideBitmap {
+        mSlots[pageIndex]?.let { return it }
+        val slideBitmap = getFromFuture(pageIndex)
+        mSlots[pageIndex] = slideBitmap
+        return slideBitmap
+    }
+
+    private fun getFromFuture(pageIndex: Int): SlideBitmap {
+        val page = mPages[pageIndex]
+        val path = page.imRelPath
+        val key = getImageKey(page)
+        val future = mBitmaps[key]
+        if (future == null || future.isCancelled) {
+            misses++
+            if (MediaHelper.DEBUG) Log.d(TAG, "miss for slide $pageIndex")
+            val slideBitmap = decode(page)
+            mBitmaps[key] = CompletedFuture(slideBitmap)
+            return slideBitmap
+        }
+
+        if (future.isDone) {
+            hits++
+        } else {
+            lates++
+            if (MediaHelper.DEBUG) Log.d(TAG, "late for slide $pageIndex")
+        }
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            Log.w(TAG, "Failed to decode slide image $path", e)
+            SlideBitmap(null, 1)
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while waiting for slide image $path", e)
+            SlideBitmap(null, 1)
+        }
+    }
+
+    private fun decode(page: StoryPage): SlideBitmap {
+        val path = page.imRelPath
+        val kenBurns = page.kenBurnsEffect
+        if (kenBurns != null) {
+            val ds = BitmapScaler.getCoverSampleSize(kenBurns.minCropWidth, kenBurns.minCropHeight, mWidth, mHeight)
+            val region = SlideService(context).getImageRegion(path, kenBurns.bounds, ds, Workspace.activeStory)
+            if (region != null) {
+                return SlideBitmap(region.first, ds, region.second.left, region.second.top)
+            }
+            //Fall back to decoding the whole image.
+        } else {
+            //Without an effect, only the image size matters (see BitmapScaler.centerCropRectF),
+            //and the export rendition is sharp enough for videos up to half its size.
+            val rendition = ImageDerivativeCache.Rendition.EXPORT
+            if (mWidth * 2 <= rendition.getWidth(context) && mHeight * 2 <= rendition.getHeight(context)) {
+                val bmp = ImageDerivativeCache.getImage(context, path, rendition, Workspace.activeStory)
+                if (bmp != null) return SlideBitmap(bmp, 1)
+            }
+        }
+
+        val ds = getDownsample(context, path, mWidth * 2, mHeight * 2)
+        return SlideBitmap(SlideService(context).getImage(path, ds, true, Workspace.activeStory), ds)
+    }
+
+    /**
+     * Pages with the same image are decoded differently if their Ken Burns effects differ.
+     */
+    private fun getImageKey(page: StoryPage): String {
+        val kenBurns = page.kenBurnsEffect ?: return page.imRelPath
+        return page.imRelPath + "#" + kenBurns.cacheKey
+    }
+
+    override fun close() {
+        for (future in mBitmaps.values) {
+            future.cancel(false)
+        }
+        mBitmaps.clear()
+        mSlots.fill(null)
+    }
+
+    /**
+     * Future for an image that was decoded in the calling thread.
+     */
+    private class CompletedFuture(private val mValue: SlideBitmap) : Future<SlideBitmap> {
+        override fun cancel(mayInterruptIfRunning: Boolean) = false
+        override fun isCancelled() = false
+        override fun isDone() = true
+        override fun get() = mValue
+        override fun get(timeout: Long, unit: java.util.concurrent.TimeUnit) = mValue
+    }
+
+    companion object {
+        private val TAG = "SlideBitmapPrefetcher"
+
+        private const val LOOKAHEAD_DEFAULT = 2
+    }
+}
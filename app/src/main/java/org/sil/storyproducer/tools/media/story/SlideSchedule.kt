@@ -0,0 +1,69 @@
+package org.sil.storyproducer.tools.media.story
+
+/**
+ * The times at which each slide of a story is drawn, computed once so that [StoryFrameDrawer]
+ * only reads arrays while drawing frames.
+ *
+ * A slide is visible from the middle of the audio transition before it (less half a cross-fade)
+ * until half a cross-fade after the audio transition after it; the next slide fades in over that
+ * last cross-fade. The first and last slides have no cross-fade on their outer side. Slides are
+ * numbered from -1 (before the first slide, while it fades in) to the number of slides (after the
+ * last one).
+ */
+internal class SlideSchedule(pages: Array<StoryPage>, audioTransitionUs: Long, crossFadeUs: Long) {
+
+    val slideCount = pages.size
+
+    //Indexed by slide + 1.
+    private val mVisibleStartUs = LongArray(slideCount + 2)
+    private val mCrossFadeStartUs = LongArray(slideCount + 2)
+    private val mCrossFadeEndUs = LongArray(slideCount + 2)
+    private val mVisibleDurationUs = LongArray(slideCount + 2)
+    private val mNextVisibleDurationUs = LongArray(slideCount + 2)
+
+    init {
+        var audioStart: Long = 0
+        var audioEnd: Long = 0
+        var nextAudioEnd: Long = 0
+        for (slide in -1..slideCount) {
+            if (slide in 0 until slideCount) {
+                audioStart = audioEnd
+                audioEnd += pages[slide].getDuration(audioTransitionUs)
+                if (slide + 1 < slideCount) {
+                    nextAudioEnd = audioEnd + pages[slide + 1].getDuration(audioTransitionUs)
+                }
+            }
+
+            val visibleStart = if (slide <= 0) audioStart else audioStart - crossFadeUs / 2
+            val crossFadeStart = if (slide >= slideCount - 1) audioEnd else audioEnd - crossFadeUs / 2
+            val crossFadeEnd = if (slide >= slideCount - 1) audioEnd else audioEnd + crossFadeUs / 2
+            val nextCrossFadeEnd = if (slide >= slideCount - 2) nextAudioEnd else nextAudioEnd + crossFadeUs / 2
+
+            val i = slide + 1
+            mVisibleStartUs[i] = visibleStart
+            mCrossFadeStartUs[i] = crossFadeStart
+            mCrossFadeEndUs[i] = crossFadeEnd
+            mVisibleDurationUs[i] = crossFadeEnd - visibleStart
+            mNextVisibleDurationUs[i] = nextCrossFadeEnd - crossFadeStart
+        }
+    }
+
+    /** time at which the slide starts to show */
+    fun getVisibleStartUs(slide: Int): Long = mVisibleStartUs[getIndex(slide)]
+
+    /** time at which the next slide starts fading in over the slide */
+    fun getCrossFadeStartUs(slide: Int): Long = mCrossFadeStartUs[getIndex(slide)]
+
+    /** time at which the next slide has fully faded in */
+    fun getCrossFadeEndUs(slide: Int): Long = mCrossFadeEndUs[getIndex(slide)]
+
+    /** how long the slide is visible */
+    fun getVisibleDurationUs(slide: Int): Long = mVisibleDurationUs[getIndex(slide)]
+
+    /** how long the next slide is visible, as seen while it fades in over the slide */
+    fun getNextVisibleDurationUs(slide: Int): Long = mNextVisibleDurationUs[getIndex(slide)]
+
+    private fun getIndex(slide: Int): Int {
+        return Math.min(Math.max(slide, -1), slideCount) + 1
+    }
+}
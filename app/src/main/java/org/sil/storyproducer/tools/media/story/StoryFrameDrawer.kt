@@ -1,23 +1,27 @@
 package org.sil.storyproducer.tools.media.story
 
 import android.content.Context
-import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
+import android.graphics.RectF
 import android.media.MediaFormat
 import android.util.Log
 import org.sil.storyproducer.model.SlideType
-import org.sil.storyproducer.model.Workspace
-import org.sil.storyproducer.service.SlideService
 import org.sil.storyproducer.tools.BitmapScaler
-import org.sil.storyproducer.tools.file.getDownsample
 import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.graphics.TextOverlay
 import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
 
 /**
  * This class knows how to draw the frames provided to it by [StoryMaker].
+ *
+ * A drawer may be limited to the slides from mFirstSlide up to (excluding) mEndSlide, producing
+ * one segment of the story's video. A segment starts once the cross-fade into its first slide has
+ * ended (see [getSlideStartUs]) and ends where the next segment starts; its presentation times
+ * start at 0.
  */
-internal class StoryFrameDrawer(private val context: Context, private val mVideoFormat: MediaFormat, private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, slideCrossFadeUs: Long) : PipedVideoSurfaceEncoder.Source {
+internal class StoryFrameDrawer(private val context: Context, private val mVideoFormat: MediaFormat, private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, slideCrossFadeUs: Long,
+                                private val mFirstSlide: Int = 0, private val mEndSlide: Int = mPages.size) : PipedVideoSurfaceEncoder.Source {
     private val xTime: Long //transition (cross fade) time
 
     private val mFrameRate: Int
@@ -28,44 +32,41 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
     private val mBitmapPaint: Paint
 
     private var slideIndex = -1 //starts at -1 to allow initial transition
-    private var slideAudioStart: Long = 0
-    private var slideAudioEnd: Long = 0
-    private var nSlideAudioEnd: Long = 0
+    private val mSchedule: SlideSchedule
     private val slideVisStart: Long
-        get() {return if(slideIndex<=0){slideAudioStart} else {slideAudioStart-xTime/2}}
+        get() {return mSchedule.getVisibleStartUs(slideIndex)}
     private val slideXStart: Long  //beginning of the next transition
-        get() {return if(slideIndex>=mPages.size-1){slideAudioEnd} else {slideAudioEnd-xTime/2}}
+        get() {return mSchedule.getCrossFadeStartUs(slideIndex)}
     private val slideXEnd: Long  //end of the next transition
-        get() {return if(slideIndex>=mPages.size-1){slideAudioEnd} else {slideAudioEnd+xTime/2}}
-    private val nSlideXEnd: Long  //end of the next transition
-        get() {return if(slideIndex>=mPages.size-2){nSlideAudioEnd} else {nSlideAudioEnd+xTime/2}}
+        get() {return mSchedule.getCrossFadeEndUs(slideIndex)}
     private val slideVisDur: Long // the visible duration of the slide
-        get() {return slideXEnd - slideVisStart}
+        get() {return mSchedule.getVisibleDurationUs(slideIndex)}
     private val nSlideVisDur: Long // the visible duration of the next slide
-        get() {return nSlideXEnd - slideXStart}
+        get() {return mSchedule.getNextVisibleDurationUs(slideIndex)}
+
+    private val mStartUs: Long //story time of the first frame
+    private val mEndUs: Long //story time at which the next segment starts
 
     private var mCurrentFrame = 0
+    private var mHoldUs: Long = 0
+    private var mSkippedFrames = 0
 
     private var mIsVideoDone = false
 
-    private var bitmaps: MutableMap<String,Bitmap?> = mutableMapOf()
-    private var downsamples: MutableMap<String,Int> = mutableMapOf()
+    private val mPrefetcher: SlideBitmapPrefetcher
 
-    init {
+    //Text of the slides being drawn, rendered once per slide (see TextOverlay.renderLayer).
+    private val mTextLayers = arrayOfNulls<TextOverlay.Layer>(mPages.size)
+    private val mIsTextRendered = BooleanArray(mPages.size)
+    private val mTextPaint = Paint()
 
-        var correctedSlideTransitionUs = slideCrossFadeUs
+    //Reused for every frame, so that drawing a frame allocates nothing.
+    private val mDrawRect = RectF()
 
-        //mSlideTransition must never exceed the length of slides in terms of audio.
-        //Pre-process pages and clip the slide transition time to fit in all cases.
-        for (page in mPages) {
-            val totalPageUs = page.audioDuration + mAudioTransitionUs
-            if (correctedSlideTransitionUs > totalPageUs) {
-                correctedSlideTransitionUs = totalPageUs
-                Log.d(TAG, "Corrected slide transition from $slideCrossFadeUs to $correctedSlideTransitionUs")
-            }
-        }
+    init {
 
-        xTime = correctedSlideTransitionUs
+        xTime = getCrossFadeUs(mPages, mAudioTransitionUs, slideCrossFadeUs)
+        mSchedule = SlideSchedule(mPages, mAudioTransitionUs, xTime)
 
         mFrameRate = mVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
 
@@ -76,6 +77,21 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         mBitmapPaint.isAntiAlias = true
         mBitmapPaint.isFilterBitmap = true
         mBitmapPaint.isDither = true
+
+        mPrefetcher = SlideBitmapPrefetcher(context, mPages, mWidth, mHeight)
+
+        if (mFirstSlide > 0) {
+            //Start as the previous slide hands over to the first one.
+            slideIndex = mFirstSlide
+            mStartUs = getSlideStartUs(mPages, mAudioTransitionUs, xTime, mFirstSlide)
+        } else {
+            mStartUs = 0
+        }
+        mEndUs = if (mEndSlide < mPages.size) {
+            getSlideStartUs(mPages, mAudioTransitionUs, xTime, mEndSlide)
+        } else {
+            Long.MAX_VALUE
+        }
     }
 
     override fun getMediaType(): MediaHelper.MediaType {
@@ -90,7 +106,13 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         return mIsVideoDone
     }
 
-    override fun setup() {}
+    override val holdUs: Long
+        get() = mHoldUs
+
+    override fun setup() {
+        //Start decoding the first slides while the rest of the pipeline is set up.
+        mPrefetcher.advanceTo(slideIndex)
+    }
 
     override fun fillCanvas(canv: Canvas): Long {
 
@@ -106,7 +128,7 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         // Visible time
 
         //Each time this is called, go forward 1/30 of a second.
-        val cTime = MediaHelper.getTimeFromIndex(mFrameRate.toLong(), mCurrentFrame)
+        val cTime = getFrameTime(mCurrentFrame)
 
         if(cTime > slideXEnd){
             //go to the next slide
@@ -115,12 +137,9 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
             if (slideIndex >= mPages.size) {
                 mIsVideoDone = true
             } else {
-                slideAudioStart = slideAudioEnd
-                slideAudioEnd += mPages[slideIndex].getDuration(mAudioTransitionUs)
-
-                if (slideIndex + 1 < mPages.size) {
-                    nSlideAudioEnd = slideAudioEnd + mPages[slideIndex + 1].getDuration(mAudioTransitionUs)
-                }
+                //Release the previous slide's image and start decoding the upcoming ones.
+                mPrefetcher.advanceTo(slideIndex)
+                releaseTextLayers(slideIndex)
             }
         }
 
@@ -135,17 +154,59 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
                     alpha)
         }
 
-        //clear image cache to save memory.
-        if(slideIndex >= 1 && slideIndex < mPages.size) {
-            if (bitmaps.containsKey(mPages[slideIndex - 1].imRelPath) &&
-                    mPages[slideIndex - 1].imRelPath != mPages[slideIndex].imRelPath) {
-                bitmaps.remove(mPages[slideIndex - 1].imRelPath)
+        //On a still slide, every frame until the next transition is identical to this one.
+        //Skip straight to the last of them, which is still drawn so that the stream keeps its
+        //timing (and the encoder can make it a sync frame).
+        var nextFrame = mCurrentFrame + 1
+        mHoldUs = 0
+        if (isStillAt(cTime)) {
+            val isLastSlide = slideIndex >= mPages.size - 1
+            val lastStillFrame = getLastFrameBefore(slideXStart, isLastSlide)
+            if (lastStillFrame > nextFrame) {
+                mSkippedFrames += lastStillFrame - nextFrame
+                nextFrame = lastStillFrame
+                mHoldUs = getFrameTime(nextFrame) - cTime
             }
         }
+        mCurrentFrame = nextFrame
 
-        mCurrentFrame++
+        //The next frame belongs to the next segment.
+        if (getFrameTime(mCurrentFrame) >= mEndUs) {
+            mIsVideoDone = true
+        }
+
+        return cTime - mStartUs
+    }
+
+    /**
+     * Get the story time of a frame of this drawer.
+     */
+    private fun getFrameTime(index: Int): Long {
+        return mStartUs + MediaHelper.getTimeFromIndex(mFrameRate.toLong(), index)
+    }
 
-        return cTime
+    /**
+     * Check whether the frame at the given time shows only the current slide, without motion.
+     */
+    private fun isStillAt(cTime: Long): Boolean {
+        if (mIsVideoDone || slideIndex < 0 || slideIndex >= mPages.size) return false
+        //The next slide starts fading in at slideXStart.
+        if (cTime >= slideXStart) return false
+        val kenBurns = mPages[slideIndex].kenBurnsEffect
+        return kenBurns == null || kenBurns.isStatic
+    }
+
+    /**
+     * Get the index of the last frame before (or, if inclusive, at) the given time.
+     */
+    private fun getLastFrameBefore(timeUs: Long, inclusive: Boolean): Int {
+        var index = ((timeUs - mStartUs) * mFrameRate / 1000000L).toInt() + 1
+        while (index > mCurrentFrame) {
+            val frameTime = getFrameTime(index)
+            if (frameTime < timeUs || (inclusive && frameTime == timeUs)) break
+            index--
+        }
+        return index
     }
 
     private fun drawFrame(canv: Canvas, pageIndex: Int, timeOffsetUs: Long, imgDurationUs: Long,
@@ -157,23 +218,23 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         }
 
         val page = mPages[pageIndex]
-        if(!bitmaps.containsKey(page.imRelPath)){
-            val ds = getDownsample(context,page.imRelPath,mWidth*2, mHeight*2)
-            downsamples[page.imRelPath] = ds
-            bitmaps[page.imRelPath] = SlideService(context).getImage(page.imRelPath, ds, true, Workspace.activeStory)
-        }
-        val bitmap = bitmaps[page.imRelPath]
-        val downSample = downsamples[page.imRelPath]!!
+        val slideBitmap = mPrefetcher.get(pageIndex)
+        val bitmap = slideBitmap.bitmap
+        val downSample = slideBitmap.downsample
 
         if (bitmap != null) {
             val position = (timeOffsetUs / imgDurationUs.toDouble()).toFloat()
 
             //If ken burns, then interpolate
-            val drawRect = page.kenBurnsEffect?.
-                    revInterpolate(position,mWidth,mHeight,bitmap.width,bitmap.height,downSample*1f) ?:
+            val kenBurns = page.kenBurnsEffect
+            val drawRect = if (kenBurns != null) {
+                kenBurns.revInterpolate(position, mWidth, mHeight, bitmap.width, bitmap.height,
+                        downSample * 1f, slideBitmap.left, slideBitmap.top, mDrawRect)
+            } else {
                 //else, fit to crop the height and width to show everything.
                 BitmapScaler.centerCropRectF(
-                        bitmap.height, bitmap.width, mHeight, mWidth)
+                        bitmap.height, bitmap.width, mHeight, mWidth, mDrawRect)
+            }
 
             mBitmapPaint.alpha = (alpha * 255).toInt()
 
@@ -183,23 +244,79 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
             canv.drawARGB((alpha * 255).toInt(), 0, 0, 0)
         }
 
-        page.textOverlay.let{
+        getTextLayer(pageIndex)?.draw(canv, alpha, mTextPaint)
+    }
+
+    private fun getTextLayer(pageIndex: Int): TextOverlay.Layer? {
+        if (!mIsTextRendered[pageIndex]) {
+            val page = mPages[pageIndex]
             // 2/22/2022 - DKH, Issue 456: Add grey rectangle to backdrop text "sub titles"
             // If this is a NUMBEREDPAGE type slide, draw a background behind the text so
             // that it can be clearly read in the video that we are creating
             // Other pages (eg: NONE, FRONTCOVER, LOCALSONG, LOCALCREDITS, COPYRIGHT, ENDPAGE),
             // do not need a background for the text
-            if (page.sType == SlideType.NUMBEREDPAGE) it?.drawTextBG(true)
-            it?.setAlpha(alpha)
-            it?.draw(canv)
+            mTextLayers[pageIndex] = page.textOverlay?.renderLayer(mWidth, mHeight,
+                    page.sType == SlideType.NUMBEREDPAGE)
+            mIsTextRendered[pageIndex] = true
+        }
+        return mTextLayers[pageIndex]
+    }
+
+    /**
+     * Drop the text layers of slides before the given one.
+     */
+    private fun releaseTextLayers(firstSlide: Int) {
+        for (i in 0 until Math.min(firstSlide, mTextLayers.size)) {
+            mTextLayers[i]?.recycle()
+            mTextLayers[i] = null
         }
     }
 
     override fun close() {
-        bitmaps.clear()
+        if (MediaHelper.DEBUG) Log.d(TAG, "Slide prefetch: " + mPrefetcher.statistics
+                + "; skipped $mSkippedFrames still frames of $mCurrentFrame")
+        mPrefetcher.close()
+        releaseTextLayers(Int.MAX_VALUE)
     }
 
     companion object {
         private val TAG = "StoryFrameDrawer"
+
+        /**
+         * Get the slide cross-fade duration actually used for a story: the requested duration,
+         * clipped so that it never exceeds the length of a slide.
+         */
+        fun getCrossFadeUs(pages: Array<StoryPage>, audioTransitionUs: Long, slideCrossFadeUs: Long): Long {
+            var correctedSlideTransitionUs = slideCrossFadeUs
+
+            //mSlideTransition must never exceed the length of slides in terms of audio.
+            //Pre-process pages and clip the slide transition time to fit in all cases.
+            for (page in pages) {
+                val totalPageUs = page.audioDuration + audioTransitionUs
+                if (correctedSlideTransitionUs > totalPageUs) {
+                    correctedSlideTransitionUs = totalPageUs
+                    Log.d(TAG, "Corrected slide transition from $slideCrossFadeUs to $correctedSlideTransitionUs")
+                }
+            }
+
+            return correctedSlideTransitionUs
+        }
+
+        /**
+         * Get the story time at which the cross-fade into a slide ends, i.e. the first time at
+         * which only that slide is drawn (see [SlideSchedule.getCrossFadeEndUs] of the slide
+         * before it). This is where a segment starting with that slide begins, so that the
+         * whole cross-fade falls in the segment before it. For the first slide this is 0, and
+         * past the last slide it is the end of the story.
+         * @param crossFadeUs cross-fade duration from [getCrossFadeUs].
+         */
+        fun getSlideStartUs(pages: Array<StoryPage>, audioTransitionUs: Long, crossFadeUs: Long, slide: Int): Long {
+            if (slide <= 0) return 0
+            var startUs: Long = 0
+            for (i in 0 until slide) {
+                startUs += pages[i].getDuration(audioTransitionUs)
+            }
+            return if (slide <= pages.size - 1) startUs + crossFadeUs / 2 else startUs
+        }
     }
 }
@@ -2,16 +2,36 @@ package org.sil.storyproducer.tools.media.story
 
 import android.content.Context
 import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.os.Build
 import android.util.Log
 
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.pipe.ByteBufferPool
+import org.sil.storyproducer.tools.media.pipe.MediaCodecPool
 import org.sil.storyproducer.tools.media.pipe.PipedAudioConcatenator
-import org.sil.storyproducer.tools.media.pipe.PipedAudioMixer
+import org.sil.storyproducer.tools.media.pipe.PipedAudioFloatMixer
+import org.sil.storyproducer.tools.media.pipe.PipedMediaByteBufferSource
+import org.sil.storyproducer.tools.media.pipe.PipedMediaByteBufferTee
 import org.sil.storyproducer.tools.media.pipe.PipedMediaEncoder
+import org.sil.storyproducer.tools.media.pipe.PipedMediaExtractor
 import org.sil.storyproducer.tools.media.pipe.PipedMediaMuxer
+import org.sil.storyproducer.tools.media.pipe.PipedMediaSegmentConcatenator
+import org.sil.storyproducer.tools.media.pipe.PipedVideoFrameTee
 import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
+import org.sil.storyproducer.tools.media.pipe.PipelineExecutor
+import org.sil.storyproducer.tools.media.pipe.SourceUnacceptableException
+import org.sil.storyproducer.tools.selectCodec
 
 import java.io.Closeable
 import java.io.File
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * StoryMaker handles all the brunt work of constructing a media pipeline for a given set of StoryPages.
@@ -32,12 +52,64 @@ class StoryMaker
 (private val context: Context, private val mOutputFile: File, private val mOutputFormat: Int, private val mVideoFormat: MediaFormat?, private val mAudioFormat: MediaFormat,
  private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, private val mSlideCrossFadeUs: Long) : Closeable {
 
-    private val mSampleRate: Int
-    private val mChannelCount: Int
+    private var mSampleRate: Int
+    private var mChannelCount: Int
 
     val storyDuration: Long
 
-    private var mMuxer: PipedMediaMuxer? = null
+    //The main output first, then any renditions.
+    private val mOutputs = ArrayList<Output>()
+
+    //Muxers now running; several when segments are encoded in parallel.
+    private val mMuxers = ArrayList<PipedMediaMuxer>()
+    @Volatile
+    private var mIsClosed = false
+
+    /**
+     * Whether to export incrementally: the video of each slide is encoded as a separate segment
+     * and kept in [StorySegmentCache], so a later export only encodes the slides which changed.
+     * The encoded audio of the story is kept there too, and reused while no audio input changes.
+     * Falls back to a regular export if the segments cannot be used.
+     */
+    var isIncremental = false
+
+    /**
+     * Maximum number of video segments to encode at the same time. If greater than 1, the story's
+     * video is split at slide boundaries into ranges which are encoded in parallel and then joined,
+     * as in an incremental export. See [getMaxParallelEncoders].
+     */
+    var maxParallelEncoders = 1
+
+    /**
+     * Whether to choose the sample rate and channel count of the audio from the story's sources
+     * (see [AudioFormatNegotiator]) instead of using those of the given audio format. The
+     * formats of all outputs are updated when the story is churned.
+     */
+    var isAudioNegotiated = false
+
+    /**
+     * Number of upcoming narration and soundtrack files to decode ahead of time on background
+     * threads (see [PipedAudioConcatenator.setLookahead]), or 0 to decode each when it starts.
+     */
+    var audioLookahead = AUDIO_LOOKAHEAD_DEFAULT
+
+    /**
+     * Whether to mux the pages' subtitle text into MPEG-4 outputs as a timed text track (see
+     * [SubtitleWriter]), where the device's muxer supports one.
+     */
+    var isTimedTextMuxed = false
+
+    /**
+     * The negotiated audio format and its expected cost, once [churn] has started.
+     */
+    var audioPlan: AudioFormatNegotiator.Plan? = null
+        private set
+
+    //Progress across all muxing passes, in microseconds of media.
+    private val mWorkDoneUs = AtomicLong()
+    @Volatile
+    private var mTotalWorkUs: Long = 0
+
     var isDone = false
         private set
 
@@ -48,21 +120,24 @@ class StoryMaker
         get() {
             if (isDone) {
                 return 1.0
-            } else if (mMuxer != null) {
-                val audioProgress = mMuxer!!.audioProgress
-                val videoProgress = mMuxer!!.videoProgress
-
-                val minProgress = Math.min(audioProgress, videoProgress)
+            }
+            var minProgress: Long = 0
+            synchronized(mMuxers) {
+                for (muxer in mMuxers) {
+                    val audioProgress = muxer.audioProgress
+                    val videoProgress = muxer.videoProgress
 
-                return minProgress / storyDuration.toDouble()
+                    minProgress += Math.min(audioProgress, videoProgress)
+                }
             }
-            return 0.0
+            return (mWorkDoneUs.get() + minProgress) / mTotalWorkUs.toDouble()
         }
 
     val audioProgress: Double
         get() {
-            if (mMuxer != null) {
-                val audioProgress = mMuxer!!.audioProgress
+            val muxer = synchronized(mMuxers) { mMuxers.firstOrNull() }
+            if (muxer != null) {
+                val audioProgress = muxer.audioProgress
                 return audioProgress / storyDuration.toDouble()
             }
             return 0.0
@@ -70,8 +145,9 @@ class StoryMaker
 
     val videoProgress: Double
         get() {
-            if (mMuxer != null) {
-                val videoProgress = mMuxer!!.videoProgress
+            val muxer = synchronized(mMuxers) { mMuxers.firstOrNull() }
+            if (muxer != null) {
+                val videoProgress = muxer.videoProgress
                 return videoProgress / storyDuration.toDouble()
             }
             return 0.0
@@ -83,6 +159,35 @@ class StoryMaker
         mChannelCount = mAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
 
         storyDuration = getStoryDuration(mPages, mAudioTransitionUs)
+        mTotalWorkUs = storyDuration
+
+        mOutputs.add(Output(mOutputFile, mOutputFormat, mVideoFormat, mAudioFormat))
+    }
+
+    /**
+     * Also make another rendition of the story, in the same pass as the main output. Frames are
+     * drawn once and scaled to the rendition's video size, and the mixed audio is encoded once
+     * more (or shared, if the audio formats match).
+     * @param outputFile output video file of the rendition.
+     * @param outputFormat the format of the rendition's media file
+     * (from [android.media.MediaMuxer.OutputFormat]).
+     * @param videoFormat video format of the rendition; ignored if the main output has no video.
+     * @param audioFormat audio format of the rendition, with the same sample rate and channel
+     * count as the main output.
+     */
+    fun addRendition(outputFile: File, outputFormat: Int, videoFormat: MediaFormat?, audioFormat: MediaFormat) {
+        require(audioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) == mSampleRate
+                && audioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == mChannelCount) {
+            "Rendition audio must have the sample rate and channel count of the main output"
+        }
+        mOutputs.add(Output(outputFile, outputFormat, if (mVideoFormat != null) videoFormat else null, audioFormat))
+    }
+
+    /**
+     * Check whether a rendition added with [addRendition] was made completely.
+     */
+    fun isRenditionSuccess(outputFile: File): Boolean {
+        return mOutputs.drop(1).any { it.file == outputFile && it.isSuccess }
     }
 
     /**
@@ -94,111 +199,649 @@ class StoryMaker
             Log.e(TAG, "StoryMaker already finished!")
         }
 
-        val soundtrackConcatenator = PipedAudioConcatenator(context,0, mSampleRate, mChannelCount)
-        soundtrackConcatenator.setFadeOut(SOUNDTRACK_FADE_OUT_US)
-        val narrationConcatenator = PipedAudioConcatenator(context, mAudioTransitionUs, mSampleRate, mChannelCount)
-        val audioMixer = PipedAudioMixer()
-        val audioEncoder = PipedMediaEncoder(mAudioFormat)
-        var videoDrawer: StoryFrameDrawer? = null
-        var videoEncoder: PipedVideoSurfaceEncoder? = null
-        if (mVideoFormat != null) {
-            videoDrawer = StoryFrameDrawer(context, mVideoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs)
-            videoEncoder = PipedVideoSurfaceEncoder()
+        if (isAudioNegotiated && audioPlan == null) {
+            negotiateAudioFormat()
         }
-        mMuxer = PipedMediaMuxer(mOutputFile.absolutePath, mOutputFormat)
 
+        var success = false
+        if ((isIncremental || maxParallelEncoders > 1) && mVideoFormat != null) {
+            success = churnSegments(mVideoFormat)
+            if (!success && !mIsClosed) {
+                Log.w(TAG, "Segmented export failed; exporting the whole story in one pass instead.")
+                mWorkDoneUs.set(0)
+                mTotalWorkUs = storyDuration
+            }
+        }
+        if (!success && !mIsClosed) {
+            success = churnStory()
+        }
+        isSuccess = success
+        if (isSuccess) Log.i(TAG, "Video saved to $mOutputFile")
+        if (MediaHelper.DEBUG) Log.d(TAG, "Buffer pool: " + ByteBufferPool.getSharedStatistics())
+        MediaCodecPool.clear()
+
+        isDone = true
+
+        return isSuccess
+    }
+
+    /**
+     * Choose the raw audio format from the story's sources, before any audio component is made.
+     */
+    private fun negotiateAudioFormat() {
+        //All outputs are encoded from the same raw audio, so it must suit every encoder.
+        var sampleRates: IntArray? = null
+        var maxChannelCount = Int.MAX_VALUE
+        for (mime in mOutputs.mapNotNull { it.audioFormat.getString(MediaFormat.KEY_MIME) }.distinct()) {
+            val rates = AudioFormatNegotiator.getEncoderSampleRates(mime) ?: return
+            sampleRates = sampleRates?.intersect(rates.asIterable())?.toIntArray() ?: rates
+            maxChannelCount = Math.min(maxChannelCount, AudioFormatNegotiator.getEncoderMaxChannelCount(mime))
+        }
+        if (sampleRates == null || maxChannelCount <= 0) return
+
+        val sources = AudioFormatNegotiator.getSources(context, mPages, mAudioTransitionUs)
+        val plan = AudioFormatNegotiator.negotiate(sources, storyDuration, sampleRates, maxChannelCount,
+                mSampleRate, mChannelCount)
+        Log.i(TAG, "Audio plan: $plan")
+        audioPlan = plan
+
+        mSampleRate = plan.sampleRate
+        mChannelCount = plan.channelCount
+        for (output in mOutputs) {
+            output.audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
+            output.audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount)
+        }
+    }
+
+    /**
+     * Make the whole story in one pass.
+     */
+    private fun churnStory(): Boolean {
+        val components = ArrayList<Closeable>()
         try {
-            mMuxer!!.addSource(audioEncoder)
-
-            var soundtrackDuration: Long = 0
-            var lastSoundtrack = ""
-            var soundtrackVolume: Float
-            var lastSoundtrackVolume = 0.0f
-            for (page in mPages) {
-                val narration = page.narrationAudioPath
-                val audioDuration = page.audioDuration
-
-                val soundtrack = page.soundtrackAudioPath
-                val pageDuration = page.getDuration(mAudioTransitionUs)
-                soundtrackVolume = page.soundtrackVolume
-
-                //If we encounter a new soundtrack, stop the current one and start the new one.
-                //Otherwise, continue playing last soundtrack.
-                if (soundtrack != lastSoundtrack) {
-                    //add the accumulated "last soundtrack" to the concatenator
-                    if (lastSoundtrack != "") {
-                        soundtrackConcatenator.addSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
-                    } else if (soundtrackDuration > 0) {
-                        //Else, we need to add blank time.
-                        soundtrackConcatenator.addSource(null, soundtrackDuration, lastSoundtrackVolume)
+            val audioSources = createAudioSources(components)
+            var videoSources: List<PipedMediaByteBufferSource?> = mOutputs.map { null }
+            if (mVideoFormat != null) {
+                val videoDrawer = StoryFrameDrawer(context, mVideoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs)
+                components.add(videoDrawer)
+                videoSources = createVideoEncoders(videoDrawer, mOutputs.map { it.videoFormat }, components)
+            }
+            val results = mux(mOutputs.map { Pair(it.file, it.format) }, audioSources, videoSources, true)
+            for (i in mOutputs.indices) {
+                mOutputs[i].isSuccess = results[i]
+            }
+            return results[0]
+        } catch (e: Exception) {
+            Log.e(TAG, "Error in story making", e)
+            return false
+        } finally {
+            //Everything should be closed automatically, but close everything just in case.
+            closeAll(components)
+        }
+    }
+
+    /**
+     * Make the story from video segments which are joined without re-encoding them, while the
+     * audio of the whole story is encoded alongside.
+     *
+     * In an incremental export, there is one segment per slide, and only the segments missing
+     * from [StorySegmentCache] are encoded. The audio is taken from the cache as well, or encoded
+     * into it while the video segments are encoded, so the segments are joined with the audio
+     * without encoding anything. Otherwise, the story is split into one range of slides
+     * per parallel encoder, encoded into temporary files. Either way, up to [maxParallelEncoders]
+     * segments are encoded at the same time.
+     */
+    private fun churnSegments(videoFormat: MediaFormat): Boolean {
+        val crossFadeUs = StoryFrameDrawer.getCrossFadeUs(mPages, mAudioTransitionUs, mSlideCrossFadeUs)
+        //Every output with video has its own segments.
+        val videoOutputs = mOutputs.filter { it.videoFormat != null }
+        val segments = ArrayList<Segment>()
+        val jobs = ArrayList<Segment>()
+        val audioPartials = ArrayList<File>()
+        var audioJob: Future<Boolean>? = null
+
+        try {
+            if (isIncremental) {
+                for (i in mPages.indices) {
+                    val keys = ArrayList<String>()
+                    val files = ArrayList<File?>()
+                    for (output in videoOutputs) {
+                        val key = StorySegmentCache.getSegmentKey(context, output.videoFormat!!, mPages, i, mAudioTransitionUs, crossFadeUs)
+                        if (key == null) {
+                            Log.w(TAG, "Slide $i cannot be cached.")
+                            return false
+                        }
+                        keys.add(key)
+                        files.add(StorySegmentCache.lookup(context, key))
+                    }
+                    val segment = Segment(i, i + 1, keys)
+                    if (files.all { it != null }) {
+                        segment.files.addAll(files.map { it!! })
+                    } else {
+                        for (key in keys) {
+                            segment.files.add(StorySegmentCache.createPartial(context, key) ?: return false)
+                        }
+                        jobs.add(segment)
                     }
+                    segments.add(segment)
+                }
+            } else {
+                for (range in splitSlides(maxParallelEncoders, crossFadeUs)) {
+                    val segment = Segment(range.first, range.last + 1, null)
+                    for (output in videoOutputs) {
+                        segment.files.add(File.createTempFile("segment", ".mp4", context.cacheDir))
+                    }
+                    jobs.add(segment)
+                    segments.add(segment)
+                }
+            }
 
-                    //Start the next soundtrack accumulator
-                    lastSoundtrack = soundtrack
-                    lastSoundtrackVolume = soundtrackVolume
-                    //The next soundtrack will at least play for "page duration"
-                    soundtrackDuration = pageDuration
+            //The cached audio of each audio encoder, or null to encode the audio while joining.
+            var audioFiles: List<File>? = null
+            val audioEncoderFormats = getAudioEncoderFormats().first
+            val audioKeys = if (isIncremental) {
+                audioEncoderFormats.map {
+                    StorySegmentCache.getAudioKey(context, it, mPages, mAudioTransitionUs, SOUNDTRACK_FADE_OUT_US)
+                }
+            } else {
+                null
+            }
+            if (audioKeys != null && audioKeys.all { it != null }) {
+                val entries = audioKeys.map { StorySegmentCache.lookup(context, it!!) }
+                if (entries.all { it != null }) {
+                    audioFiles = entries.map { it!! }
                 } else {
-                    //each slide, add the narration length + transition time to the soundtrack audio.
-                    soundtrackDuration += pageDuration
+                    for (key in audioKeys) {
+                        audioPartials.add(StorySegmentCache.createPartial(context, key!!) ?: return false)
+                    }
+                    audioJob = PipelineExecutor.submitBackground(Callable { encodeAudio(audioPartials, audioEncoderFormats) })
+                }
+            } else if (isIncremental) {
+                Log.w(TAG, "The story's audio cannot be cached.")
+            }
+
+            mTotalWorkUs = jobs.map { getSegmentDuration(it, crossFadeUs) }.sum() + storyDuration +
+                    (if (audioJob != null) storyDuration else 0L)
+            val isVideoEncoded = encodeSegments(jobs, videoFormat, videoOutputs, crossFadeUs)
+            //Wait for the audio either way, so that its files are not removed while written.
+            val isAudioEncoded = audioJob != null && awaitAudio(audioJob)
+            audioJob = null
+            if (isAudioEncoded) {
+                audioFiles = audioKeys!!.indices.map { StorySegmentCache.commit(audioPartials[it], audioKeys[it]!!) }
+                Log.i(TAG, "Encoded the story's audio")
+            }
+            if (!isVideoEncoded) return false
+            Log.i(TAG, "Encoded ${jobs.size} of ${segments.size} video segments")
+
+            for (segment in jobs) {
+                val keys = segment.keys ?: continue
+                for (o in keys.indices) {
+                    segment.files[o] = StorySegmentCache.commit(segment.files[o], keys[o])
                 }
+            }
 
-                narrationConcatenator.addSourcePath(narration, audioDuration)
+            return joinSegments(segments, videoOutputs, crossFadeUs, audioFiles)
+        } catch (e: IOException) {
+            Log.e(TAG, "Error preparing video segments", e)
+            return false
+        } finally {
+            if (audioJob != null) awaitAudio(audioJob)
+            //Committed audio entries have been moved.
+            for (file in audioPartials) {
+                file.delete()
+            }
+            //Delete temporary and unfinished segments; committed cache entries have been moved.
+            for (segment in jobs) {
+                for (file in segment.files) {
+                    if (segment.keys == null || !file.name.endsWith(".mp4")) {
+                        file.delete()
+                    }
+                }
             }
+        }
+    }
 
-            //Add last soundtrack
-            if (lastSoundtrack != "") {
-                soundtrackConcatenator.addLoopingSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+    /**
+     * Join the segments of every output and mux them with the story's audio.
+     * @param audioFiles the encoded audio of each audio encoder (see [getAudioEncoderFormats]),
+     * or null to encode the audio now.
+     */
+    private fun joinSegments(segments: List<Segment>, videoOutputs: List<Output>, crossFadeUs: Long,
+                             audioFiles: List<File>?): Boolean {
+        val components = ArrayList<Closeable>()
+        try {
+            val videoSources = ArrayList<PipedMediaByteBufferSource?>()
+            for (output in mOutputs) {
+                val o = videoOutputs.indexOf(output)
+                if (o < 0) {
+                    videoSources.add(null)
+                    continue
+                }
+                val videoConcatenator = PipedMediaSegmentConcatenator(MediaHelper.MediaType.VIDEO)
+                components.add(videoConcatenator)
+                for (segment in segments) {
+                    videoConcatenator.addSegment(segment.files[o],
+                            StoryFrameDrawer.getSlideStartUs(mPages, mAudioTransitionUs, crossFadeUs, segment.firstSlide))
+                }
+                //Check that the segments fit together before anything is written.
+                videoConcatenator.setup()
+                videoSources.add(videoConcatenator)
             }
 
-            //Add soundtrack only if there is one!
-            if(soundtrackConcatenator.anyNonNull()) {
-                audioEncoder.addSource(audioMixer)
-                audioMixer.addSource(narrationConcatenator)
-                audioMixer.addSource(soundtrackConcatenator)
+            val audioSources = if (audioFiles != null) {
+                val encoderOfOutput = getAudioEncoderFormats().second
+                mOutputs.indices.map {
+                    val audioExtractor = PipedMediaExtractor(audioFiles[encoderOfOutput[it]], MediaHelper.MediaType.AUDIO)
+                    components.add(audioExtractor)
+                    audioExtractor
+                }
             } else {
-                //no mixing needed - bypass.
-                audioEncoder.addSource(narrationConcatenator)
+                createAudioSources(components)
             }
+            val results = mux(mOutputs.map { Pair(it.file, it.format) }, audioSources, videoSources, true)
+            for (i in mOutputs.indices) {
+                mOutputs[i].isSuccess = results[i]
+            }
+            return results[0]
+        } catch (e: Exception) {
+            Log.e(TAG, "Error joining video segments", e)
+            return false
+        } finally {
+            closeAll(components)
+        }
+    }
 
-            if (mVideoFormat != null) {
-                mMuxer!!.addSource(videoEncoder!!)
+    /**
+     * Encode the given segments, several at a time if [maxParallelEncoders] allows.
+     * @return whether every segment was encoded.
+     */
+    private fun encodeSegments(jobs: List<Segment>, videoFormat: MediaFormat, videoOutputs: List<Output>, crossFadeUs: Long): Boolean {
+        val threadCount = Math.min(maxParallelEncoders, jobs.size)
+        if (threadCount <= 1) {
+            for (segment in jobs) {
+                if (mIsClosed || !encodeSegment(segment, videoFormat, videoOutputs)) return false
+                mWorkDoneUs.addAndGet(getSegmentDuration(segment, crossFadeUs))
+            }
+            return true
+        }
 
-                videoEncoder.addSource(videoDrawer!!)
+        //Each worker encodes segments until none are left. The workers wait on muxers, whose tracks
+        //run on PipelineExecutor, so they go to its background pool (or run in this thread).
+        val pending = ConcurrentLinkedQueue(jobs)
+        //Once a segment fails, the segments not yet started are skipped.
+        val failed = AtomicBoolean()
+        val worker = Callable {
+            while (!mIsClosed && !failed.get()) {
+                val segment = pending.poll() ?: break
+                if (encodeSegment(segment, videoFormat, videoOutputs)) {
+                    mWorkDoneUs.addAndGet(getSegmentDuration(segment, crossFadeUs))
+                } else {
+                    failed.set(true)
+                }
             }
-            isSuccess = mMuxer!!.crunch()
-            Log.i(TAG, "Video saved to $mOutputFile")
+        }
+        val futures = (0 until threadCount).map { PipelineExecutor.submitBackground(worker) }
+        try {
+            //Wait for every worker, so no segment is still being written when the files are removed.
+            for (future in futures) {
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    Log.e(TAG, "Error encoding video segment", e)
+                    failed.set(true)
+                }
+            }
+            return !failed.get() && pending.isEmpty()
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while encoding video segments", e)
+            return false
+        }
+    }
+
+    /**
+     * Encode the video of a range of slides into a file for each of the given outputs.
+     */
+    private fun encodeSegment(segment: Segment, videoFormat: MediaFormat, outputs: List<Output>): Boolean {
+        val components = ArrayList<Closeable>()
+        try {
+            val videoDrawer = StoryFrameDrawer(context, videoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs,
+                    segment.firstSlide, segment.endSlide)
+            components.add(videoDrawer)
+            val videoSources = createVideoEncoders(videoDrawer, outputs.map { it.videoFormat }, components)
+            val results = mux(segment.files.map { Pair(it, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) },
+                    segment.files.map { null }, videoSources)
+            return results.all { it }
         } catch (e: Exception) {
-            Log.e(TAG, "Error in story making", e)
+            Log.e(TAG, "Error encoding segment of slides ${segment.firstSlide} to ${segment.endSlide - 1}", e)
+            return false
         } finally {
-            //Everything should be closed automatically, but close everything just in case.
-            soundtrackConcatenator.close()
-            narrationConcatenator.close()
-            audioMixer.close()
-            audioEncoder.close()
-            if (mVideoFormat != null) {
-                videoDrawer!!.close()
-                videoEncoder!!.close()
+            closeAll(components)
+        }
+    }
+
+    /**
+     * Encode the story's audio into an audio-only file for each of the given encoder formats.
+     * @return whether every file was finished.
+     */
+    private fun encodeAudio(files: List<File>, formats: List<MediaFormat>): Boolean {
+        val components = ArrayList<Closeable>()
+        try {
+            val rawSources = split(createAudioSource(components), formats.size, components)
+            val audioEncoders = formats.indices.map {
+                val audioEncoder = PipedMediaEncoder(formats[it])
+                components.add(audioEncoder)
+                audioEncoder.addSource(rawSources[it])
+                audioEncoder
             }
-            mMuxer!!.close()
+            val results = mux(files.map { Pair(it, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) },
+                    audioEncoders, files.map { null })
+            if (!results.all { it }) return false
+            mWorkDoneUs.addAndGet(storyDuration)
+            return true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error encoding the story's audio", e)
+            return false
+        } finally {
+            closeAll(components)
         }
+    }
 
-        isDone = true
+    private fun awaitAudio(audioJob: Future<Boolean>): Boolean {
+        return try {
+            audioJob.get()
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Error encoding the story's audio", e)
+            false
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted while encoding the story's audio", e)
+            false
+        }
+    }
 
-        return isSuccess
+    /**
+     * Split the slides into contiguous ranges of about the same duration.
+     */
+    private fun splitSlides(count: Int, crossFadeUs: Long): List<IntRange> {
+        val ranges = ArrayList<IntRange>()
+        val rangeCount = Math.min(count, mPages.size)
+        var first = 0
+        for (i in 1 until mPages.size) {
+            val targetUs = storyDuration * (ranges.size + 1) / rangeCount
+            if (ranges.size < rangeCount - 1
+                    && StoryFrameDrawer.getSlideStartUs(mPages, mAudioTransitionUs, crossFadeUs, i) >= targetUs) {
+                ranges.add(first until i)
+                first = i
+            }
+        }
+        ranges.add(first until mPages.size)
+        return ranges
+    }
+
+    private fun getSegmentDuration(segment: Segment, crossFadeUs: Long): Long {
+        val endUs = if (segment.endSlide < mPages.size) {
+            StoryFrameDrawer.getSlideStartUs(mPages, mAudioTransitionUs, crossFadeUs, segment.endSlide)
+        } else {
+            storyDuration
+        }
+        return endUs - StoryFrameDrawer.getSlideStartUs(mPages, mAudioTransitionUs, crossFadeUs, segment.firstSlide)
+    }
+
+    /**
+     * Build the audio pipeline of every output. The story's audio is mixed once; outputs whose
+     * audio formats match share an encoder.
+     * @param components list to which every created component is added, for closing.
+     * @return the encoded audio of each output.
+     */
+    @Throws(SourceUnacceptableException::class)
+    private fun createAudioSources(components: MutableList<Closeable>): List<PipedMediaByteBufferSource> {
+        val (encoderFormats, encoderOfOutput) = getAudioEncoderFormats()
+        val rawSources = split(createAudioSource(components), encoderFormats.size, components)
+        val encodedSources = ArrayList<MutableList<PipedMediaByteBufferSource>>()
+        for (i in encoderFormats.indices) {
+            val audioEncoder = PipedMediaEncoder(encoderFormats[i])
+            components.add(audioEncoder)
+            audioEncoder.addSource(rawSources[i])
+            encodedSources.add(split(audioEncoder, encoderOfOutput.count { it == i }, components).toMutableList())
+        }
+        return mOutputs.indices.map { encodedSources[encoderOfOutput[it]].removeAt(0) }
+    }
+
+    /**
+     * Get the audio encoders the outputs need: outputs whose audio formats match share one.
+     * @return the format of each encoder, and the index of the encoder of each output.
+     */
+    private fun getAudioEncoderFormats(): Pair<List<MediaFormat>, IntArray> {
+        val encoderFormats = ArrayList<MediaFormat>()
+        val encoderOfOutput = IntArray(mOutputs.size)
+        for (i in mOutputs.indices) {
+            var index = encoderFormats.indexOfFirst { isSameAudioFormat(it, mOutputs[i].audioFormat) }
+            if (index < 0) {
+                encoderFormats.add(mOutputs[i].audioFormat)
+                index = encoderFormats.size - 1
+            }
+            encoderOfOutput[i] = index
+        }
+        return Pair(encoderFormats, encoderOfOutput)
+    }
+
+    /**
+     * Split a stream so that several components can consume it.
+     */
+    private fun split(source: PipedMediaByteBufferSource, count: Int, components: MutableList<Closeable>): List<PipedMediaByteBufferSource> {
+        if (count == 1) return listOf(source)
+        val tee = PipedMediaByteBufferTee(source)
+        val outputs = List(count) { tee.createOutput() }
+        components.addAll(outputs)
+        return outputs
+    }
+
+    /**
+     * Create one video encoder for each output with a video format, fed by the same frames.
+     * @return the encoder of each output, or null for outputs without video.
+     */
+    @Throws(SourceUnacceptableException::class)
+    private fun createVideoEncoders(source: PipedVideoSurfaceEncoder.Source, formats: List<MediaFormat?>,
+                                    components: MutableList<Closeable>): List<PipedMediaByteBufferSource?> {
+        val tee = if (formats.count { it != null } > 1) PipedVideoFrameTee(source) else null
+        return formats.map { format ->
+            if (format == null) {
+                null
+            } else {
+                val videoEncoder = PipedVideoSurfaceEncoder()
+                components.add(videoEncoder)
+                videoEncoder.addSource(tee?.createOutput(format) ?: source)
+                videoEncoder
+            }
+        }
+    }
+
+    /**
+     * Build the raw audio of the story: narration mixed with the soundtrack, if any.
+     * @param components list to which every created component is added, for closing.
+     * @return the last component of the audio pipeline.
+     */
+    @Throws(SourceUnacceptableException::class)
+    private fun createAudioSource(components: MutableList<Closeable>): PipedMediaByteBufferSource {
+        val soundtrackConcatenator = PipedAudioConcatenator(context,0, mSampleRate, mChannelCount)
+        components.add(soundtrackConcatenator)
+        soundtrackConcatenator.setFadeOut(SOUNDTRACK_FADE_OUT_US)
+        soundtrackConcatenator.setLookahead(audioLookahead)
+        val narrationConcatenator = PipedAudioConcatenator(context, mAudioTransitionUs, mSampleRate, mChannelCount)
+        components.add(narrationConcatenator)
+        narrationConcatenator.setLookahead(audioLookahead)
+
+        var soundtrackDuration: Long = 0
+        var lastSoundtrack = ""
+        var soundtrackVolume: Float
+        var lastSoundtrackVolume = 0.0f
+        for (page in mPages) {
+            val narration = page.narrationAudioPath
+            val audioDuration = page.audioDuration
+
+            val soundtrack = page.soundtrackAudioPath
+            val pageDuration = page.getDuration(mAudioTransitionUs)
+            soundtrackVolume = page.soundtrackVolume
+
+            //If we encounter a new soundtrack, stop the current one and start the new one.
+            //Otherwise, continue playing last soundtrack.
+            if (soundtrack != lastSoundtrack) {
+                //add the accumulated "last soundtrack" to the concatenator
+                if (lastSoundtrack != "") {
+                    soundtrackConcatenator.addSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+                } else if (soundtrackDuration > 0) {
+                    //Else, we need to add blank time.
+                    soundtrackConcatenator.addSource(null, soundtrackDuration, lastSoundtrackVolume)
+                }
+
+                //Start the next soundtrack accumulator
+                lastSoundtrack = soundtrack
+                lastSoundtrackVolume = soundtrackVolume
+                //The next soundtrack will at least play for "page duration"
+                soundtrackDuration = pageDuration
+            } else {
+                //each slide, add the narration length + transition time to the soundtrack audio.
+                soundtrackDuration += pageDuration
+            }
+
+            narrationConcatenator.addSourcePath(narration, audioDuration)
+        }
+
+        //Add last soundtrack
+        if (lastSoundtrack != "") {
+            soundtrackConcatenator.addLoopingSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+        }
+
+        //Add soundtrack only if there is one!
+        if(soundtrackConcatenator.anyNonNull()) {
+            val audioMixer = PipedAudioFloatMixer()
+            components.add(audioMixer)
+            audioMixer.addSource(narrationConcatenator)
+            audioMixer.addSource(soundtrackConcatenator)
+            return audioMixer
+        } else {
+            //no mixing needed - bypass.
+            return narrationConcatenator
+        }
+    }
+
+    /**
+     * Run one muxer per output over the given sources until they are drained. The first output
+     * drives the others, which are written as its renditions.
+     * @param isStory whether these are the story's outputs (rather than segments of them), which
+     * get the timed text track if [isTimedTextMuxed].
+     * @return whether each output was finished.
+     */
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun mux(outputs: List<Pair<File, Int>>, audioSources: List<PipedMediaByteBufferSource?>,
+                    videoSources: List<PipedMediaByteBufferSource?>, isStory: Boolean = false): BooleanArray {
+        val muxers = outputs.map { PipedMediaMuxer(it.first.absolutePath, it.second) }
+        if (isStory && isTimedTextMuxed) {
+            val cues = SubtitleWriter.getCues(mPages, mAudioTransitionUs)
+                    .map { PipedMediaMuxer.TextCue(it.startUs, it.endUs, it.text) }
+            for (i in muxers.indices) {
+                if (outputs[i].second == MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) {
+                    muxers[i].setTimedText(cues)
+                }
+            }
+        }
+        val results = BooleanArray(outputs.size)
+        synchronized(mMuxers) {
+            mMuxers.add(muxers[0])
+        }
+        try {
+            if (mIsClosed) return results
+            for (i in muxers.indices) {
+                if (audioSources[i] != null) {
+                    muxers[i].addSource(audioSources[i]!!)
+                }
+                if (videoSources[i] != null) {
+                    muxers[i].addSource(videoSources[i]!!)
+                }
+                if (i > 0) {
+                    muxers[0].addRendition(muxers[i])
+                }
+            }
+            results[0] = muxers[0].crunch()
+            for (i in 1 until muxers.size) {
+                results[i] = results[0] && !muxers[i].isAbnormallyEnded
+            }
+            return results
+        } finally {
+            muxers[0].close()
+            synchronized(mMuxers) {
+                mMuxers.remove(muxers[0])
+            }
+        }
+    }
+
+    private fun isSameAudioFormat(a: MediaFormat, b: MediaFormat): Boolean {
+        if (a.getString(MediaFormat.KEY_MIME) != b.getString(MediaFormat.KEY_MIME)) return false
+        for (key in arrayOf(MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+                MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_AAC_PROFILE)) {
+            val valueA = if (a.containsKey(key)) a.getInteger(key) else null
+            val valueB = if (b.containsKey(key)) b.getInteger(key) else null
+            if (valueA != valueB) return false
+        }
+        return true
+    }
+
+    private fun closeAll(components: List<Closeable>) {
+        for (component in components) {
+            component.close()
+        }
     }
 
     override fun close() {
-        if (mMuxer != null) {
+        mIsClosed = true
+        val muxers = synchronized(mMuxers) { ArrayList(mMuxers) }
+        if (muxers.isNotEmpty()) {
             Log.i(TAG, "Closing media pipeline. Subsequent logged errors may not be cause for concern.")
-            mMuxer!!.close()
+            muxers.forEach { it.close() }
         }
         isDone = true
     }
 
+    private class Output(val file: File, val format: Int, val videoFormat: MediaFormat?, val audioFormat: MediaFormat) {
+        var isSuccess = false
+    }
+
+    /**
+     * The video of a range of slides, with one file for each output with video. Segments of an
+     * incremental export have the cache keys of their files.
+     */
+    private class Segment(val firstSlide: Int, val endSlide: Int, val keys: List<String>?) {
+        val files = ArrayList<File>()
+    }
+
     companion object {
         private val TAG = "StoryMaker"
         private val SOUNDTRACK_FADE_OUT_US: Long = 1000000
+        private const val AUDIO_LOOKAHEAD_DEFAULT = 1
+
+        /**
+         * Get how many video segments this device can sensibly encode at the same time. Each
+         * segment opens a video encoder for every output, so each segment needs a core per output,
+         * and no codec may be asked for more instances than it supports.
+         * @param videoFormats the video formats of the main output and of every rendition.
+         * @return the number of segments, which is 1 where parallel encoding is not possible.
+         */
+        fun getMaxParallelEncoders(videoFormats: List<MediaFormat>): Int {
+            //Codec instance limits are only reported from Android 6.0 (API 23).
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || videoFormats.isEmpty()) return 1
+            var segments = Runtime.getRuntime().availableProcessors() / videoFormats.size
+            val codecsPerMime = videoFormats.groupingBy { it.getString(MediaFormat.KEY_MIME) }.eachCount()
+            for ((mime, codecs) in codecsPerMime) {
+                if (mime == null) return 1
+                val codecInfo = selectCodec(mime) ?: return 1
+                val instances = try {
+                    codecInfo.getCapabilitiesForType(mime).maxSupportedInstances
+                } catch (e: IllegalArgumentException) {
+                    return 1
+                }
+                segments = Math.min(segments, instances / codecs)
+            }
+            return Math.max(1, segments)
+        }
 
         /**
          * Get the expected duration, in microseconds, of the produced video.
@@ -8,11 +8,13 @@ import org.sil.storyproducer.tools.media.graphics.TextOverlay
  * One StoryPage represents a unit of a story that will go into video format. Each StoryPage has
  * three parts: 1) image, 2) narration, and 3) Ken Burns effect. The narration dictates the length
  * of the page in the video, and the image and Ken Burns effect follow its queues.
+ * The subtitle text, if any, is written as timed text rather than drawn (see [SubtitleWriter]).
  */
 class StoryPage
 
 (val imRelPath: String = "", val narrationAudioPath: String = "", private val mDuration: Long, val kenBurnsEffect: KenBurnsEffect? = null,
- val textOverlay: TextOverlay? = null, val soundtrackAudioPath: String = "", val soundtrackVolume: Float = 0.25f, val sType: SlideType = SlideType.NONE) {
+ val textOverlay: TextOverlay? = null, val soundtrackAudioPath: String = "", val soundtrackVolume: Float = 0.25f, val sType: SlideType = SlideType.NONE,
+ val subtitleText: String = "") {
 
     /**
      * Get the audio duration without any transition time.
@@ -0,0 +1,140 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.media.MediaFormat
+import android.util.Log
+
+import org.sil.storyproducer.tools.file.DiskCacheDir
+import org.sil.storyproducer.tools.media.pipe.PipedAudioResampler
+
+import java.io.File
+
+/**
+ *
+ * Persistent cache of encoded video segments, kept in the app cache directory.
+ *
+ * Each entry is an MP4 file holding the video of one slide, as drawn by a [StoryFrameDrawer]
+ * limited to that slide. Entries are addressed by a hash of everything the drawing depends on:
+ * the video format, the transition settings and the inputs of the slide and of the slide fading in
+ * at its end. Changing a slide therefore only misses the cache for that slide and the one before
+ * it.
+ *
+ * The encoded audio of a story is kept as one more entry, an MP4 file holding only the audio
+ * track, addressed by a hash of every audio input of the story (see [getAudioKey]).
+ *
+ * The least recently used entries are evicted once the cache grows past [maxCacheBytes].
+ */
+internal object StorySegmentCache {
+    private val TAG = "StorySegmentCache"
+
+    private const val CACHE_DIR = "segments"
+    private const val ENTRY_SUFFIX = ".mp4"
+
+    /** default size cap of the cache */
+    const val CACHE_SIZE_DEFAULT: Long = 256L * 1024 * 1024
+
+    private val mDir = DiskCacheDir(CACHE_DIR, ENTRY_SUFFIX, TAG, CACHE_SIZE_DEFAULT)
+
+    /** size (in bytes) the cache is trimmed to after each new entry */
+    var maxCacheBytes: Long
+        get() = mDir.maxBytes
+        set(value) {
+            mDir.maxBytes = value
+        }
+
+    /**
+     * Get the cache key of the video segment of one slide.
+     * @param crossFadeUs cross-fade duration from [StoryFrameDrawer.getCrossFadeUs].
+     * @return the key, or null if the inputs cannot be identified reliably enough to cache.
+     */
+    fun getSegmentKey(context: Context, videoFormat: MediaFormat, pages: Array<StoryPage>, slide: Int,
+                      audioTransitionUs: Long, crossFadeUs: Long): String? {
+        val text = StringBuilder()
+        text.append(videoFormat.getString(MediaFormat.KEY_MIME)).append('|')
+                .append(videoFormat.getInteger(MediaFormat.KEY_WIDTH)).append('x')
+                .append(videoFormat.getInteger(MediaFormat.KEY_HEIGHT)).append('@')
+                .append(videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE)).append('|')
+                .append(videoFormat.getInteger(MediaFormat.KEY_BIT_RATE)).append('|')
+                .append(videoFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL)).append('|')
+                .append(audioTransitionUs).append('|').append(crossFadeUs).append('|')
+                //The first and last two slides are timed differently.
+                .append(slide == 0).append('|').append(pages.size - slide)
+
+        //The slide itself and the one fading in at its end.
+        for (i in slide..Math.min(slide + 1, pages.size - 1)) {
+            if (!appendPage(context, text, pages[i], audioTransitionUs)) return null
+        }
+        return DiskCacheDir.hash(text.toString())
+    }
+
+    /**
+     * Get the cache key of the encoded audio of a whole story. The audio is not cached per slide:
+     * the soundtrack and its fades run across slides, and separately encoded AAC pieces do not
+     * join seamlessly, since each starts with the encoder's priming samples.
+     * @param audioFormat the encoder's format, with the sample rate and channel count of the mix.
+     * @param soundtrackFadeOutUs fade-out duration of each soundtrack.
+     * @return the key, or null if the inputs cannot be identified reliably enough to cache.
+     */
+    fun getAudioKey(context: Context, audioFormat: MediaFormat, pages: Array<StoryPage>,
+                    audioTransitionUs: Long, soundtrackFadeOutUs: Long): String? {
+        val text = StringBuilder("audio|")
+        text.append(audioFormat.getString(MediaFormat.KEY_MIME))
+        for (key in arrayOf(MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+                MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_AAC_PROFILE)) {
+            text.append('|').append(if (audioFormat.containsKey(key)) audioFormat.getInteger(key) else null)
+        }
+        //Audio resampled in another mode would sound different.
+        text.append('|').append(audioTransitionUs).append('|').append(soundtrackFadeOutUs)
+                .append('|').append(PipedAudioResampler.defaultMode)
+
+        for (page in pages) {
+            text.append("||")
+            if (page.narrationAudioPath != "") {
+                text.append(DiskCacheDir.getFileVersion(context, page.narrationAudioPath) ?: return null)
+            }
+            text.append('|').append(page.audioDuration).append('|').append(page.getDuration(audioTransitionUs))
+                    .append('|')
+            if (page.soundtrackAudioPath != "") {
+                text.append(DiskCacheDir.getFileVersion(context, page.soundtrackAudioPath) ?: return null)
+            }
+            text.append('|').append(page.soundtrackVolume)
+        }
+        return DiskCacheDir.hash(text.toString())
+    }
+
+    private fun appendPage(context: Context, text: StringBuilder, page: StoryPage, audioTransitionUs: Long): Boolean {
+        text.append("||")
+        if (page.imRelPath != "") {
+            text.append(DiskCacheDir.getFileVersion(context, page.imRelPath) ?: return false)
+        }
+        text.append('|').append(page.getDuration(audioTransitionUs))
+                .append('|').append(page.kenBurnsEffect?.cacheKey)
+                .append('|').append(page.textOverlay?.cacheKey)
+                .append('|').append(page.sType.name)
+        return true
+    }
+
+    /**
+     * Get the complete cache entry for a key, marking it as recently used.
+     * @return the entry file, or null on a cache miss.
+     */
+    fun lookup(context: Context, key: String): File? {
+        return mDir.getEntry(context, key)
+    }
+
+    /**
+     * Get a new file to encode the segment (or audio) of a key into. Pass it to [commit] once it is complete.
+     * @return the partial file, or null if the cache is unavailable.
+     */
+    fun createPartial(context: Context, key: String): File? {
+        return mDir.createPartial(context, key)
+    }
+
+    /**
+     * Make a completely written partial entry visible, then trim the cache.
+     * @return the entry file.
+     */
+    fun commit(partial: File, key: String): File {
+        return mDir.commit(partial, key)
+    }
+}
@@ -0,0 +1,86 @@
+package org.sil.storyproducer.tools.media.story
+
+import java.io.Writer
+import java.util.Locale
+
+/**
+ *
+ * Writes the text of a story's slides as timed text: WebVTT and SubRip files to sit next to the
+ * video, or cues for a text track muxed into it (see
+ * [org.sil.storyproducer.tools.media.pipe.PipedMediaMuxer.setTimedText]).
+ *
+ *
+ * Each slide's text is shown from the middle of the cross-fade into the slide until the middle of
+ * the cross-fade out of it. [StoryFrameDrawer] centers each cross-fade on the boundary between
+ * the slides' audio, so these are the page boundaries, wherever the cross-fade is clipped to.
+ */
+object SubtitleWriter {
+
+    /**
+     * Text shown from startUs up to (excluding) endUs.
+     */
+    class Cue(val startUs: Long, val endUs: Long, val text: String)
+
+    /**
+     * Get the cues of the [StoryPage.subtitleText] of the given pages.
+     * @param audioTransitionUs transition duration between narrations.
+     */
+    fun getCues(pages: Array<StoryPage>, audioTransitionUs: Long): List<Cue> {
+        val cues = ArrayList<Cue>()
+        var startUs: Long = 0
+        for (i in pages.indices) {
+            val endUs = startUs + pages[i].getDuration(audioTransitionUs)
+            val text = pages[i].subtitleText.trim()
+            if (text.isNotEmpty() && endUs > startUs) {
+                cues.add(Cue(startUs, endUs, text))
+            }
+            startUs = endUs
+        }
+        return cues
+    }
+
+    /**
+     * Write cues as a WebVTT file.
+     */
+    fun writeWebVtt(cues: List<Cue>, writer: Writer) {
+        writer.write("WEBVTT\n")
+        for (cue in cues) {
+            writer.write("\n")
+            writer.write(formatTime(cue.startUs, '.') + " --> " + formatTime(cue.endUs, '.') + "\n")
+            //Markup characters must be escaped, and "-->" may not appear in cue text.
+            val text = cue.text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+            writer.write(getCueLines(text) + "\n")
+        }
+        writer.flush()
+    }
+
+    /**
+     * Write cues as a SubRip (SRT) file.
+     */
+    fun writeSrt(cues: List<Cue>, writer: Writer) {
+        for (i in cues.indices) {
+            val cue = cues[i]
+            if (i > 0) writer.write("\n")
+            writer.write((i + 1).toString() + "\n")
+            writer.write(formatTime(cue.startUs, ',') + " --> " + formatTime(cue.endUs, ',') + "\n")
+            writer.write(getCueLines(cue.text) + "\n")
+        }
+        writer.flush()
+    }
+
+    /**
+     * Format a time as hours:minutes:seconds, with milliseconds after the given separator.
+     */
+    fun formatTime(timeUs: Long, separator: Char): String {
+        val ms = Math.max(0, timeUs) / 1000
+        return String.format(Locale.US, "%02d:%02d:%02d%c%03d",
+                ms / 3600000, ms / 60000 % 60, ms / 1000 % 60, separator, ms % 1000)
+    }
+
+    /**
+     * A blank line ends a cue in both formats, so only the non-blank lines of the text are kept.
+     */
+    private fun getCueLines(text: String): String {
+        return text.lines().map { it.trim() }.filter { it.isNotEmpty() }.joinToString("\n")
+    }
+}
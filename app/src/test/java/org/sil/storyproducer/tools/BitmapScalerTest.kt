@@ -0,0 +1,20 @@
+package org.sil.storyproducer.tools
+
+import org.junit.Assert
+import org.junit.Test
+
+class BitmapScalerTest {
+
+    @Test
+    fun getCoverSampleSize_When_CropIsLarge_Should_StillCoverFrame() {
+        //A 4000x3000 crop over a 1280x720 frame: sampling by 2 leaves 2000x1500, by 4 only 1000x750.
+        Assert.assertEquals(2, BitmapScaler.getCoverSampleSize(4000, 3000, 1280, 720))
+        Assert.assertEquals(4, BitmapScaler.getCoverSampleSize(6000, 3000, 1280, 720))
+    }
+
+    @Test
+    fun getCoverSampleSize_When_CropIsSmallerThanFrame_Should_NotSample() {
+        Assert.assertEquals(1, BitmapScaler.getCoverSampleSize(800, 600, 1280, 720))
+        Assert.assertEquals(1, BitmapScaler.getCoverSampleSize(0, 0, 1280, 720))
+    }
+}
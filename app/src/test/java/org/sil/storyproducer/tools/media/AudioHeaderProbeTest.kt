@@ -0,0 +1,183 @@
+package org.sil.storyproducer.tools.media
+
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class AudioHeaderProbeTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun probe_When_WavFile_Should_ReadFormatAndDataDuration() {
+        //2 seconds of 16-bit stereo at 22050 Hz
+        val header = probe(wav(22050, 2, 16, 2 * 22050 * 4))
+
+        Assert.assertNotNull(header)
+        Assert.assertEquals(2000000L, header!!.durationUs)
+        Assert.assertEquals(22050, header.sampleRate)
+        Assert.assertEquals(2, header.channelCount)
+        Assert.assertEquals("audio/raw", header.mime)
+    }
+
+    @Test
+    fun probe_When_WavDataSizeIsMissing_Should_UseRestOfFile() {
+        val bytes = wav(8000, 1, 16, 16000)
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(40, 0)
+
+        val header = probe(bytes)
+
+        Assert.assertEquals(1000000L, header!!.durationUs)
+    }
+
+    @Test
+    fun probe_When_WavHasNoDataChunk_Should_ReturnNull() {
+        Assert.assertNull(probe(wav(44100, 1, 16, 0).copyOf(36)))
+    }
+
+    @Test
+    fun probe_When_ConstantBitRateMp3_Should_ComputeDurationFromSize() {
+        //MPEG-1 layer III, 128 kbps, 44100 Hz, joint stereo, 417 bytes per frame
+        val frames = mp3Frames(byteArrayOf(0xFF.toByte(), 0xFB.toByte(), 0x90.toByte(), 0x64), 417, 100)
+
+        val header = probe(frames)
+
+        Assert.assertEquals(41700L * 8 * 1000000 / 128000, header!!.durationUs)
+        Assert.assertEquals(44100, header.sampleRate)
+        Assert.assertEquals(2, header.channelCount)
+        Assert.assertEquals("audio/mpeg", header.mime)
+    }
+
+    @Test
+    fun probe_When_Mp3HasId3Tag_Should_SkipTag() {
+        //MPEG-2 layer III, 64 kbps, 22050 Hz, mono, 208 bytes per frame
+        val frames = mp3Frames(byteArrayOf(0xFF.toByte(), 0xF3.toByte(), 0x80.toByte(), 0xC4.toByte()), 208, 50)
+        val tag = ByteArray(10 + 300)
+        "ID3".toByteArray().copyInto(tag)
+        tag[3] = 3
+        //Syncsafe size 300 = 2 * 128 + 44
+        tag[8] = 2
+        tag[9] = 44
+
+        val header = probe(tag + frames)
+
+        Assert.assertEquals(208L * 50 * 8 * 1000000 / 64000, header!!.durationUs)
+        Assert.assertEquals(22050, header.sampleRate)
+        Assert.assertEquals(1, header.channelCount)
+    }
+
+    @Test
+    fun probe_When_Mp3HasXingHeader_Should_UseFrameCount() {
+        val frames = mp3Frames(byteArrayOf(0xFF.toByte(), 0xFB.toByte(), 0x90.toByte(), 0x64), 417, 10)
+        //The Xing header follows the 32 bytes of stereo MPEG-1 side information.
+        val xing = ByteBuffer.wrap(frames, 4 + 32, 12)
+        xing.put("Xing".toByteArray()).putInt(0x1).putInt(1000)
+
+        val header = probe(frames)
+
+        Assert.assertEquals(1000L * 1152 * 1000000 / 44100, header!!.durationUs)
+    }
+
+    @Test
+    fun probe_When_Mp4AudioTrack_Should_ReadMediaHeader() {
+        val header = probe(mp4(listOf(
+                track("vide", 30000, 300000, 0, 0),
+                track("soun", 44100, 441000, 1, 44100))))
+
+        Assert.assertEquals(10000000L, header!!.durationUs)
+        Assert.assertEquals(44100, header.sampleRate)
+        Assert.assertEquals(1, header.channelCount)
+        Assert.assertEquals("audio/mp4a-latm", header.mime)
+    }
+
+    @Test
+    fun probe_When_Mp4TrackHasNoDuration_Should_UseMovieHeader() {
+        val header = probe(mp4(listOf(track("soun", 48000, 0, 2, 48000))))
+
+        Assert.assertEquals(2500000L, header!!.durationUs)
+        Assert.assertEquals(48000, header.sampleRate)
+        Assert.assertEquals(2, header.channelCount)
+    }
+
+    @Test
+    fun probe_When_Mp4HasNoAudioTrack_Should_ReturnNull() {
+        Assert.assertNull(probe(mp4(listOf(track("vide", 30000, 300000, 0, 0)))))
+    }
+
+    @Test
+    fun probe_When_UnknownFormat_Should_ReturnNull() {
+        Assert.assertNull(probe("This is not an audio file.".toByteArray()))
+    }
+
+    private fun probe(bytes: ByteArray): AudioHeader? {
+        val file = folder.newFile()
+        file.writeBytes(bytes)
+        RandomAccessFile(file, "r").use {
+            return AudioHeaderProbe.probe(it.channel)
+        }
+    }
+
+    private fun wav(sampleRate: Int, channelCount: Int, bitsPerSample: Int, dataSize: Int): ByteArray {
+        val blockAlign = channelCount * bitsPerSample / 8
+        val buffer = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.put("RIFF".toByteArray()).putInt(36 + dataSize).put("WAVE".toByteArray())
+        buffer.put("fmt ".toByteArray()).putInt(16)
+                .putShort(1).putShort(channelCount.toShort()).putInt(sampleRate)
+                .putInt(sampleRate * blockAlign).putShort(blockAlign.toShort()).putShort(bitsPerSample.toShort())
+        buffer.put("data".toByteArray()).putInt(dataSize)
+        return buffer.array()
+    }
+
+    private fun mp3Frames(frameHeader: ByteArray, frameLength: Int, count: Int): ByteArray {
+        val bytes = ByteArray(frameLength * count)
+        for (i in 0 until count) {
+            frameHeader.copyInto(bytes, i * frameLength)
+        }
+        return bytes
+    }
+
+    private fun box(type: String, vararg payloads: ByteArray): ByteArray {
+        val size = 8 + payloads.sumBy { it.size }
+        val out = ByteArrayOutputStream()
+        out.write(ByteBuffer.allocate(4).putInt(size).array())
+        out.write(type.toByteArray())
+        for (payload in payloads) {
+            out.write(payload)
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * Version 0 mvhd/mdhd payload: times, timescale and duration, then the rest of the fields.
+     */
+    private fun timeHeader(timescale: Int, duration: Int, restSize: Int): ByteArray {
+        return ByteBuffer.allocate(20 + restSize).putInt(0).putInt(0).putInt(0)
+                .putInt(timescale).putInt(duration).array()
+    }
+
+    private fun track(handler: String, timescale: Int, duration: Int, channelCount: Int, sampleRate: Int): ByteArray {
+        val hdlr = ByteBuffer.allocate(25).putInt(0).putInt(0).put(handler.toByteArray()).array()
+        //reserved, data_reference_index, reserved, channelcount, samplesize, reserved, samplerate
+        val entry = ByteBuffer.allocate(28).putShort(6, 1).putShort(16, channelCount.toShort())
+                .putShort(18, 16).putInt(24, sampleRate shl 16).array()
+        val stsd = box("stsd", ByteBuffer.allocate(8).putInt(0).putInt(1).array(), box("mp4a", entry))
+        return box("trak",
+                box("tkhd", ByteArray(84)),
+                box("mdia",
+                        box("mdhd", timeHeader(timescale, duration, 4)),
+                        box("hdlr", hdlr),
+                        box("minf", box("stbl", stsd))))
+    }
+
+    private fun mp4(tracks: List<ByteArray>): ByteArray {
+        val ftyp = box("ftyp", "M4A ".toByteArray(), ByteArray(4), "isomM4A ".toByteArray())
+        val moov = box("moov", box("mvhd", timeHeader(1000, 2500, 80)), *tracks.toTypedArray())
+        return ftyp + moov + box("mdat", ByteArray(64))
+    }
+}
@@ -0,0 +1,74 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import org.junit.Assert
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.log10
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+class PipedAudioResamplerTest {
+
+    @Test
+    fun defaultMode_Should_BeSinc() {
+        Assert.assertEquals(PipedAudioResampler.Mode.SINC, PipedAudioResampler.defaultMode)
+    }
+
+    @Test
+    fun sincTable_When_Upsampling_Should_KeepSpeechAndSuppressImages() {
+        val table = PipedAudioResampler.SincTable.forRates(22050, 44100)!!
+
+        Assert.assertEquals(0.0, getResponseDb(table, 22050, 1000.0), 0.1)
+        Assert.assertEquals(0.0, getResponseDb(table, 22050, 5000.0), 0.1)
+        //An 8 kHz tone has its first image at 22050 - 8000 Hz.
+        Assert.assertTrue(getResponseDb(table, 22050, 14050.0) < -60)
+    }
+
+    @Test
+    fun sincTable_When_UpsamplingFrom16000_Should_SuppressImages() {
+        val table = PipedAudioResampler.SincTable.forRates(16000, 44100)!!
+
+        Assert.assertEquals(0.0, getResponseDb(table, 16000, 1000.0), 0.1)
+        //A 6 kHz tone has its first image at 16000 - 6000 Hz.
+        Assert.assertTrue(getResponseDb(table, 16000, 10000.0) < -50)
+    }
+
+    @Test
+    fun sincTable_When_Downsampling_Should_AttenuateAboveOutputNyquist() {
+        val table = PipedAudioResampler.SincTable.forRates(48000, 44100)!!
+
+        Assert.assertEquals(0.0, getResponseDb(table, 48000, 5000.0), 0.1)
+        //Above 22050 Hz, tones alias back below it: 23 kHz to 21.1 kHz, 24 kHz to 20.1 kHz.
+        Assert.assertTrue(getResponseDb(table, 48000, 23000.0) < -12)
+        Assert.assertTrue(getResponseDb(table, 48000, 24000.0) < -15)
+    }
+
+    @Test
+    fun sincTable_When_RatioNeedsTooManyPhases_Should_BeNull() {
+        Assert.assertNull(PipedAudioResampler.SincTable.forRates(44100, 44101))
+    }
+
+    /**
+     * Get the response of the filter made of all phases of a table, relative to its DC response.
+     * @param inRate sample rate the table filters.
+     * @param frequency frequency of the input, in Hz.
+     */
+    private fun getResponseDb(table: PipedAudioResampler.SincTable, inRate: Int, frequency: Double): Double {
+        val taps = table.coefficients.size / table.upFactor
+        var re = 0.0
+        var im = 0.0
+        var dc = 0.0
+        for (phase in 0 until table.upFactor) {
+            for (k in 0 until taps) {
+                val coefficient = table.coefficients[phase * taps + k].toDouble()
+                //Time of the tap, in input frames relative to the output frame.
+                val x = (k - taps / 2 + 1) - phase.toDouble() / table.upFactor
+                re += coefficient * cos(2 * PI * frequency * x / inRate)
+                im += coefficient * sin(2 * PI * frequency * x / inRate)
+                dc += coefficient
+            }
+        }
+        return 20 * log10(sqrt(re * re + im * im) / dc)
+    }
+}
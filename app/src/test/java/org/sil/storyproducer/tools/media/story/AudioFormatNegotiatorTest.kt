@@ -0,0 +1,99 @@
+package org.sil.storyproducer.tools.media.story
+
+import org.junit.Assert
+import org.junit.Test
+import org.sil.storyproducer.tools.media.pipe.PipedAudioResampler
+
+class AudioFormatNegotiatorTest {
+
+    private val rates = intArrayOf(16000, 22050, 24000, 32000, 44100, 48000)
+
+    @Test
+    fun negotiate_When_SourcesMatchPreferredFormat_Should_ConvertNothing() {
+        val sources = listOf(narration(44100, 1), narration(44100, 1))
+
+        val plan = negotiate(sources)
+
+        Assert.assertEquals(44100, plan.sampleRate)
+        Assert.assertEquals(1, plan.channelCount)
+        Assert.assertTrue(plan.conversions.isEmpty())
+    }
+
+    @Test
+    fun negotiate_When_NarrationsUseAnotherRate_Should_KeepNarrationRate() {
+        val sources = listOf(narration(22050, 1), narration(22050, 1), soundtrack(48000, 2))
+
+        val plan = negotiate(sources)
+
+        Assert.assertEquals(22050, plan.sampleRate)
+        Assert.assertEquals(1, plan.channelCount)
+        Assert.assertFalse(plan.isNarrationConverted)
+        Assert.assertEquals(1, plan.conversions.size)
+        Assert.assertEquals(48000, plan.conversions[0].source.sampleRate)
+    }
+
+    @Test
+    fun negotiate_When_NarrationRateIsUnsupported_Should_ConvertNarration() {
+        val sources = listOf(narration(22050, 1))
+
+        val plan = AudioFormatNegotiator.negotiate(sources, DURATION_US, intArrayOf(44100, 48000), 2,
+                44100, 1, PipedAudioResampler.Mode.LINEAR)
+
+        Assert.assertEquals(44100, plan.sampleRate)
+        Assert.assertTrue(plan.isNarrationConverted)
+    }
+
+    @Test
+    fun negotiate_When_NarrationRateIsTooLow_Should_UsePreferredRate() {
+        val plan = negotiate(listOf(narration(8000, 1)))
+
+        Assert.assertEquals(44100, plan.sampleRate)
+    }
+
+    @Test
+    fun negotiate_When_NarrationsAreStereo_Should_KeepStereoIfSupported() {
+        val sources = listOf(narration(48000, 2))
+
+        Assert.assertEquals(2, negotiate(sources).channelCount)
+        Assert.assertEquals(1, AudioFormatNegotiator.negotiate(sources, DURATION_US, rates, 1,
+                44100, 1, PipedAudioResampler.Mode.LINEAR).channelCount)
+    }
+
+    @Test
+    fun negotiate_When_NarrationsDiffer_Should_ConvertTheLeastAudio() {
+        val sources = listOf(narration(22050, 1, 1000000), narration(44100, 1, 9000000))
+
+        val plan = negotiate(sources)
+
+        Assert.assertEquals(44100, plan.sampleRate)
+        Assert.assertEquals(1, plan.conversions.size)
+        Assert.assertEquals(22050, plan.conversions[0].source.sampleRate)
+    }
+
+    @Test
+    fun getConversionCost_Should_CountResamplingAndChannelConversion() {
+        val source = narration(22050, 2, 1000000)
+
+        Assert.assertEquals(0L, AudioFormatNegotiator.getConversionCost(source, 22050, 2))
+        Assert.assertEquals(44100L, AudioFormatNegotiator.getConversionCost(source, 22050, 1))
+        Assert.assertEquals(44100L * 2 + 44100, AudioFormatNegotiator.getConversionCost(source, 44100, 1,
+                PipedAudioResampler.Mode.LINEAR))
+    }
+
+    private fun negotiate(sources: List<AudioFormatNegotiator.Source>): AudioFormatNegotiator.Plan {
+        return AudioFormatNegotiator.negotiate(sources, DURATION_US, rates, 2, 44100, 1,
+                PipedAudioResampler.Mode.LINEAR)
+    }
+
+    private fun narration(sampleRate: Int, channelCount: Int, durationUs: Long = 5000000): AudioFormatNegotiator.Source {
+        return AudioFormatNegotiator.Source("narration.m4a", sampleRate, channelCount, durationUs, true)
+    }
+
+    private fun soundtrack(sampleRate: Int, channelCount: Int): AudioFormatNegotiator.Source {
+        return AudioFormatNegotiator.Source("song.mp3", sampleRate, channelCount, DURATION_US, false)
+    }
+
+    companion object {
+        private const val DURATION_US = 10000000L
+    }
+}
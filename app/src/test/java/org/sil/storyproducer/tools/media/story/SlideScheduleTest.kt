@@ -0,0 +1,83 @@
+package org.sil.storyproducer.tools.media.story
+
+import org.junit.Assert
+import org.junit.Assume
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+class SlideScheduleTest {
+
+    @Test
+    fun getters_Should_FollowCrossFades() {
+        val schedule = SlideSchedule(arrayOf(page(2000000), page(3000000), page(1000000)), 500000, 750000)
+
+        Assert.assertEquals(0L, schedule.getVisibleStartUs(-1))
+        Assert.assertEquals(-375000L, schedule.getCrossFadeStartUs(-1))
+        Assert.assertEquals(0L, schedule.getVisibleStartUs(0))
+        Assert.assertEquals(2125000L, schedule.getCrossFadeStartUs(0))
+        Assert.assertEquals(2875000L, schedule.getCrossFadeEndUs(0))
+        Assert.assertEquals(2875000L, schedule.getVisibleDurationUs(0))
+        Assert.assertEquals(4250000L, schedule.getNextVisibleDurationUs(0))
+        Assert.assertEquals(2125000L, schedule.getVisibleStartUs(1))
+        Assert.assertEquals(4250000L, schedule.getVisibleDurationUs(1))
+        Assert.assertEquals(7500000L, schedule.getCrossFadeStartUs(2))
+        Assert.assertEquals(7500000L, schedule.getCrossFadeEndUs(3))
+    }
+
+    @Test
+    fun getSlideStartUs_Should_BeEndOfCrossFadeIntoSlide() {
+        val pages = arrayOf(page(2000000), page(3000000), page(1000000))
+        val schedule = SlideSchedule(pages, 500000, 750000)
+
+        Assert.assertEquals(0L, StoryFrameDrawer.getSlideStartUs(pages, 500000, 750000, 0))
+        //Half a cross-fade after the audio boundary at 2500000.
+        Assert.assertEquals(2875000L, StoryFrameDrawer.getSlideStartUs(pages, 500000, 750000, 1))
+        for (slide in 1..pages.size) {
+            Assert.assertEquals(schedule.getCrossFadeEndUs(slide - 1),
+                    StoryFrameDrawer.getSlideStartUs(pages, 500000, 750000, slide))
+        }
+    }
+
+    //Covers only the schedule lookups StoryFrameDrawer makes per frame, not the drawing itself.
+    @Test
+    fun scheduleLookups_When_Warm_Should_NotAllocate() {
+        val bean = ManagementFactory.getThreadMXBean()
+        Assume.assumeTrue(bean is com.sun.management.ThreadMXBean && bean.isThreadAllocatedMemorySupported)
+        val allocations = bean as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+
+        val schedule = SlideSchedule(Array(20) { page(1000000L + it * 100000L) }, 500000, 750000)
+        var sum = lookUpAll(schedule)
+
+        //The cost of measuring itself, subtracted from the measurement.
+        val emptyStart = allocations.getThreadAllocatedBytes(threadId)
+        val emptyBytes = allocations.getThreadAllocatedBytes(threadId) - emptyStart
+
+        //The first rounds may be disturbed by compilation, so the quietest round counts.
+        var bytes = Long.MAX_VALUE
+        for (round in 0 until 5) {
+            val start = allocations.getThreadAllocatedBytes(threadId)
+            for (i in 0 until 1000) {
+                sum += lookUpAll(schedule)
+            }
+            bytes = Math.min(bytes, allocations.getThreadAllocatedBytes(threadId) - start - emptyBytes)
+        }
+
+        Assert.assertNotEquals(0L, sum)
+        Assert.assertEquals(0L, bytes)
+    }
+
+    private fun lookUpAll(schedule: SlideSchedule): Long {
+        var sum: Long = 0
+        for (slide in -1..schedule.slideCount) {
+            sum += schedule.getVisibleStartUs(slide) + schedule.getCrossFadeStartUs(slide) +
+                    schedule.getCrossFadeEndUs(slide) + schedule.getVisibleDurationUs(slide) +
+                    schedule.getNextVisibleDurationUs(slide)
+        }
+        return sum
+    }
+
+    private fun page(durationUs: Long): StoryPage {
+        return StoryPage(mDuration = durationUs)
+    }
+}
@@ -0,0 +1,58 @@
+package org.sil.storyproducer.tools.media.story
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.StringWriter
+
+class SubtitleWriterTest {
+
+    @Test
+    fun getCues_Should_ChangeAtMiddleOfCrossFades() {
+        val pages = arrayOf(page(2000000, "First"), page(3000000, "Second"))
+
+        val cues = SubtitleWriter.getCues(pages, 500000)
+
+        //The cross-fade between the slides is centered on the end of the first page.
+        Assert.assertEquals(2, cues.size)
+        Assert.assertEquals(0L, cues[0].startUs)
+        Assert.assertEquals(2500000L, cues[0].endUs)
+        Assert.assertEquals(2500000L, cues[1].startUs)
+        Assert.assertEquals(6000000L, cues[1].endUs)
+        Assert.assertEquals("Second", cues[1].text)
+    }
+
+    @Test
+    fun getCues_When_PageHasNoText_Should_LeaveGap() {
+        val pages = arrayOf(page(2000000, ""), page(3000000, "  Second \n"))
+
+        val cues = SubtitleWriter.getCues(pages, 500000)
+
+        Assert.assertEquals(1, cues.size)
+        Assert.assertEquals(2500000L, cues[0].startUs)
+        Assert.assertEquals("Second", cues[0].text)
+    }
+
+    @Test
+    fun writeWebVtt_Should_EscapeMarkupAndDropBlankLines() {
+        val writer = StringWriter()
+
+        SubtitleWriter.writeWebVtt(listOf(SubtitleWriter.Cue(1500, 62001000, "A <b> & C\n\nD")), writer)
+
+        Assert.assertEquals("WEBVTT\n\n00:00:00.001 --> 00:01:02.001\nA &lt;b&gt; &amp; C\nD\n", writer.toString())
+    }
+
+    @Test
+    fun writeSrt_Should_NumberCues() {
+        val writer = StringWriter()
+
+        SubtitleWriter.writeSrt(listOf(SubtitleWriter.Cue(0, 1000000, "One"),
+                SubtitleWriter.Cue(3723004000, 3724000000, "Two")), writer)
+
+        Assert.assertEquals("1\n00:00:00,000 --> 00:00:01,000\nOne\n\n" +
+                "2\n01:02:03,004 --> 01:02:04,000\nTwo\n", writer.toString())
+    }
+
+    private fun page(durationUs: Long, text: String): StoryPage {
+        return StoryPage(mDuration = durationUs, subtitleText = text)
+    }
+}